@@ -0,0 +1,133 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.reallysi.rsuite.api.xml.Namespace;
+
+/**
+ * The documents the benchmarks run over. They are generated rather than checked in, in small,
+ * medium, and large sizes, and mix namespaced elements, attributes, and mixed content in the way
+ * typical RSuite content does.
+ */
+final class Corpus {
+
+  /**
+   * The namespace of the corpus' elements.
+   */
+  static final String NAMESPACE_URI = "urn:rsicms:benchmark";
+
+  static final String XLINK_NAMESPACE_URI = "http://www.w3.org/1999/xlink";
+
+  /**
+   * The namespaces used by the corpus, for XPath evaluators.
+   */
+  static final Namespace[] NAMESPACES = new Namespace[] {new Namespace("b", NAMESPACE_URI),
+      new Namespace("xlink", XLINK_NAMESPACE_URI)};
+
+  /**
+   * The number of sections in each size of document.
+   */
+  private static final Map<String, Integer> SECTION_COUNTS = new HashMap<String, Integer>();
+
+  static {
+    SECTION_COUNTS.put("small", 10);
+    SECTION_COUNTS.put("medium", 1000);
+    SECTION_COUNTS.put("large", 20000);
+  }
+
+  private static final Map<String, byte[]> documents = new HashMap<String, byte[]>();
+
+  private static final DocumentBuilderFactory documentBuilderFactory;
+
+  static {
+    documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    documentBuilderFactory.setNamespaceAware(true);
+  }
+
+  private Corpus() {}
+
+  /**
+   * Get a document of the given size.
+   * 
+   * @param size "small", "medium", or "large".
+   * @return The document, serialized as UTF-8. The array is shared, and may not be modified.
+   */
+  static synchronized byte[] getBytes(String size) {
+    byte[] bytes = documents.get(size);
+    if (bytes == null) {
+      Integer sectionCount = SECTION_COUNTS.get(size);
+      if (sectionCount == null) {
+        throw new IllegalArgumentException("Unknown corpus size: " + size);
+      }
+      bytes = generate(sectionCount.intValue());
+      documents.put(size, bytes);
+    }
+    return bytes;
+  }
+
+  static InputStream getInputStream(String size) {
+    return new ByteArrayInputStream(getBytes(size));
+  }
+
+  /**
+   * Parse a document of the given size, outside of the library being measured.
+   */
+  static Document getDocument(String size) throws ParserConfigurationException, SAXException,
+      IOException {
+    return documentBuilderFactory.newDocumentBuilder().parse(getInputStream(size));
+  }
+
+  /**
+   * @return The URI of the stylesheet the transform benchmarks apply.
+   */
+  static URI getStylesheetUri() throws URISyntaxException {
+    return Corpus.class.getResource("benchmark.xsl").toURI();
+  }
+
+  private static byte[] generate(int sectionCount) {
+    StringBuilder xml = new StringBuilder(sectionCount * 400);
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    xml.append("<book xmlns=\"").append(NAMESPACE_URI).append("\" xmlns:xlink=\"")
+        .append(XLINK_NAMESPACE_URI).append("\" id=\"book\">\n");
+    xml.append("<title>Benchmark corpus</title>\n");
+    int sectionsPerChapter = 10;
+    for (int i = 0; i < sectionCount; i++) {
+      if (i % sectionsPerChapter == 0) {
+        if (i > 0) {
+          xml.append("</chapter>\n");
+        }
+        xml.append("<chapter id=\"c").append(i / sectionsPerChapter).append("\">\n");
+        xml.append("<title>Chapter ").append(i / sectionsPerChapter).append("</title>\n");
+      }
+      xml.append("<section id=\"s").append(i).append("\" status=\"")
+          .append(i % 3 == 0 ? "draft" : "final").append("\">\n");
+      xml.append("<title>Section ").append(i).append("</title>\n");
+      xml.append("<para>The quick <emphasis>brown</emphasis> fox jumps over the lazy dog; ")
+          .append("see <link xlink:href=\"#s").append((i + 1) % sectionCount)
+          .append("\">the next section</link> &amp; the one after.</para>\n");
+      xml.append("<para>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do ")
+          .append("eiusmod tempor incididunt ut labore et dolore magna aliqua.</para>\n");
+      xml.append("</section>\n");
+    }
+    xml.append("</chapter>\n</book>\n");
+    try {
+      return xml.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * Measures parsing, serializing, and copying documents with {@link DomUtils}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomBenchmark {
+
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  private ExecutionContext context;
+  private XmlApiManager xmlApiManager;
+  private DomUtils domUtils;
+  private Transformer identityTransformer;
+  private Document document;
+  private Element firstChapter;
+  private final byte[] drain = new byte[8192];
+
+  @Setup
+  public void setUp() throws Exception {
+    context = StandIns.newExecutionContext();
+    xmlApiManager = context.getXmlApiManager();
+    domUtils = new DomUtils();
+    identityTransformer = TransformerFactory.newInstance().newTransformer();
+    document = Corpus.getDocument(size);
+    firstChapter =
+        DomUtils.findFirstChildElement(document.getDocumentElement(), Corpus.NAMESPACE_URI,
+            "chapter");
+  }
+
+  @Benchmark
+  public Document getDocument() throws Exception {
+    return DomUtils.getDocument(context, Corpus.getInputStream(size));
+  }
+
+  @Benchmark
+  public Document getDocumentDeferred() throws Exception {
+    return domUtils.getDocument(xmlApiManager, Corpus.getInputStream(size), true);
+  }
+
+  @Benchmark
+  public Document getDocumentEager() throws Exception {
+    return domUtils.getDocument(xmlApiManager, Corpus.getInputStream(size), false);
+  }
+
+  @Benchmark
+  public CompactDocument getCompactDocument() throws Exception {
+    return domUtils.getCompactDocument(xmlApiManager, Corpus.getInputStream(size));
+  }
+
+  @Benchmark
+  public String toStringDocument() {
+    return DomUtils.toString(document);
+  }
+
+  @Benchmark
+  public String serializeToStringWithContext() throws Exception {
+    return DomUtils.serializeToString(context, document, true, false, "UTF-8");
+  }
+
+  @Benchmark
+  public String serializeToStringWithTransformer() throws Exception {
+    return DomUtils.serializeToString(identityTransformer, document, true, false, "UTF-8");
+  }
+
+  @Benchmark
+  public String serializeToStringWithoutTransformer() {
+    return DomUtils.serializeToString(document, true, false, "UTF-8");
+  }
+
+  @Benchmark
+  public String serializeToStringLS() {
+    return DomUtils.serializeToString(document.getDocumentElement());
+  }
+
+  @Benchmark
+  public long getInputStream() throws Exception {
+    return drain(domUtils.iGetInputStream(document));
+  }
+
+  @Benchmark
+  public Element getElementWithTransformer() throws Exception {
+    return DomUtils.getElement(identityTransformer, document.getDocumentElement(), false, false,
+        "UTF-8");
+  }
+
+  @Benchmark
+  public Element getElementWithoutTransformer() throws Exception {
+    return DomUtils.getElement(null, document.getDocumentElement(), false, false, "UTF-8");
+  }
+
+  @Benchmark
+  public Element copyFirstChapter() throws Exception {
+    return DomUtils.copyElement(firstChapter);
+  }
+
+  private long drain(InputStream inputStream) throws IOException {
+    long total = 0;
+    try {
+      int count;
+      while ((count = inputStream.read(drain)) != -1) {
+        total += count;
+      }
+    } finally {
+      inputStream.close();
+    }
+    return total;
+  }
+
+}
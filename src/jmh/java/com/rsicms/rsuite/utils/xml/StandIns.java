@@ -0,0 +1,206 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.fileupload.FileItem;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import com.reallysi.rsuite.api.ManagedObject;
+import com.reallysi.rsuite.api.Session;
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+import com.reallysi.rsuite.api.xml.XPathEvaluator;
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * Local stand-ins for the RSuite objects the library is called with, so that the benchmarks run
+ * without an RSuite server. Each is a dynamic proxy implementing only the methods the library
+ * calls; any other method returns null, false, or zero. The stand-ins are cheap, so the
+ * benchmarks measure the library rather than RSuite.
+ */
+final class StandIns {
+
+  private static final DocumentBuilderFactory documentBuilderFactory;
+  private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+  static {
+    documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    documentBuilderFactory.setNamespaceAware(true);
+    documentBuilderFactory.setValidating(false);
+  }
+
+  /**
+   * Resolves every external entity to an empty one, as the corpus does not use a DTD.
+   */
+  private static final EntityResolver ENTITY_RESOLVER = new EntityResolver() {
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) {
+      InputSource source = new InputSource(new StringReader(""));
+      source.setPublicId(publicId);
+      source.setSystemId(systemId);
+      return source;
+    }
+  };
+
+  private StandIns() {}
+
+  /**
+   * @return An execution context whose XML API manager is {@link #newXmlApiManager()}.
+   */
+  static ExecutionContext newExecutionContext() {
+    final XmlApiManager xmlApiManager = newXmlApiManager();
+    return newProxy(ExecutionContext.class, new Answers() {
+      @Override
+      Object answer(String methodName, Object[] args) {
+        return "getXmlApiManager".equals(methodName) ? xmlApiManager : UNANSWERED;
+      }
+    });
+  }
+
+  /**
+   * @return An XML API manager providing non-validating, namespace-aware document builders, JAXP
+   *         transformers, and an XPath evaluator that accepts namespace declarations.
+   */
+  static XmlApiManager newXmlApiManager() {
+    return newProxy(XmlApiManager.class, new Answers() {
+      @Override
+      Object answer(String methodName, Object[] args) throws Exception {
+        if ("constructNonValidatingDocumentBuilder".equals(methodName)) {
+          synchronized (documentBuilderFactory) {
+            return documentBuilderFactory.newDocumentBuilder();
+          }
+        } else if ("getRSuiteAwareEntityResolver".equals(methodName)) {
+          return ENTITY_RESOLVER;
+        } else if ("getTransformer".equals(methodName)) {
+          File stylesheet = args == null || args.length == 0 ? null : (File) args[0];
+          synchronized (transformerFactory) {
+            return stylesheet == null ? transformerFactory.newTransformer()
+                : transformerFactory.newTransformer(new StreamSource(stylesheet));
+          }
+        } else if ("getXPathEvaluator".equals(methodName)) {
+          return newProxy(XPathEvaluator.class, new Answers());
+        }
+        return UNANSWERED;
+      }
+    });
+  }
+
+  /**
+   * RSuite's <code>Session</code> is a class rather than an interface, so it cannot be stood in
+   * for by a proxy. The library only reads the session to add the standard RSuite XSL parameters,
+   * which the benchmarks do not request.
+   * 
+   * @return Null.
+   */
+  static Session newSession() {
+    return null;
+  }
+
+  /**
+   * @param id
+   * @param content
+   * @return A managed object with the given ID and content.
+   */
+  static ManagedObject newManagedObject(final String id, final byte[] content) {
+    return newProxy(ManagedObject.class, new Answers() {
+      @Override
+      Object answer(String methodName, Object[] args) {
+        if ("getInputStream".equals(methodName)) {
+          return new ByteArrayInputStream(content);
+        } else if ("getId".equals(methodName)) {
+          return id;
+        }
+        return UNANSWERED;
+      }
+    });
+  }
+
+  /**
+   * @param name
+   * @param content
+   * @return An uploaded file with the given name and content.
+   */
+  static FileItem newFileItem(final String name, final byte[] content) {
+    return newProxy(FileItem.class, new Answers() {
+      @Override
+      Object answer(String methodName, Object[] args) {
+        if ("getInputStream".equals(methodName)) {
+          return new ByteArrayInputStream(content);
+        } else if ("getName".equals(methodName)) {
+          return name;
+        } else if ("getSize".equals(methodName)) {
+          return Long.valueOf(content.length);
+        } else if ("get".equals(methodName)) {
+          return content;
+        }
+        return UNANSWERED;
+      }
+    });
+  }
+
+  private static <T> T newProxy(final Class<T> type, final Answers answers) {
+    return type.cast(Proxy.newProxyInstance(StandIns.class.getClassLoader(),
+        new Class<?>[] {type}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              if ("equals".equals(method.getName())) {
+                return Boolean.valueOf(proxy == args[0]);
+              } else if ("hashCode".equals(method.getName())) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+              }
+              return "stand-in " + type.getSimpleName();
+            }
+            Object answer = answers.answer(method.getName(), args);
+            return answer == Answers.UNANSWERED ? defaultValue(method.getReturnType()) : answer;
+          }
+        }));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == void.class) {
+      return null;
+    } else if (type == boolean.class) {
+      return Boolean.FALSE;
+    } else if (type == char.class) {
+      return Character.valueOf((char) 0);
+    } else if (type == byte.class) {
+      return Byte.valueOf((byte) 0);
+    } else if (type == short.class) {
+      return Short.valueOf((short) 0);
+    } else if (type == int.class) {
+      return Integer.valueOf(0);
+    } else if (type == long.class) {
+      return Long.valueOf(0);
+    } else if (type == float.class) {
+      return Float.valueOf(0);
+    }
+    return Double.valueOf(0);
+  }
+
+  /**
+   * The methods a stand-in implements.
+   */
+  private static class Answers {
+
+    static final Object UNANSWERED = new Object();
+
+    /**
+     * @return The method's result, or {@link #UNANSWERED} for the default value of its return
+     *         type.
+     */
+    Object answer(String methodName, Object[] args) throws Exception {
+      return UNANSWERED;
+    }
+  }
+
+}
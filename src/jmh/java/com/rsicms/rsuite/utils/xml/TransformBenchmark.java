@@ -0,0 +1,145 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.fileupload.FileItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import com.reallysi.rsuite.api.ManagedObject;
+import com.reallysi.rsuite.api.Session;
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+
+/**
+ * Measures {@link TransformUtils#iTransform} for each type of input, with a transformer supplied
+ * by the caller and with a stylesheet URI resolved through the templates cache. Each benchmark
+ * reads the result stream to its end, as callers do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  private ExecutionContext context;
+  private Session session;
+  private TransformUtils transformUtils;
+  private URI stylesheetUri;
+  private Transformer transformer;
+  private byte[] content;
+  private ManagedObject mo;
+  private FileItem fileItem;
+  private Document document;
+  private final byte[] drain = new byte[8192];
+
+  @Setup
+  public void setUp() throws Exception {
+    context = StandIns.newExecutionContext();
+    session = StandIns.newSession();
+    transformUtils = new TransformUtils();
+    stylesheetUri = Corpus.getStylesheetUri();
+    transformer = transformUtils.newTransformer(stylesheetUri);
+    content = Corpus.getBytes(size);
+    mo = StandIns.newManagedObject("1", content);
+    fileItem = StandIns.newFileItem(size + ".xml", content);
+    document = Corpus.getDocument(size);
+  }
+
+  @Benchmark
+  public long managedObjectWithTransformer() throws Exception {
+    return drain(transformUtils.iTransform(context, session, mo, transformer, null, false, null));
+  }
+
+  @Benchmark
+  public long fileItemWithTransformer() throws Exception {
+    return drain(transformUtils.iTransform(context, session, fileItem, transformer, null, false,
+        null));
+  }
+
+  @Benchmark
+  public long inputStreamWithTransformer() throws Exception {
+    return drain(transformUtils.iTransform(context, session, Corpus.getInputStream(size),
+        transformer, null, false, null));
+  }
+
+  @Benchmark
+  public long documentWithTransformer() throws Exception {
+    return drain(transformUtils.iTransform(context, session, document, transformer, null, false,
+        null));
+  }
+
+  @Benchmark
+  public long sourceWithTransformer() throws Exception {
+    return drain(transformUtils.iTransform(context, session,
+        new StreamSource(Corpus.getInputStream(size)), transformer, null, false, null));
+  }
+
+  @Benchmark
+  public long managedObjectWithStylesheetUri() throws Exception {
+    return drain(transformUtils.iTransform(context, session, mo, stylesheetUri, null, false, null));
+  }
+
+  @Benchmark
+  public long fileItemWithStylesheetUri() throws Exception {
+    return drain(transformUtils.iTransform(context, session, fileItem, stylesheetUri, null, false,
+        null));
+  }
+
+  @Benchmark
+  public long inputStreamWithStylesheetUri() throws Exception {
+    return drain(transformUtils.iTransform(context, session, Corpus.getInputStream(size),
+        stylesheetUri, null, false, null));
+  }
+
+  @Benchmark
+  public long documentWithStylesheetUri() throws Exception {
+    return drain(transformUtils.iTransform(context, session, document, stylesheetUri, null, false,
+        null));
+  }
+
+  @Benchmark
+  public long sourceWithStylesheetUri() throws Exception {
+    return drain(transformUtils.iTransform(context, session,
+        new StreamSource(Corpus.getInputStream(size)), stylesheetUri, null, false, null));
+  }
+
+  /**
+   * Read the stream to its end and close it.
+   * 
+   * @return The number of bytes read, so that the work is not eliminated.
+   */
+  private long drain(InputStream inputStream) throws IOException {
+    long total = 0;
+    try {
+      int count;
+      while ((count = inputStream.read(drain)) != -1) {
+        total += count;
+      }
+    } finally {
+      inputStream.close();
+    }
+    return total;
+  }
+
+}
@@ -0,0 +1,83 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import com.reallysi.rsuite.api.xml.XPathEvaluator;
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * Measures getting XPath evaluators from {@link XPathUtils}, and evaluating expressions against
+ * the corpus with the expression cache, a query set, and the streaming evaluator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XPathBenchmark {
+
+  @Param({"small", "medium", "large"})
+  public String size;
+
+  private XmlApiManager xmlApiManager;
+  private XPathUtils xpathUtils;
+  private Document document;
+  private XPathQuerySet querySet;
+  private StreamingXPath streamingXPath;
+
+  @Setup
+  public void setUp() throws Exception {
+    xmlApiManager = StandIns.newXmlApiManager();
+    xpathUtils = new XPathUtils();
+    document = Corpus.getDocument(size);
+    querySet = xpathUtils.newXPathQuerySet(Corpus.NAMESPACES);
+    querySet.add("title", "/b:book/b:title");
+    querySet.add("firstDraft", "//b:section[@status='draft']/b:title");
+    querySet.add("firstLink", "//b:link/@xlink:href");
+    streamingXPath =
+        StreamingXPath.compile("//b:section[@status='final']/b:title",
+            new NamespaceBindings(Corpus.NAMESPACES));
+  }
+
+  @Benchmark
+  public XPathEvaluator getXPathEvaluator() throws Exception {
+    return xpathUtils.getXPathEvaluator(xmlApiManager, Corpus.NAMESPACES);
+  }
+
+  @Benchmark
+  public XPathEvaluator getCachedXPathEvaluator() throws Exception {
+    return xpathUtils.getCachedXPathEvaluator(xmlApiManager, Corpus.NAMESPACES);
+  }
+
+  @Benchmark
+  public String evaluateString() throws Exception {
+    return xpathUtils.evaluateString(document, "count(//b:section[@status='draft'])",
+        Corpus.NAMESPACES);
+  }
+
+  @Benchmark
+  public Map<String, String> evaluateQuerySet() throws Exception {
+    return querySet.evaluate(document);
+  }
+
+  @Benchmark
+  public String evaluateStreaming() throws Exception {
+    return streamingXPath.evaluateFirst(Corpus.getInputStream(size));
+  }
+
+}
@@ -0,0 +1,51 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- Renders the benchmark corpus as HTML, exercising templates, modes, and attribute values. -->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+  xmlns:b="urn:rsicms:benchmark" xmlns:xlink="http://www.w3.org/1999/xlink"
+  exclude-result-prefixes="b xlink">
+
+  <xsl:output method="html" encoding="UTF-8"/>
+
+  <xsl:param name="title" select="'Benchmark'"/>
+
+  <xsl:template match="/">
+    <html>
+      <head>
+        <title><xsl:value-of select="$title"/></title>
+      </head>
+      <body>
+        <ul class="toc">
+          <xsl:apply-templates select="//b:section" mode="toc"/>
+        </ul>
+        <xsl:apply-templates/>
+      </body>
+    </html>
+  </xsl:template>
+
+  <xsl:template match="b:section" mode="toc">
+    <li><a href="#{@id}"><xsl:value-of select="b:title"/></a></li>
+  </xsl:template>
+
+  <xsl:template match="b:chapter | b:section">
+    <div class="{local-name()}" id="{@id}">
+      <xsl:apply-templates/>
+    </div>
+  </xsl:template>
+
+  <xsl:template match="b:title">
+    <h2><xsl:apply-templates/></h2>
+  </xsl:template>
+
+  <xsl:template match="b:para">
+    <p><xsl:apply-templates/></p>
+  </xsl:template>
+
+  <xsl:template match="b:emphasis">
+    <em><xsl:apply-templates/></em>
+  </xsl:template>
+
+  <xsl:template match="b:link">
+    <a href="{@xlink:href}"><xsl:apply-templates/></a>
+  </xsl:template>
+
+</xsl:stylesheet>
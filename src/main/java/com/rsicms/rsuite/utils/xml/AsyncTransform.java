@@ -0,0 +1,495 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import com.reallysi.rsuite.api.ManagedObject;
+import com.reallysi.rsuite.api.Session;
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+
+/**
+ * Asynchronous counterparts of the stylesheet URI variants of
+ * {@link TransformUtils#iTransform(ExecutionContext, Session, Source, URI, Map, boolean, String)},
+ * so that a request thread need not be held while input is fetched and transformed. Fetching the
+ * input, such as through <code>ManagedObject#getInputStream()</code>, happens on the executor.
+ * <p>
+ * By default, transforms run on virtual threads when the JVM supports them, and otherwise on a
+ * pool of daemon threads created as needed. Cancelling a {@link TransformFuture} interrupts its
+ * transform, which is then abandoned at the next read of its input or write of its output. A
+ * transform of a <code>Document</code> or caller-supplied <code>Source</code> that writes nothing
+ * until it completes cannot be abandoned part way through.
+ */
+public class AsyncTransform {
+
+  private static Log log = LogFactory.getLog(AsyncTransform.class);
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final TransformUtils transformUtils;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  /**
+   * Construct an instance with its own executor, per {@link #newDefaultExecutor()}. Call
+   * {@link #shutdown()} when done with it.
+   * 
+   * @param transformUtils
+   */
+  public AsyncTransform(TransformUtils transformUtils) {
+    this(transformUtils, newDefaultExecutor(), true);
+  }
+
+  /**
+   * Construct an instance that runs transforms on the given executor.
+   * 
+   * @param transformUtils
+   * @param executor
+   */
+  public AsyncTransform(TransformUtils transformUtils, ExecutorService executor) {
+    this(transformUtils, executor, false);
+  }
+
+  private AsyncTransform(TransformUtils transformUtils, ExecutorService executor,
+      boolean ownsExecutor) {
+    this.transformUtils = transformUtils;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /**
+   * Create an executor that starts a virtual thread per task when the JVM supports them, and
+   * otherwise runs tasks on daemon threads created as needed and retired when idle.
+   * 
+   * @return A new executor.
+   */
+  public static ExecutorService newDefaultExecutor() {
+    try {
+      Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    } catch (NoSuchMethodException e) {
+      // Virtual threads are not available in this JVM.
+    } catch (Exception e) {
+      log.debug("Unable to create a virtual thread executor", e);
+    }
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "rsuite-async-transform-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given MO.
+   * 
+   * @param context
+   * @param session
+   * @param mo The <code>ManagedObject</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The pending result <code>InputStream</code> of the transform. The caller is
+   *         responsible for closing this stream.
+   */
+  public TransformFuture<InputStream> transform(ExecutionContext context, Session session,
+      ManagedObject mo, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) {
+    return submitBuffered(new Job(context, session, mo, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl));
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given FileItem.
+   * 
+   * @param context
+   * @param session
+   * @param fileItem The <code>FileItem</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The pending result <code>InputStream</code> of the transform. The caller is
+   *         responsible for closing this stream.
+   */
+  public TransformFuture<InputStream> transform(ExecutionContext context, Session session,
+      FileItem fileItem, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) {
+    return submitBuffered(new Job(context, session, fileItem, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl));
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given input stream. The
+   * stream is not closed.
+   * 
+   * @param context
+   * @param session
+   * @param inputStream The <code>InputStream</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The pending result <code>InputStream</code> of the transform. The caller is
+   *         responsible for closing this stream.
+   */
+  public TransformFuture<InputStream> transform(ExecutionContext context, Session session,
+      InputStream inputStream, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) {
+    return submitBuffered(new Job(context, session, inputStream, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl));
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given document.
+   * 
+   * @param context
+   * @param session
+   * @param inputDoc The <code>Document</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The pending result <code>InputStream</code> of the transform. The caller is
+   *         responsible for closing this stream.
+   */
+  public TransformFuture<InputStream> transform(ExecutionContext context, Session session,
+      Document inputDoc, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) {
+    return submitBuffered(new Job(context, session, inputDoc, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl));
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given source.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The pending result <code>InputStream</code> of the transform. The caller is
+   *         responsible for closing this stream.
+   */
+  public TransformFuture<InputStream> transform(ExecutionContext context, Session session,
+      Source inputSource, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) {
+    return submitBuffered(new Job(context, session, inputSource, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl));
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given MO, writing the output
+   * directly to the given stream.
+   * 
+   * @param context
+   * @param session
+   * @param mo The <code>ManagedObject</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed.
+   * @return A future that completes once the output is written.
+   */
+  public TransformFuture<Void> transform(ExecutionContext context, Session session,
+      ManagedObject mo, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream) {
+    return submit(new Job(context, session, mo, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl), outputStream);
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given FileItem, writing the
+   * output directly to the given stream.
+   * 
+   * @param context
+   * @param session
+   * @param fileItem The <code>FileItem</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed.
+   * @return A future that completes once the output is written.
+   */
+  public TransformFuture<Void> transform(ExecutionContext context, Session session,
+      FileItem fileItem, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream) {
+    return submit(new Job(context, session, fileItem, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl), outputStream);
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given input stream, writing
+   * the output directly to the given stream. Neither stream is closed.
+   * 
+   * @param context
+   * @param session
+   * @param inputStream The <code>InputStream</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform.
+   * @return A future that completes once the output is written.
+   */
+  public TransformFuture<Void> transform(ExecutionContext context, Session session,
+      InputStream inputStream, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream) {
+    return submit(new Job(context, session, inputStream, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl), outputStream);
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given document, writing the
+   * output directly to the given stream.
+   * 
+   * @param context
+   * @param session
+   * @param inputDoc The <code>Document</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed.
+   * @return A future that completes once the output is written.
+   */
+  public TransformFuture<Void> transform(ExecutionContext context, Session session,
+      Document inputDoc, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream) {
+    return submit(new Job(context, session, inputDoc, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl), outputStream);
+  }
+
+  /**
+   * Asynchronously apply the XSL identified by the given URI to the given source, writing the
+   * output directly to the given stream.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed.
+   * @return A future that completes once the output is written.
+   */
+  public TransformFuture<Void> transform(ExecutionContext context, Session session,
+      Source inputSource, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream) {
+    return submit(new Job(context, session, inputSource, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl), outputStream);
+  }
+
+  /**
+   * Shut down the executor, if this instance created it. Transforms already submitted complete.
+   */
+  public void shutdown() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return The executor transforms run on.
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  private TransformFuture<InputStream> submitBuffered(final Job job) {
+    TransformFuture<InputStream> future =
+        new TransformFuture<InputStream>(new Callable<InputStream>() {
+          @Override
+          public InputStream call() throws Exception {
+            SpillableOutputStream outputStream =
+                new SpillableOutputStream(transformUtils.getSpillThreshold());
+            try {
+              job.run(outputStream);
+              return outputStream.toInputStream();
+            } finally {
+              outputStream.dispose();
+            }
+          }
+        });
+    executor.execute(future);
+    return future;
+  }
+
+  private TransformFuture<Void> submit(final Job job, final OutputStream outputStream) {
+    TransformFuture<Void> future = new TransformFuture<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        job.run(outputStream);
+        return null;
+      }
+    });
+    executor.execute(future);
+    return future;
+  }
+
+  /**
+   * One transform, run on the executor.
+   */
+  private class Job {
+    private final ExecutionContext context;
+    private final Session session;
+    private final Object input;
+    private final URI stylesheetUri;
+    private final Map<String, Object> xslParams;
+    private final boolean includeStandardRSuiteXslParams;
+    private final String baseRSuiteUrl;
+
+    private Job(ExecutionContext context, Session session, Object input, URI stylesheetUri,
+        Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+        String baseRSuiteUrl) {
+      this.context = context;
+      this.session = session;
+      this.input = input;
+      this.stylesheetUri = stylesheetUri;
+      this.xslParams = xslParams;
+      this.includeStandardRSuiteXslParams = includeStandardRSuiteXslParams;
+      this.baseRSuiteUrl = baseRSuiteUrl;
+    }
+
+    private void run(OutputStream outputStream) throws Exception {
+      XMLReaderPool xmlReaderPool = transformUtils.getXMLReaderPool();
+      XMLReader reader = null;
+      InputStream opened = null;
+      try {
+        Source source;
+        if (input instanceof Source) {
+          source = (Source) input;
+        } else if (input instanceof Document) {
+          source = transformUtils.iGetSource((Document) input);
+        } else {
+          InputStream inputStream;
+          if (input instanceof ManagedObject) {
+            inputStream = opened = ((ManagedObject) input).getInputStream();
+          } else if (input instanceof FileItem) {
+            inputStream = opened = ((FileItem) input).getInputStream();
+          } else {
+            inputStream = (InputStream) input;
+          }
+          reader = xmlReaderPool.lease(transformUtils.getEntityResolver(context));
+          source =
+              new SAXSource(reader, new InputSource(new InterruptibleInputStream(inputStream)));
+        }
+        transformUtils.iTransform(context, session, source, stylesheetUri, xslParams,
+            includeStandardRSuiteXslParams, baseRSuiteUrl,
+            new InterruptibleOutputStream(outputStream));
+      } finally {
+        xmlReaderPool.release(reader);
+        IOUtils.closeQuietly(opened);
+      }
+    }
+  }
+
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.currentThread().isInterrupted()) {
+      throw new InterruptedIOException("Transform cancelled");
+    }
+  }
+
+  /**
+   * Abandons the transform reading from it once the thread is interrupted. Closing is left to the
+   * owner of the underlying stream.
+   */
+  private static class InterruptibleInputStream extends FilterInputStream {
+    private InterruptibleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkInterrupted();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      checkInterrupted();
+      return super.read(b, off, len);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /**
+   * Abandons the transform writing to it once the thread is interrupted. Closing is left to the
+   * owner of the underlying stream.
+   */
+  private static class InterruptibleOutputStream extends FilterOutputStream {
+    private InterruptibleOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      checkInterrupted();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkInterrupted();
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+
+import com.reallysi.rsuite.api.Session;
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+
+/**
+ * Applies one XSL to many inputs in parallel, such as the MOs of a publishing job. Each worker
+ * leases one transformer from the {@link TransformerPool} of the given {@link TransformUtils} and
+ * uses it for every input it transforms, and inputs are parsed with readers from its
+ * {@link XMLReaderPool}.
+ * <p>
+ * Inputs may be <code>ManagedObject</code>s, <code>FileItem</code>s, <code>InputStream</code>s,
+ * <code>Document</code>s or <code>Source</code>s, and may be mixed. Input streams obtained from
+ * MOs and FileItems are closed by the batch; those given directly are not. Each input succeeds or
+ * fails on its own: a failure is reported in that input's {@link BatchTransformResult}, and the
+ * rest of the batch continues.
+ */
+public class BatchTransform {
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final TransformUtils transformUtils;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int parallelism;
+
+  /**
+   * Construct an instance with its own pool of daemon threads. Call {@link #shutdown()} when done
+   * with it.
+   * 
+   * @param transformUtils
+   * @param parallelism The maximum number of inputs to transform at once.
+   */
+  public BatchTransform(TransformUtils transformUtils, int parallelism) {
+    this(transformUtils, newThreadPool(parallelism), parallelism, true);
+  }
+
+  /**
+   * Construct an instance that runs its workers on the given executor. Each batch submits up to
+   * <code>parallelism</code> long-running workers, so a bounded executor should have at least
+   * that many threads.
+   * 
+   * @param transformUtils
+   * @param executor
+   * @param parallelism The maximum number of inputs to transform at once.
+   */
+  public BatchTransform(TransformUtils transformUtils, Executor executor, int parallelism) {
+    this(transformUtils, executor, parallelism, false);
+  }
+
+  private BatchTransform(TransformUtils transformUtils, Executor executor, int parallelism,
+      boolean ownsExecutor) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    this.transformUtils = transformUtils;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.parallelism = parallelism;
+  }
+
+  private static ExecutorService newThreadPool(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "rsuite-batch-transform-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Start transforming the given inputs, and return their results in the order of the inputs.
+   * The XSL is compiled before any input is transformed.
+   * 
+   * @param context
+   * @param session
+   * @param inputs The inputs to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The results, which the caller must consume or close.
+   * @throws TransformerException Thrown if the XSL cannot be compiled.
+   */
+  public <T> BatchTransformResults<T> transform(ExecutionContext context, Session session,
+      Collection<? extends T> inputs, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl) throws TransformerException {
+    Templates templates = transformUtils.getTemplatesCache().getTemplates(stylesheetUri);
+    BatchTransformResults<T> results = new BatchTransformResults<T>(transformUtils, context,
+        session, inputs, templates, xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl,
+        parallelism);
+    if (results.size() == 0) {
+      return results;
+    }
+    for (Runnable worker : results.newWorkers()) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        results.workerRejected();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Transform the given inputs, passing each result to the given callback, in the order of the
+   * inputs and on the calling thread. Returns once every input has been transformed. Should the
+   * callback throw, the rest of the batch is abandoned.
+   * 
+   * @param context
+   * @param session
+   * @param inputs The inputs to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param callback
+   * @throws TransformerException Thrown if the XSL cannot be compiled.
+   */
+  public <T> void transform(ExecutionContext context, Session session,
+      Collection<? extends T> inputs, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl,
+      BatchTransformCallback<T> callback) throws TransformerException {
+    BatchTransformResults<T> results = transform(context, session, inputs, stylesheetUri,
+        xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl);
+    try {
+      while (results.hasNext()) {
+        callback.onResult(results.next());
+      }
+    } finally {
+      results.close();
+    }
+  }
+
+  /**
+   * @return The maximum number of inputs transformed at once.
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Shut down the threads this instance created, if any. Executors given to this instance are left
+   * to the caller.
+   */
+  public void shutdown() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+}
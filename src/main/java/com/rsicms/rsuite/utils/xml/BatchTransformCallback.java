@@ -0,0 +1,19 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * Receives the results of a batch transform, in the order of the inputs, on the thread that
+ * started the batch. See {@link BatchTransform}.
+ * 
+ * @param <T> The type of input.
+ */
+public interface BatchTransformCallback<T> {
+
+  /**
+   * Handle the result of transforming one input. The callback is responsible for closing the
+   * result's output stream.
+   * 
+   * @param result
+   */
+  void onResult(BatchTransformResult<T> result);
+
+}
@@ -0,0 +1,60 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.InputStream;
+
+/**
+ * The outcome of transforming one input of a batch. See {@link BatchTransform}.
+ * 
+ * @param <T> The type of input.
+ */
+public class BatchTransformResult<T> {
+
+  private final int index;
+  private final T input;
+  private final InputStream output;
+  private final Exception exception;
+
+  BatchTransformResult(int index, T input, InputStream output, Exception exception) {
+    this.index = index;
+    this.input = input;
+    this.output = output;
+    this.exception = exception;
+  }
+
+  /**
+   * @return The position of the input within the batch, starting at zero.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The input that was transformed.
+   */
+  public T getInput() {
+    return input;
+  }
+
+  /**
+   * @return The result of the transform, or null if it failed. The caller is responsible for
+   *         closing this stream.
+   */
+  public InputStream getOutput() {
+    return output;
+  }
+
+  /**
+   * @return Why the transform failed, or null if it succeeded.
+   */
+  public Exception getException() {
+    return exception;
+  }
+
+  /**
+   * @return True if the transform succeeded.
+   */
+  public boolean isSuccess() {
+    return exception == null;
+  }
+
+}
@@ -0,0 +1,193 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import com.reallysi.rsuite.api.ManagedObject;
+import com.reallysi.rsuite.api.Session;
+import com.reallysi.rsuite.api.extensions.ExecutionContext;
+
+/**
+ * The results of a batch transform, in the order of the inputs. {@link #next()} blocks until the
+ * next input has been transformed. Workers stay at most a fixed number of results ahead of the
+ * consumer, which bounds the memory held by results not yet consumed.
+ * <p>
+ * The caller is responsible for closing the output stream of each result it consumes, and for
+ * closing this instance if it stops consuming before the end, so that the workers stop and any
+ * results already produced are released. Instances are returned by {@link BatchTransform}, and
+ * may only be consumed by one thread.
+ * 
+ * @param <T> The type of input.
+ */
+public class BatchTransformResults<T> extends BoundedResults<T, BatchTransformResult<T>> {
+
+  private static Log log = LogFactory.getLog(BatchTransformResults.class);
+
+  private final TransformUtils transformUtils;
+  private final ExecutionContext context;
+  private final Session session;
+  private final Templates templates;
+  private final Map<String, Object> xslParams;
+  private final boolean includeStandardRSuiteXslParams;
+  private final String baseRSuiteUrl;
+
+  // Guarded by the lock of the superclass.
+  private final Object[] results;
+
+  BatchTransformResults(TransformUtils transformUtils, ExecutionContext context, Session session,
+      Collection<? extends T> inputs, Templates templates, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, int parallelism) {
+    super(new ArrayList<T>(inputs), parallelism, "batch transform");
+    this.transformUtils = transformUtils;
+    this.context = context;
+    this.session = session;
+    this.templates = templates;
+    this.xslParams = xslParams;
+    this.includeStandardRSuiteXslParams = includeStandardRSuiteXslParams;
+    this.baseRSuiteUrl = baseRSuiteUrl;
+    this.results = new Object[inputs.size()];
+  }
+
+  @Override
+  Worker newWorker() {
+    return new TransformWorker();
+  }
+
+  @Override
+  void put(int index, BatchTransformResult<T> result) {
+    results[index] = result;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  BatchTransformResult<T> take(int consumed) {
+    BatchTransformResult<T> result = (BatchTransformResult<T>) results[consumed];
+    results[consumed] = null;
+    return result;
+  }
+
+  /**
+   * Close the output streams of results not yet consumed.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  void clear() {
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] != null) {
+        dispose((BatchTransformResult<T>) results[i]);
+        results[i] = null;
+      }
+    }
+  }
+
+  @Override
+  void dispose(BatchTransformResult<T> result) {
+    IOUtils.closeQuietly(result.getOutput());
+  }
+
+  private TransformerLease newLease() throws TransformerConfigurationException {
+    TransformerLease lease = transformUtils.getTransformerPool().lease(templates);
+    if (includeStandardRSuiteXslParams) {
+      lease.setParameters(
+          transformUtils.iGetStandardRSuiteTransformParameters(session, baseRSuiteUrl));
+    }
+    lease.setParameters(xslParams);
+    return lease;
+  }
+
+  private InputStream transform(TransformerLease lease, T input) throws Exception {
+    XMLReaderPool xmlReaderPool = transformUtils.getXMLReaderPool();
+    XMLReader reader = null;
+    InputStream opened = null;
+    try {
+      Source source;
+      if (input instanceof Source) {
+        source = (Source) input;
+      } else if (input instanceof Document) {
+        source = new DOMSource((Document) input);
+      } else {
+        InputStream inputStream;
+        if (input instanceof ManagedObject) {
+          inputStream = opened = ((ManagedObject) input).getInputStream();
+        } else if (input instanceof FileItem) {
+          inputStream = opened = ((FileItem) input).getInputStream();
+        } else if (input instanceof InputStream) {
+          inputStream = (InputStream) input;
+        } else {
+          throw new IllegalArgumentException("Unsupported batch transform input: "
+              + (input == null ? null : input.getClass().getName()));
+        }
+        reader = xmlReaderPool.lease(transformUtils.getEntityResolver(context));
+        source = new SAXSource(reader, new InputSource(inputStream));
+      }
+
+      SpillableOutputStream outputStream =
+          new SpillableOutputStream(transformUtils.getSpillThreshold());
+      try {
+        lease.transformer().transform(source, new StreamResult(outputStream));
+        return outputStream.toInputStream();
+      } finally {
+        outputStream.dispose();
+      }
+    } finally {
+      xmlReaderPool.release(reader);
+      IOUtils.closeQuietly(opened);
+    }
+  }
+
+  /**
+   * Transforms inputs until none remain, with one transformer for its lifetime.
+   */
+  private class TransformWorker extends Worker {
+    private TransformerLease lease;
+
+    @Override
+    BatchTransformResult<T> process(int index, T input) {
+      try {
+        if (lease == null) {
+          lease = newLease();
+        }
+        return new BatchTransformResult<T>(index, input, transform(lease, input), null);
+      } catch (Exception e) {
+        log.debug("Unable to transform batch input " + index, e);
+        // Do not reuse a transformer a transform failed in.
+        failed();
+        return new BatchTransformResult<T>(index, input, null, e);
+      }
+    }
+
+    @Override
+    void failed() {
+      if (lease != null) {
+        lease.discard();
+        lease = null;
+      }
+    }
+
+    @Override
+    void exited() {
+      if (lease != null) {
+        lease.release();
+        lease = null;
+      }
+    }
+  }
+
+}
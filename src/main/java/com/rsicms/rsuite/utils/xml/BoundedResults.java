@@ -0,0 +1,254 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The results of processing a list of inputs on worker threads, consumed by one thread through
+ * {@link #next()}, which blocks until another result is ready. Workers stay at most twice the
+ * parallelism ahead of the consumer, which bounds the memory held by results not yet consumed.
+ * Subclasses decide the order results are consumed in, and how each input is processed.
+ * 
+ * @param <T> The type of input.
+ * @param <R> The type of result.
+ */
+abstract class BoundedResults<T, R> implements Iterator<R>, Closeable {
+
+  private final List<T> inputs;
+  private final String activity;
+  private final Object lock = new Object();
+  // Guarded by lock.
+  private int consumed;
+  private boolean closed;
+  private Throwable workerFailure;
+
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final AtomicInteger liveWorkers = new AtomicInteger();
+  private final Semaphore window;
+  private final int workerCount;
+
+  /**
+   * @param inputs Not copied, so must not change.
+   * @param parallelism The maximum number of inputs to process at once.
+   * @param activity Describes the processing in messages, such as "bulk load".
+   */
+  BoundedResults(List<T> inputs, int parallelism, String activity) {
+    this.inputs = inputs;
+    this.activity = activity;
+    this.workerCount = Math.max(1, Math.min(parallelism, inputs.size()));
+    this.window = new Semaphore(parallelism * 2);
+  }
+
+  /**
+   * @return The number of inputs.
+   */
+  public int size() {
+    return inputs.size();
+  }
+
+  @Override
+  public boolean hasNext() {
+    synchronized (lock) {
+      return !closed && consumed < inputs.size();
+    }
+  }
+
+  /**
+   * Wait for and return the next result.
+   * 
+   * @throws IllegalStateException Thrown if the workers stopped before processing every input, or
+   *         the calling thread is interrupted while waiting.
+   */
+  @Override
+  public R next() {
+    R result;
+    synchronized (lock) {
+      if (closed || consumed >= inputs.size()) {
+        throw new NoSuchElementException();
+      }
+      while ((result = take(consumed)) == null) {
+        if (workerFailure != null) {
+          throw new IllegalStateException("A " + activity + " worker failed", workerFailure);
+        }
+        if (liveWorkers.get() == 0) {
+          throw new IllegalStateException(StringUtils.capitalize(activity)
+              + " workers stopped before every input was processed");
+        }
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while awaiting " + activity + " results");
+        }
+      }
+      consumed++;
+    }
+    window.release();
+    return result;
+  }
+
+  /**
+   * Not supported.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop the workers once their current inputs are processed, and dispose of the results not yet
+   * consumed.
+   */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      clear();
+      lock.notifyAll();
+    }
+    // Wake workers waiting for room in the window, so they see this instance is closed.
+    window.release(workerCount);
+  }
+
+  /**
+   * Create the workers. Each must be passed to {@link #workerRejected()} if it cannot be run.
+   */
+  List<Runnable> newWorkers() {
+    List<Runnable> workers = new ArrayList<Runnable>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(newWorker());
+    }
+    liveWorkers.set(workerCount);
+    return workers;
+  }
+
+  void workerRejected() {
+    workerExited();
+  }
+
+  /**
+   * @return A worker to process inputs on one thread.
+   */
+  abstract Worker newWorker();
+
+  /**
+   * Hold the result of the given input until it is taken. Called with the lock held.
+   */
+  abstract void put(int index, R result);
+
+  /**
+   * Remove and return the next result to consume, if it is ready. Called with the lock held.
+   * 
+   * @param consumed The number of results consumed so far.
+   * @return The result, or null if it is not ready.
+   */
+  abstract R take(int consumed);
+
+  /**
+   * Dispose of every result held. Called with the lock held, once this instance is closed.
+   */
+  abstract void clear();
+
+  /**
+   * Release what the given result holds, as it will not be consumed. Does nothing by default.
+   * 
+   * @param result
+   */
+  void dispose(R result) {
+  }
+
+  private void publish(int index, R result) {
+    synchronized (lock) {
+      if (closed) {
+        dispose(result);
+        return;
+      }
+      put(index, result);
+      lock.notifyAll();
+    }
+  }
+
+  private void workerExited() {
+    liveWorkers.decrementAndGet();
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  private void workerFailed(Throwable t) {
+    synchronized (lock) {
+      workerFailure = t;
+      lock.notifyAll();
+    }
+  }
+
+  private boolean isClosed() {
+    synchronized (lock) {
+      return closed;
+    }
+  }
+
+  /**
+   * Processes inputs until none remain. A worker may keep state from one input to the next.
+   */
+  abstract class Worker implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          window.acquire();
+          if (isClosed()) {
+            return;
+          }
+          int index = nextIndex.getAndIncrement();
+          if (index >= inputs.size()) {
+            window.release();
+            return;
+          }
+          publish(index, process(index, inputs.get(index)));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Error e) {
+        failed();
+        workerFailed(e);
+        throw e;
+      } finally {
+        try {
+          exited();
+        } finally {
+          workerExited();
+        }
+      }
+    }
+
+    /**
+     * Process one input. Failures should be reported in the result rather than thrown.
+     */
+    abstract R process(int index, T input);
+
+    /**
+     * Called when processing throws an <code>Error</code>, before {@link #exited()}. Does nothing
+     * by default.
+     */
+    void failed() {
+    }
+
+    /**
+     * Called once the worker stops, to release its state. Does nothing by default.
+     */
+    void exited() {
+    }
+  }
+
+}
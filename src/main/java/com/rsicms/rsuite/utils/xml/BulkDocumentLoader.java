@@ -0,0 +1,223 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * Parses many files into <code>Document</code>s in parallel, such as an ingestion batch. Each
+ * file is parsed by a builder from the given {@link DocumentBuilderPool}, with RSuite's entity
+ * resolver and the file's URI as its system ID. Files of at least
+ * {@link #getMappedThreshold()} bytes are read through a {@link MappedFileInputStream}.
+ * <p>
+ * Results are returned as each file finishes parsing, rather than in the order of the files. Each
+ * file succeeds or fails on its own: a failure is reported in that file's {@link BulkLoadResult},
+ * and the rest of the load continues.
+ */
+public class BulkDocumentLoader {
+
+  /**
+   * The default size from which files are memory-mapped rather than read.
+   */
+  public static final long DEFAULT_MAPPED_THRESHOLD = 1024 * 1024;
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final DocumentBuilderPool documentBuilderPool;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int parallelism;
+  private long mappedThreshold = DEFAULT_MAPPED_THRESHOLD;
+  private XmlMetricsListener metricsListener;
+
+  /**
+   * Construct an instance with its own pool of daemon threads. Call {@link #shutdown()} when done
+   * with it.
+   * 
+   * @param documentBuilderPool See {@link DocumentBuilderPool#getDefault()}.
+   * @param parallelism The maximum number of files to parse at once.
+   */
+  public BulkDocumentLoader(DocumentBuilderPool documentBuilderPool, int parallelism) {
+    this(documentBuilderPool, newThreadPool(parallelism), parallelism, true);
+  }
+
+  /**
+   * Construct an instance that runs its workers on the given executor. Each load submits up to
+   * <code>parallelism</code> long-running workers, so a bounded executor should have at least
+   * that many threads.
+   * 
+   * @param documentBuilderPool See {@link DocumentBuilderPool#getDefault()}.
+   * @param executor
+   * @param parallelism The maximum number of files to parse at once.
+   */
+  public BulkDocumentLoader(DocumentBuilderPool documentBuilderPool, Executor executor,
+      int parallelism) {
+    this(documentBuilderPool, executor, parallelism, false);
+  }
+
+  private BulkDocumentLoader(DocumentBuilderPool documentBuilderPool, Executor executor,
+      int parallelism, boolean ownsExecutor) {
+    if (documentBuilderPool == null) {
+      throw new IllegalArgumentException("documentBuilderPool may not be null");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    this.documentBuilderPool = documentBuilderPool;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.parallelism = parallelism;
+  }
+
+  private static ExecutorService newThreadPool(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "rsuite-bulk-load-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Start parsing the files in the given directory. Subdirectories are not descended into.
+   * 
+   * @param xmlApiManager
+   * @param directory
+   * @param filter Selects the files to parse, such as by extension. Null may be sent in to parse
+   *        every file.
+   * @return The results, which the caller must consume or close.
+   * @throws IOException Thrown if the directory cannot be listed.
+   */
+  public BulkLoadResults load(XmlApiManager xmlApiManager, File directory, final FileFilter filter)
+      throws IOException {
+    File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && (filter == null || filter.accept(file));
+      }
+    });
+    if (files == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    // Sort so that indexes are stable from one run to the next.
+    Arrays.sort(files);
+    return load(xmlApiManager, Arrays.asList(files));
+  }
+
+  /**
+   * Start parsing the given files.
+   * 
+   * @param xmlApiManager
+   * @param files
+   * @return The results, which the caller must consume or close.
+   */
+  public BulkLoadResults load(XmlApiManager xmlApiManager, Collection<File> files) {
+    BulkLoadResults results = new BulkLoadResults(xmlApiManager, documentBuilderPool,
+        mappedThreshold, getMetricsListener(), new ArrayList<File>(files), parallelism);
+    if (results.size() == 0) {
+      return results;
+    }
+    for (Runnable worker : results.newWorkers()) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        results.workerRejected();
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Parse the given files, passing each result to the given callback as it finishes, on the
+   * calling thread. Returns once every file has been parsed. Should the callback throw, the rest
+   * of the load is abandoned.
+   * 
+   * @param xmlApiManager
+   * @param files
+   * @param callback
+   */
+  public void load(XmlApiManager xmlApiManager, Collection<File> files, BulkLoadCallback callback) {
+    BulkLoadResults results = load(xmlApiManager, files);
+    try {
+      while (results.hasNext()) {
+        callback.onResult(results.next());
+      }
+    } finally {
+      results.close();
+    }
+  }
+
+  /**
+   * @return The size from which files are memory-mapped rather than read.
+   */
+  public long getMappedThreshold() {
+    return mappedThreshold;
+  }
+
+  /**
+   * Set the size from which files are memory-mapped rather than read. Mapping saves copying large
+   * files through a heap buffer, but costs more than reading a small file. The default is
+   * {@link #DEFAULT_MAPPED_THRESHOLD}.
+   * 
+   * @param mappedThreshold Zero maps every file; <code>Long.MAX_VALUE</code> none.
+   */
+  public void setMappedThreshold(long mappedThreshold) {
+    if (mappedThreshold < 0) {
+      throw new IllegalArgumentException("mappedThreshold may not be negative");
+    }
+    this.mappedThreshold = mappedThreshold;
+  }
+
+  /**
+   * @return The listener parses are reported to: the one set on this instance, or else
+   *         {@link XmlMetricsListener#getDefault()}.
+   */
+  public XmlMetricsListener getMetricsListener() {
+    return metricsListener != null ? metricsListener : XmlMetricsListener.getDefault();
+  }
+
+  /**
+   * Set the listener parses are reported to.
+   * 
+   * @param metricsListener Null may be sent in to report to
+   *        {@link XmlMetricsListener#getDefault()}.
+   */
+  public void setMetricsListener(XmlMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * @return The maximum number of files parsed at once.
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Shut down the threads this instance created, if any. Executors given to this instance are left
+   * to the caller.
+   */
+  public void shutdown() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+}
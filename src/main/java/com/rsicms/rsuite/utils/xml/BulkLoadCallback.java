@@ -0,0 +1,16 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * Receives the results of a bulk load, in the order parsing finished, on the thread that started
+ * the load. See {@link BulkDocumentLoader}.
+ */
+public interface BulkLoadCallback {
+
+  /**
+   * Handle the result of parsing one file.
+   * 
+   * @param result
+   */
+  void onResult(BulkLoadResult result);
+
+}
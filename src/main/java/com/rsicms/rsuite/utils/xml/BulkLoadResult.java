@@ -0,0 +1,59 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.File;
+
+import org.w3c.dom.Document;
+
+/**
+ * The outcome of parsing one file of a bulk load. See {@link BulkDocumentLoader}.
+ */
+public class BulkLoadResult {
+
+  private final int index;
+  private final File file;
+  private final Document document;
+  private final Exception exception;
+
+  BulkLoadResult(int index, File file, Document document, Exception exception) {
+    this.index = index;
+    this.file = file;
+    this.document = document;
+    this.exception = exception;
+  }
+
+  /**
+   * @return The position of the file within the load, starting at zero.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The file that was parsed.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return The parsed document, or null if parsing failed.
+   */
+  public Document getDocument() {
+    return document;
+  }
+
+  /**
+   * @return Why parsing failed, or null if it succeeded.
+   */
+  public Exception getException() {
+    return exception;
+  }
+
+  /**
+   * @return True if the file was parsed.
+   */
+  public boolean isSuccess() {
+    return exception == null;
+  }
+
+}
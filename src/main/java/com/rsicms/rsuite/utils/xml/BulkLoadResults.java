@@ -0,0 +1,110 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * The results of a bulk load, in the order parsing finished. {@link #next()} blocks until another
+ * file has been parsed. Workers stay at most a fixed number of documents ahead of the consumer,
+ * which bounds the memory held by documents not yet consumed.
+ * <p>
+ * The caller is responsible for closing this instance if it stops consuming before the end, so
+ * that the workers stop. Instances are returned by {@link BulkDocumentLoader}, and may only be
+ * consumed by one thread.
+ */
+public class BulkLoadResults extends BoundedResults<File, BulkLoadResult> {
+
+  private static Log log = LogFactory.getLog(BulkLoadResults.class);
+
+  private final XmlApiManager xmlApiManager;
+  private final DocumentBuilderPool documentBuilderPool;
+  private final long mappedThreshold;
+  private final XmlMetricsListener metricsListener;
+
+  // Guarded by the lock of the superclass.
+  private final Deque<BulkLoadResult> completed = new ArrayDeque<BulkLoadResult>();
+
+  BulkLoadResults(XmlApiManager xmlApiManager, DocumentBuilderPool documentBuilderPool,
+      long mappedThreshold, XmlMetricsListener metricsListener, List<File> files,
+      int parallelism) {
+    super(files, parallelism, "bulk load");
+    this.xmlApiManager = xmlApiManager;
+    this.documentBuilderPool = documentBuilderPool;
+    this.mappedThreshold = mappedThreshold;
+    this.metricsListener = metricsListener;
+  }
+
+  @Override
+  Worker newWorker() {
+    return new ParseWorker();
+  }
+
+  @Override
+  void put(int index, BulkLoadResult result) {
+    completed.offerLast(result);
+  }
+
+  @Override
+  BulkLoadResult take(int consumed) {
+    return completed.pollFirst();
+  }
+
+  @Override
+  void clear() {
+    completed.clear();
+  }
+
+  private Document parse(File file) throws Exception {
+    long length = file.length();
+    long start = System.nanoTime();
+    boolean parsed = false;
+    InputStream inputStream = null;
+    DocumentBuilder builder = null;
+    try {
+      // Large files are mapped rather than copied through a heap buffer per read.
+      inputStream = length >= mappedThreshold ? new MappedFileInputStream(file, false)
+          : new FileInputStream(file);
+      builder = documentBuilderPool.lease(xmlApiManager);
+      InputSource inputSource = new InputSource(inputStream);
+      // So that relative references, such as to a DTD, resolve against the file.
+      inputSource.setSystemId(file.toURI().toString());
+      Document doc = builder.parse(inputSource);
+      parsed = true;
+      return doc;
+    } finally {
+      IOUtils.closeQuietly(inputStream);
+      documentBuilderPool.release(xmlApiManager, builder);
+      DomUtils.reportParsed(metricsListener, start, length, parsed);
+    }
+  }
+
+  /**
+   * Parses files until none remain.
+   */
+  private class ParseWorker extends Worker {
+    @Override
+    BulkLoadResult process(int index, File file) {
+      try {
+        return new BulkLoadResult(index, file, parse(file), null);
+      } catch (Exception e) {
+        log.debug("Unable to parse " + file, e);
+        return new BulkLoadResult(index, file, null, e);
+      }
+    }
+  }
+
+}
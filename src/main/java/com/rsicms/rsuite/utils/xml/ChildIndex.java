@@ -0,0 +1,131 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.traversal.NodeFilter;
+
+/**
+ * An index of an element's child elements by qualified name, for callers that look up several
+ * children of the same element, such as in a loop over a wide element. The index is built once, on
+ * the first lookup, in one pass over the children; each lookup is then a hash lookup rather than a
+ * scan of the children.
+ * <p>
+ * The index is a snapshot: it does not reflect children added, removed or renamed after it was
+ * built. Call {@link #refresh()} after changing the element's children. Instances are not
+ * thread-safe, which matches the DOM itself.
+ */
+public class ChildIndex {
+
+  private static final DomWalker CHILD_ELEMENTS =
+      new DomWalker().setWhatToShow(NodeFilter.SHOW_ELEMENT).setMaxDepth(1);
+
+  private final Element elem;
+
+  // Null until built.
+  private Map<QName, List<Element>> children;
+
+  /**
+   * Construct an index of the given element's child elements.
+   * 
+   * @param elem
+   */
+  public ChildIndex(Element elem) {
+    if (elem == null) {
+      throw new IllegalArgumentException("elem may not be null");
+    }
+    this.elem = elem;
+  }
+
+  /**
+   * @return The element whose children are indexed.
+   */
+  public Element getElement() {
+    return elem;
+  }
+
+  /**
+   * Discard the index, so that it is rebuilt from the element's current children on the next
+   * lookup.
+   */
+  public void refresh() {
+    children = null;
+  }
+
+  /**
+   * Get the first child element with the given name.
+   * 
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName
+   * @return The first such child, or null when there is none.
+   */
+  public Element getFirstChild(String namespaceUri, String localName) {
+    List<Element> matches =
+        getIndex().get(QNamePool.getDefault().intern(namespaceUri, localName));
+    return matches == null ? null : matches.get(0);
+  }
+
+  /**
+   * Get the child elements with the given name.
+   * 
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName
+   * @return The children with the given name, in document order. The list is empty when there are
+   *         none, and may not be modified.
+   */
+  public List<Element> getChildren(String namespaceUri, String localName) {
+    List<Element> matches =
+        getIndex().get(QNamePool.getDefault().intern(namespaceUri, localName));
+    return matches == null ? Collections.<Element>emptyList()
+        : Collections.unmodifiableList(matches);
+  }
+
+  /**
+   * Get the text content of the first child element with the given name.
+   * 
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName
+   * @return The child's text content, or null when there is no such child.
+   */
+  public String getFirstChildText(String namespaceUri, String localName) {
+    Element child = getFirstChild(namespaceUri, localName);
+    return child == null ? null : child.getTextContent();
+  }
+
+  private Map<QName, List<Element>> getIndex() {
+    if (children == null) {
+      final Map<QName, List<Element>> index = new HashMap<QName, List<Element>>();
+      CHILD_ELEMENTS.walk(elem, new DomVisitor() {
+        @Override
+        public Action startNode(Node node, int depth) {
+          QName qname = getQName(node);
+          List<Element> matches = index.get(qname);
+          if (matches == null) {
+            matches = new ArrayList<Element>(1);
+            index.put(qname, matches);
+          }
+          matches.add((Element) node);
+          return Action.CONTINUE;
+        }
+      });
+      children = index;
+    }
+    return children;
+  }
+
+  /**
+   * Get the name a node is indexed by. Nodes created without namespace support are indexed by
+   * their node name, in no namespace.
+   */
+  private static QName getQName(Node node) {
+    return QNamePool.getDefault().getQName(node);
+  }
+
+}
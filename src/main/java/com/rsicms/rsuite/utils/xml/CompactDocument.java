@@ -0,0 +1,1720 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Comment;
+import org.w3c.dom.DOMConfiguration;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+import org.w3c.dom.TypeInfo;
+import org.w3c.dom.UserDataHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.ext.Locator2;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A compact, immutable representation of a parsed document, for read-only work such as XPath
+ * evaluation or the input of a transform. It holds the document in primitive arrays rather than
+ * an object per node.
+ * <p>
+ * Nodes are numbered in document order, and each node's kind, name, parent, first and last child,
+ * and previous and next sibling are held in primitive arrays, with an element's attributes
+ * numbered directly after it. All text is held in one shared character buffer, and each distinct
+ * name is held once.
+ * <p>
+ * {@link #getDocument()} provides a read-only <code>org.w3c.dom</code> view, which may be used
+ * anywhere a <code>Document</code> is read, such as in a <code>DOMSource</code> or with
+ * {@link XPathUtils}. View nodes are created on demand and are not retained by the document: the
+ * same view object is returned for a node for as long as it is reachable, so views may be compared
+ * by identity, and views no longer in use are garbage collected. Methods that would modify the
+ * document throw a <code>DOMException</code>, as do <code>cloneNode()</code> and the
+ * <code>create</code> methods; use <code>importNode()</code> on a mutable document to copy nodes
+ * out. Entity references are expanded, and element IDs are not tracked, so
+ * <code>getElementById()</code> always returns null.
+ * <p>
+ * Instances are safe to read from multiple threads.
+ */
+public class CompactDocument {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Indexed by node.
+  private byte[] kinds;
+  private int[] names;
+  private int[] parents;
+  private int[] firstChildren;
+  private int[] lastChildren;
+  private int[] previousSiblings;
+  private int[] nextSiblings;
+  // For elements and the document, the index after the last descendant.
+  private int[] textStarts;
+  // For elements, the number of attributes.
+  private int[] textLengths;
+  private int nodeCount;
+
+  private char[] text;
+  private int textLength;
+
+  // Indexed by name.
+  private String[] nameUris;
+  private String[] nameLocals;
+  private String[] namePrefixes;
+  private String[] nameQualified;
+  private int nameCount;
+
+  private String documentUri;
+  private String xmlEncoding;
+  private String xmlVersion = "1.0";
+  private String doctypePublicId;
+  private String doctypeSystemId;
+
+  // The views handed out, weakly referenced so that the document does not retain them. Created on
+  // first use.
+  private volatile AtomicReferenceArray<ViewReference> views;
+  private final ReferenceQueue<NodeView> clearedViews = new ReferenceQueue<NodeView>();
+  private final DocumentView documentView = new DocumentView();
+
+  private CompactDocument() {
+  }
+
+  /**
+   * Parse a document.
+   * 
+   * @param reader A namespace-aware reader, such as one leased from an {@link XMLReaderPool}. Its
+   *        content and lexical handlers are replaced.
+   * @param inputSource
+   * @return The parsed document.
+   * @throws SAXException
+   * @throws IOException
+   */
+  public static CompactDocument parse(XMLReader reader, InputSource inputSource)
+      throws SAXException, IOException {
+    CompactDocument doc = new CompactDocument();
+    Builder builder = doc.new Builder();
+    reader.setContentHandler(builder);
+    reader.setDTDHandler(builder);
+    try {
+      reader.setProperty("http://xml.org/sax/properties/lexical-handler", builder);
+    } catch (SAXException e) {
+      // Comments and CDATA sections are then reported as text, or not at all.
+    }
+    doc.documentUri = inputSource.getSystemId();
+    reader.parse(inputSource);
+    doc.trim();
+    return doc;
+  }
+
+  /**
+   * @return A read-only W3C DOM view of this document.
+   */
+  public Document getDocument() {
+    return documentView;
+  }
+
+  /**
+   * @return The number of nodes, including the document node and attributes.
+   */
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return The number of distinct names.
+   */
+  public int getNameCount() {
+    return nameCount;
+  }
+
+  /**
+   * @return An estimate of the memory this document uses, in bytes, not including view nodes.
+   */
+  public long getEstimatedSize() {
+    long size = (long) nodeCount * (1 + 8 * 4) + (long) textLength * 2;
+    for (int i = 0; i < nameCount; i++) {
+      size += 64 + 2 * nameQualified[i].length();
+    }
+    return size;
+  }
+
+  /*
+   * Storage.
+   */
+
+  private void ensureNodeCapacity() {
+    if (kinds == null) {
+      kinds = new byte[INITIAL_CAPACITY];
+      names = new int[INITIAL_CAPACITY];
+      parents = new int[INITIAL_CAPACITY];
+      firstChildren = new int[INITIAL_CAPACITY];
+      lastChildren = new int[INITIAL_CAPACITY];
+      previousSiblings = new int[INITIAL_CAPACITY];
+      nextSiblings = new int[INITIAL_CAPACITY];
+      textStarts = new int[INITIAL_CAPACITY];
+      textLengths = new int[INITIAL_CAPACITY];
+    } else if (nodeCount == kinds.length) {
+      int capacity = kinds.length + (kinds.length >> 1);
+      kinds = Arrays.copyOf(kinds, capacity);
+      names = Arrays.copyOf(names, capacity);
+      parents = Arrays.copyOf(parents, capacity);
+      firstChildren = Arrays.copyOf(firstChildren, capacity);
+      lastChildren = Arrays.copyOf(lastChildren, capacity);
+      previousSiblings = Arrays.copyOf(previousSiblings, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      textStarts = Arrays.copyOf(textStarts, capacity);
+      textLengths = Arrays.copyOf(textLengths, capacity);
+    }
+  }
+
+  private void appendText(char[] ch, int start, int length) {
+    if (text == null) {
+      text = new char[Math.max(INITIAL_CAPACITY * 8, length)];
+    } else if (textLength + length > text.length) {
+      text = Arrays.copyOf(text, Math.max(textLength + length, text.length + (text.length >> 1)));
+    }
+    System.arraycopy(ch, start, text, textLength, length);
+    textLength += length;
+  }
+
+  private void trim() {
+    kinds = Arrays.copyOf(kinds, nodeCount);
+    names = Arrays.copyOf(names, nodeCount);
+    parents = Arrays.copyOf(parents, nodeCount);
+    firstChildren = Arrays.copyOf(firstChildren, nodeCount);
+    lastChildren = Arrays.copyOf(lastChildren, nodeCount);
+    previousSiblings = Arrays.copyOf(previousSiblings, nodeCount);
+    nextSiblings = Arrays.copyOf(nextSiblings, nodeCount);
+    textStarts = Arrays.copyOf(textStarts, nodeCount);
+    textLengths = Arrays.copyOf(textLengths, nodeCount);
+    text = text == null ? new char[0] : Arrays.copyOf(text, textLength);
+    nameUris = Arrays.copyOf(nameUris, nameCount);
+    nameLocals = Arrays.copyOf(nameLocals, nameCount);
+    namePrefixes = Arrays.copyOf(namePrefixes, nameCount);
+    nameQualified = Arrays.copyOf(nameQualified, nameCount);
+  }
+
+  private String getText(int node) {
+    return new String(text, textStarts[node], textLengths[node]);
+  }
+
+  private boolean isElement(int node) {
+    return kinds[node] == Node.ELEMENT_NODE;
+  }
+
+  private boolean isText(int node) {
+    return kinds[node] == Node.TEXT_NODE || kinds[node] == Node.CDATA_SECTION_NODE;
+  }
+
+  /**
+   * @return The index after the last descendant of the given node.
+   */
+  private int getEnd(int node) {
+    if (kinds[node] == Node.ELEMENT_NODE || kinds[node] == Node.DOCUMENT_NODE) {
+      return textStarts[node];
+    }
+    return node + 1;
+  }
+
+  private int getDocumentElementIndex() {
+    for (int child = firstChildren[0]; child >= 0; child = nextSiblings[child]) {
+      if (isElement(child)) {
+        return child;
+      }
+    }
+    return -1;
+  }
+
+  private int findAttribute(int elem, String namespaceUri, String localName, String qualified) {
+    int count = textLengths[elem];
+    for (int attr = elem + 1; attr <= elem + count; attr++) {
+      int name = names[attr];
+      if (qualified != null) {
+        if (qualified.equals(nameQualified[name])) {
+          return attr;
+        }
+      } else if (localName.equals(nameLocals[name])
+          && nameUris[name].equals(namespaceUri == null ? "" : namespaceUri)) {
+        return attr;
+      }
+    }
+    return -1;
+  }
+
+  private NodeView view(int node) {
+    if (node < 0) {
+      return null;
+    }
+    if (node == 0) {
+      return documentView;
+    }
+    AtomicReferenceArray<ViewReference> all = views;
+    if (all == null) {
+      synchronized (this) {
+        all = views;
+        if (all == null) {
+          all = new AtomicReferenceArray<ViewReference>(nodeCount);
+          views = all;
+        }
+      }
+    }
+    purgeClearedViews(all);
+    while (true) {
+      ViewReference reference = all.get(node);
+      NodeView view = reference == null ? null : reference.get();
+      if (view != null) {
+        return view;
+      }
+      view = newView(node);
+      // Should another thread get there first, return its view instead.
+      if (all.compareAndSet(node, reference, new ViewReference(view, node, clearedViews))) {
+        return view;
+      }
+    }
+  }
+
+  private void purgeClearedViews(AtomicReferenceArray<ViewReference> all) {
+    Reference<? extends NodeView> cleared;
+    while ((cleared = clearedViews.poll()) != null) {
+      ViewReference reference = (ViewReference) cleared;
+      all.compareAndSet(reference.node, reference, null);
+    }
+  }
+
+  private NodeView newView(int node) {
+    switch (kinds[node]) {
+      case Node.ELEMENT_NODE:
+        return new ElementView(node);
+      case Node.ATTRIBUTE_NODE:
+        return new AttrView(node);
+      case Node.TEXT_NODE:
+        return new TextView(node);
+      case Node.CDATA_SECTION_NODE:
+        return new CDATASectionView(node);
+      case Node.COMMENT_NODE:
+        return new CommentView(node);
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        return new ProcessingInstructionView(node);
+      case Node.DOCUMENT_TYPE_NODE:
+        return new DocumentTypeView(node);
+      default:
+        throw new IllegalStateException("Unexpected node kind " + kinds[node]);
+    }
+  }
+
+  private static DOMException readOnly() {
+    return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR,
+        "A compact document may not be modified");
+  }
+
+  private static DOMException notSupported() {
+    return new DOMException(DOMException.NOT_SUPPORTED_ERR,
+        "Not supported by a compact document; import the node into a mutable document instead");
+  }
+
+  /**
+   * A view handed out for a node.
+   */
+  private static class ViewReference extends WeakReference<NodeView> {
+    private final int node;
+
+    ViewReference(NodeView view, int node, ReferenceQueue<NodeView> queue) {
+      super(view, queue);
+      this.node = node;
+    }
+  }
+
+  /**
+   * Builds the document from SAX events.
+   */
+  private class Builder extends DefaultHandler implements LexicalHandler {
+    private final Map<String, int[]> nameIds = new HashMap<String, int[]>();
+    // The open nodes, and the last child appended to each.
+    private int[] open = new int[64];
+    private int[] lastChild = new int[64];
+    private int depth;
+    private final List<String> pendingPrefixes = new ArrayList<String>();
+    private final List<String> pendingUris = new ArrayList<String>();
+    // The text node that characters may be appended to, or -1.
+    private int openText = -1;
+    private boolean inCdata;
+    private boolean inDtd;
+    private Locator locator;
+
+    private Builder() {
+      nameUris = new String[64];
+      nameLocals = new String[64];
+      namePrefixes = new String[64];
+      nameQualified = new String[64];
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+      this.locator = locator;
+    }
+
+    @Override
+    public void startDocument() {
+      ensureNodeCapacity();
+      appendNode(Node.DOCUMENT_NODE, -1);
+      depth = 0;
+      open[0] = 0;
+      lastChild[0] = -1;
+    }
+
+    @Override
+    public void endDocument() {
+      textStarts[0] = nodeCount;
+      if (locator instanceof Locator2) {
+        Locator2 locator2 = (Locator2) locator;
+        xmlEncoding = locator2.getEncoding();
+        if (locator2.getXMLVersion() != null) {
+          xmlVersion = locator2.getXMLVersion();
+        }
+      }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+      pendingPrefixes.add(prefix);
+      pendingUris.add(uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+      openText = -1;
+      int elem = appendNode(Node.ELEMENT_NODE, getName(uri, localName, qName));
+      int attrCount = 0;
+      for (int i = 0; i < pendingPrefixes.size(); i++) {
+        String prefix = pendingPrefixes.get(i);
+        int name = prefix.length() == 0
+            ? getName(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE,
+                XMLConstants.XMLNS_ATTRIBUTE)
+            : getName(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix,
+                XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix);
+        appendAttribute(elem, name, pendingUris.get(i));
+        attrCount++;
+      }
+      pendingPrefixes.clear();
+      pendingUris.clear();
+      for (int i = 0; i < atts.getLength(); i++) {
+        appendAttribute(elem, getName(atts.getURI(i), atts.getLocalName(i), atts.getQName(i)),
+            atts.getValue(i));
+        attrCount++;
+      }
+      textLengths[elem] = attrCount;
+
+      if (++depth == open.length) {
+        open = Arrays.copyOf(open, depth * 2);
+        lastChild = Arrays.copyOf(lastChild, depth * 2);
+      }
+      open[depth] = elem;
+      lastChild[depth] = -1;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      openText = -1;
+      textStarts[open[depth]] = nodeCount;
+      depth--;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (inDtd || length == 0) {
+        return;
+      }
+      if (openText < 0) {
+        openText = appendNode(inCdata ? Node.CDATA_SECTION_NODE : Node.TEXT_NODE, -1);
+        textStarts[openText] = textLength;
+      }
+      appendText(ch, start, length);
+      textLengths[openText] += length;
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+      characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) {
+      if (inDtd) {
+        return;
+      }
+      openText = -1;
+      int pi = appendNode(Node.PROCESSING_INSTRUCTION_NODE, getName("", target, target));
+      setText(pi, data == null ? "" : data);
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) {
+      if (inDtd) {
+        return;
+      }
+      openText = -1;
+      int comment = appendNode(Node.COMMENT_NODE, -1);
+      textStarts[comment] = textLength;
+      textLengths[comment] = length;
+      appendText(ch, start, length);
+    }
+
+    @Override
+    public void startCDATA() {
+      openText = -1;
+      inCdata = true;
+    }
+
+    @Override
+    public void endCDATA() {
+      openText = -1;
+      inCdata = false;
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+      openText = -1;
+      appendNode(Node.DOCUMENT_TYPE_NODE, getName("", name, name));
+      doctypePublicId = publicId;
+      doctypeSystemId = systemId;
+      inDtd = true;
+    }
+
+    @Override
+    public void endDTD() {
+      inDtd = false;
+    }
+
+    @Override
+    public void startEntity(String name) {
+      // Entity references are expanded.
+    }
+
+    @Override
+    public void endEntity(String name) {
+      // Entity references are expanded.
+    }
+
+    private int appendNode(int kind, int name) {
+      ensureNodeCapacity();
+      int node = nodeCount++;
+      kinds[node] = (byte) kind;
+      names[node] = name;
+      firstChildren[node] = -1;
+      lastChildren[node] = -1;
+      nextSiblings[node] = -1;
+      textStarts[node] = 0;
+      textLengths[node] = 0;
+      if (node == 0) {
+        parents[node] = -1;
+        previousSiblings[node] = -1;
+        return node;
+      }
+      int parent = open[depth];
+      parents[node] = parent;
+      previousSiblings[node] = lastChild[depth];
+      if (lastChild[depth] < 0) {
+        firstChildren[parent] = node;
+      } else {
+        nextSiblings[lastChild[depth]] = node;
+      }
+      lastChild[depth] = node;
+      lastChildren[parent] = node;
+      return node;
+    }
+
+    private void appendAttribute(int elem, int name, String value) {
+      ensureNodeCapacity();
+      int attr = nodeCount++;
+      kinds[attr] = Node.ATTRIBUTE_NODE;
+      names[attr] = name;
+      parents[attr] = elem;
+      firstChildren[attr] = -1;
+      lastChildren[attr] = -1;
+      previousSiblings[attr] = -1;
+      nextSiblings[attr] = -1;
+      setText(attr, value);
+    }
+
+    private void setText(int node, String value) {
+      textStarts[node] = textLength;
+      textLengths[node] = value.length();
+      if (text == null || textLength + value.length() > text.length) {
+        appendText(value.toCharArray(), 0, value.length());
+      } else {
+        value.getChars(0, value.length(), text, textLength);
+        textLength += value.length();
+      }
+    }
+
+    /**
+     * Get the ID of the given name, adding it if it is new.
+     */
+    private int getName(String uri, String localName, String qName) {
+      if (uri == null) {
+        uri = "";
+      }
+      if (qName == null || qName.length() == 0) {
+        qName = localName;
+      }
+      if (localName == null || localName.length() == 0) {
+        int colon = qName.indexOf(':');
+        localName = colon < 0 ? qName : qName.substring(colon + 1);
+      }
+      int[] ids = nameIds.get(qName);
+      if (ids != null) {
+        for (int id : ids) {
+          if (nameUris[id].equals(uri) && nameLocals[id].equals(localName)) {
+            return id;
+          }
+        }
+      }
+      if (nameCount == nameUris.length) {
+        int capacity = nameCount * 2;
+        nameUris = Arrays.copyOf(nameUris, capacity);
+        nameLocals = Arrays.copyOf(nameLocals, capacity);
+        namePrefixes = Arrays.copyOf(namePrefixes, capacity);
+        nameQualified = Arrays.copyOf(nameQualified, capacity);
+      }
+      int id = nameCount++;
+      int colon = qName.indexOf(':');
+      nameUris[id] = uri;
+      nameLocals[id] = localName;
+      namePrefixes[id] = colon < 0 ? null : qName.substring(0, colon);
+      nameQualified[id] = qName;
+      if (ids == null) {
+        ids = new int[] {id};
+      } else {
+        ids = Arrays.copyOf(ids, ids.length + 1);
+        ids[ids.length - 1] = id;
+      }
+      nameIds.put(qName, ids);
+      return id;
+    }
+  }
+
+  /*
+   * The read-only W3C DOM view.
+   */
+
+  private abstract class NodeView implements Node {
+    protected final int node;
+    // Created on first use.
+    private Map<String, Object> userData;
+
+    private NodeView(int node) {
+      this.node = node;
+    }
+
+    @Override
+    public String getNodeName() {
+      return nameQualified[names[node]];
+    }
+
+    @Override
+    public String getNodeValue() {
+      return null;
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) {
+      throw readOnly();
+    }
+
+    @Override
+    public short getNodeType() {
+      return kinds[node];
+    }
+
+    @Override
+    public Node getParentNode() {
+      return view(parents[node]);
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+      return new ChildList(node);
+    }
+
+    @Override
+    public Node getFirstChild() {
+      return view(firstChildren[node]);
+    }
+
+    @Override
+    public Node getLastChild() {
+      return view(lastChildren[node]);
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+      return view(previousSiblings[node]);
+    }
+
+    @Override
+    public Node getNextSibling() {
+      return view(nextSiblings[node]);
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+      return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+      return documentView;
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node appendChild(Node newChild) {
+      throw readOnly();
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+      return firstChildren[node] >= 0;
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+      throw notSupported();
+    }
+
+    @Override
+    public void normalize() {
+      // Adjacent text is already merged.
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+      return documentView.getImplementation().hasFeature(feature, version);
+    }
+
+    @Override
+    public String getNamespaceURI() {
+      return null;
+    }
+
+    @Override
+    public String getPrefix() {
+      return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+      throw readOnly();
+    }
+
+    @Override
+    public String getLocalName() {
+      return null;
+    }
+
+    @Override
+    public boolean hasAttributes() {
+      return false;
+    }
+
+    @Override
+    public String getBaseURI() {
+      return documentUri;
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) {
+      if (other == this) {
+        return 0;
+      }
+      if (!(other instanceof NodeView)
+          || ((NodeView) other).getCompactDocument() != getCompactDocument()) {
+        return (short) (DOCUMENT_POSITION_DISCONNECTED | DOCUMENT_POSITION_IMPLEMENTATION_SPECIFIC
+            | (System.identityHashCode(other) < System.identityHashCode(this)
+                ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING));
+      }
+      int otherNode = ((NodeView) other).node;
+      if (otherNode < node && node < getEnd(otherNode)) {
+        return DOCUMENT_POSITION_CONTAINS | DOCUMENT_POSITION_PRECEDING;
+      }
+      if (node < otherNode && otherNode < getEnd(node)) {
+        return DOCUMENT_POSITION_CONTAINED_BY | DOCUMENT_POSITION_FOLLOWING;
+      }
+      return otherNode < node ? DOCUMENT_POSITION_PRECEDING : DOCUMENT_POSITION_FOLLOWING;
+    }
+
+    @Override
+    public String getTextContent() {
+      return getNodeValue();
+    }
+
+    @Override
+    public void setTextContent(String textContent) {
+      throw readOnly();
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+      return other == this;
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+      if (namespaceURI == null || namespaceURI.length() == 0) {
+        return null;
+      }
+      for (int elem = getNamespaceElement(); elem > 0; elem = parents[elem]) {
+        int name = names[elem];
+        if (namespaceURI.equals(nameUris[name]) && namePrefixes[name] != null) {
+          return namePrefixes[name];
+        }
+        for (int attr = elem + 1; attr <= elem + textLengths[elem]; attr++) {
+          int attrName = names[attr];
+          if (XMLConstants.XMLNS_ATTRIBUTE.equals(namePrefixes[attrName])
+              && namespaceURI.equals(getText(attr))) {
+            return nameLocals[attrName];
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+      String uri = lookupNamespaceURI(null);
+      return uri == null ? namespaceURI == null || namespaceURI.length() == 0
+          : uri.equals(namespaceURI);
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+      if (prefix != null && prefix.length() == 0) {
+        prefix = null;
+      }
+      for (int elem = getNamespaceElement(); elem > 0; elem = parents[elem]) {
+        int name = names[elem];
+        if (nameUris[name].length() > 0 && (prefix == null ? namePrefixes[name] == null
+            : prefix.equals(namePrefixes[name]))) {
+          return nameUris[name];
+        }
+        for (int attr = elem + 1; attr <= elem + textLengths[elem]; attr++) {
+          int attrName = names[attr];
+          if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(nameUris[attrName])) {
+            continue;
+          }
+          boolean matches = prefix == null ? namePrefixes[attrName] == null
+              : XMLConstants.XMLNS_ATTRIBUTE.equals(namePrefixes[attrName])
+                  && prefix.equals(nameLocals[attrName]);
+          if (matches) {
+            return textLengths[attr] == 0 ? null : getText(attr);
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return The element whose in-scope namespaces apply to this node, or -1.
+     */
+    protected int getNamespaceElement() {
+      int parent = parents[node];
+      return parent > 0 && isElement(parent) ? parent : -1;
+    }
+
+    @Override
+    public boolean isEqualNode(Node other) {
+      return CompactDocument.isEqualNode(this, other);
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+      return null;
+    }
+
+    @Override
+    public synchronized Object setUserData(String key, Object data, UserDataHandler handler) {
+      if (userData == null) {
+        userData = new HashMap<String, Object>(4);
+      }
+      return data == null ? userData.remove(key) : userData.put(key, data);
+    }
+
+    @Override
+    public synchronized Object getUserData(String key) {
+      return userData == null ? null : userData.get(key);
+    }
+
+    private CompactDocument getCompactDocument() {
+      return CompactDocument.this;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+  }
+
+  private class DocumentView extends NodeView implements Document {
+    private DOMImplementation implementation;
+
+    private DocumentView() {
+      super(0);
+    }
+
+    @Override
+    public String getNodeName() {
+      return "#document";
+    }
+
+    @Override
+    public Node getParentNode() {
+      return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+      return null;
+    }
+
+    @Override
+    public String getTextContent() {
+      return null;
+    }
+
+    @Override
+    protected int getNamespaceElement() {
+      return getDocumentElementIndex();
+    }
+
+    @Override
+    public DocumentType getDoctype() {
+      for (int child = firstChildren[0]; child >= 0; child = nextSiblings[child]) {
+        if (kinds[child] == Node.DOCUMENT_TYPE_NODE) {
+          return (DocumentType) view(child);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public synchronized DOMImplementation getImplementation() {
+      if (implementation == null) {
+        try {
+          implementation = DomUtils.newDocument().getImplementation();
+        } catch (ParserConfigurationException e) {
+          throw new DOMException(DOMException.NOT_SUPPORTED_ERR, e.getMessage());
+        }
+      }
+      return implementation;
+    }
+
+    @Override
+    public Element getDocumentElement() {
+      return (Element) view(getDocumentElementIndex());
+    }
+
+    @Override
+    public Element createElement(String tagName) {
+      throw notSupported();
+    }
+
+    @Override
+    public DocumentFragment createDocumentFragment() {
+      throw notSupported();
+    }
+
+    @Override
+    public Text createTextNode(String data) {
+      throw notSupported();
+    }
+
+    @Override
+    public Comment createComment(String data) {
+      throw notSupported();
+    }
+
+    @Override
+    public CDATASection createCDATASection(String data) {
+      throw notSupported();
+    }
+
+    @Override
+    public ProcessingInstruction createProcessingInstruction(String target, String data) {
+      throw notSupported();
+    }
+
+    @Override
+    public Attr createAttribute(String name) {
+      throw notSupported();
+    }
+
+    @Override
+    public EntityReference createEntityReference(String name) {
+      throw notSupported();
+    }
+
+    @Override
+    public NodeList getElementsByTagName(String tagname) {
+      return new ElementList(0, null, null, tagname);
+    }
+
+    @Override
+    public Node importNode(Node importedNode, boolean deep) {
+      throw notSupported();
+    }
+
+    @Override
+    public Element createElementNS(String namespaceURI, String qualifiedName) {
+      throw notSupported();
+    }
+
+    @Override
+    public Attr createAttributeNS(String namespaceURI, String qualifiedName) {
+      throw notSupported();
+    }
+
+    @Override
+    public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+      return new ElementList(0, namespaceURI, localName, null);
+    }
+
+    @Override
+    public Element getElementById(String elementId) {
+      return null;
+    }
+
+    @Override
+    public String getInputEncoding() {
+      return xmlEncoding;
+    }
+
+    @Override
+    public String getXmlEncoding() {
+      return xmlEncoding;
+    }
+
+    @Override
+    public boolean getXmlStandalone() {
+      return false;
+    }
+
+    @Override
+    public void setXmlStandalone(boolean xmlStandalone) {
+      throw readOnly();
+    }
+
+    @Override
+    public String getXmlVersion() {
+      return xmlVersion;
+    }
+
+    @Override
+    public void setXmlVersion(String xmlVersion) {
+      throw readOnly();
+    }
+
+    @Override
+    public boolean getStrictErrorChecking() {
+      return true;
+    }
+
+    @Override
+    public void setStrictErrorChecking(boolean strictErrorChecking) {
+      // Nothing to check.
+    }
+
+    @Override
+    public String getDocumentURI() {
+      return documentUri;
+    }
+
+    @Override
+    public void setDocumentURI(String documentURI) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node adoptNode(Node source) {
+      throw readOnly();
+    }
+
+    @Override
+    public DOMConfiguration getDomConfig() {
+      throw notSupported();
+    }
+
+    @Override
+    public void normalizeDocument() {
+      // Adjacent text is already merged.
+    }
+
+    @Override
+    public Node renameNode(Node n, String namespaceURI, String qualifiedName) {
+      throw readOnly();
+    }
+  }
+
+  private class ElementView extends NodeView implements Element {
+    private ElementView(int node) {
+      super(node);
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+      return new AttributeMap(node);
+    }
+
+    @Override
+    public String getNamespaceURI() {
+      String uri = nameUris[names[node]];
+      return uri.length() == 0 ? null : uri;
+    }
+
+    @Override
+    public String getPrefix() {
+      return namePrefixes[names[node]];
+    }
+
+    @Override
+    public String getLocalName() {
+      return nameLocals[names[node]];
+    }
+
+    @Override
+    public boolean hasAttributes() {
+      return textLengths[node] > 0;
+    }
+
+    @Override
+    protected int getNamespaceElement() {
+      return node;
+    }
+
+    @Override
+    public String getTextContent() {
+      int end = getEnd(node);
+      int first = -1;
+      int count = 0;
+      for (int i = node + 1; i < end; i++) {
+        if (isText(i)) {
+          if (first < 0) {
+            first = i;
+          }
+          count++;
+        }
+      }
+      if (count == 0) {
+        return "";
+      }
+      if (count == 1) {
+        return getText(first);
+      }
+      StringBuilder content = new StringBuilder();
+      for (int i = first; i < end; i++) {
+        if (isText(i)) {
+          content.append(text, textStarts[i], textLengths[i]);
+        }
+      }
+      return content.toString();
+    }
+
+    @Override
+    public String getTagName() {
+      return getNodeName();
+    }
+
+    @Override
+    public String getAttribute(String name) {
+      int attr = findAttribute(node, null, null, name);
+      return attr < 0 ? "" : getText(attr);
+    }
+
+    @Override
+    public void setAttribute(String name, String value) {
+      throw readOnly();
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      throw readOnly();
+    }
+
+    @Override
+    public Attr getAttributeNode(String name) {
+      return (Attr) view(findAttribute(node, null, null, name));
+    }
+
+    @Override
+    public Attr setAttributeNode(Attr newAttr) {
+      throw readOnly();
+    }
+
+    @Override
+    public Attr removeAttributeNode(Attr oldAttr) {
+      throw readOnly();
+    }
+
+    @Override
+    public NodeList getElementsByTagName(String name) {
+      return new ElementList(node, null, null, name);
+    }
+
+    @Override
+    public String getAttributeNS(String namespaceURI, String localName) {
+      int attr = findAttribute(node, namespaceURI, localName, null);
+      return attr < 0 ? "" : getText(attr);
+    }
+
+    @Override
+    public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+      throw readOnly();
+    }
+
+    @Override
+    public void removeAttributeNS(String namespaceURI, String localName) {
+      throw readOnly();
+    }
+
+    @Override
+    public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+      return (Attr) view(findAttribute(node, namespaceURI, localName, null));
+    }
+
+    @Override
+    public Attr setAttributeNodeNS(Attr newAttr) {
+      throw readOnly();
+    }
+
+    @Override
+    public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+      return new ElementList(node, namespaceURI, localName, null);
+    }
+
+    @Override
+    public boolean hasAttribute(String name) {
+      return findAttribute(node, null, null, name) >= 0;
+    }
+
+    @Override
+    public boolean hasAttributeNS(String namespaceURI, String localName) {
+      return findAttribute(node, namespaceURI, localName, null) >= 0;
+    }
+
+    @Override
+    public TypeInfo getSchemaTypeInfo() {
+      return null;
+    }
+
+    @Override
+    public void setIdAttribute(String name, boolean isId) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+      throw readOnly();
+    }
+
+    @Override
+    public void setIdAttributeNode(Attr idAttr, boolean isId) {
+      throw readOnly();
+    }
+  }
+
+  private class AttrView extends NodeView implements Attr {
+    private AttrView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeValue() {
+      return getText(node);
+    }
+
+    @Override
+    public Node getParentNode() {
+      return null;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+      String uri = nameUris[names[node]];
+      return uri.length() == 0 ? null : uri;
+    }
+
+    @Override
+    public String getPrefix() {
+      return namePrefixes[names[node]];
+    }
+
+    @Override
+    public String getLocalName() {
+      return nameLocals[names[node]];
+    }
+
+    @Override
+    protected int getNamespaceElement() {
+      return parents[node];
+    }
+
+    @Override
+    public String getName() {
+      return getNodeName();
+    }
+
+    @Override
+    public boolean getSpecified() {
+      return true;
+    }
+
+    @Override
+    public String getValue() {
+      return getText(node);
+    }
+
+    @Override
+    public void setValue(String value) {
+      throw readOnly();
+    }
+
+    @Override
+    public Element getOwnerElement() {
+      return (Element) view(parents[node]);
+    }
+
+    @Override
+    public TypeInfo getSchemaTypeInfo() {
+      return null;
+    }
+
+    @Override
+    public boolean isId() {
+      return false;
+    }
+  }
+
+  private abstract class CharacterDataView extends NodeView implements CharacterData {
+    private CharacterDataView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeValue() {
+      return getText(node);
+    }
+
+    @Override
+    public String getData() {
+      return getText(node);
+    }
+
+    @Override
+    public void setData(String data) {
+      throw readOnly();
+    }
+
+    @Override
+    public int getLength() {
+      return textLengths[node];
+    }
+
+    @Override
+    public String substringData(int offset, int count) {
+      if (offset < 0 || count < 0 || offset > textLengths[node]) {
+        throw new DOMException(DOMException.INDEX_SIZE_ERR, "Invalid offset or count");
+      }
+      return new String(text, textStarts[node] + offset,
+          Math.min(count, textLengths[node] - offset));
+    }
+
+    @Override
+    public void appendData(String arg) {
+      throw readOnly();
+    }
+
+    @Override
+    public void insertData(int offset, String arg) {
+      throw readOnly();
+    }
+
+    @Override
+    public void deleteData(int offset, int count) {
+      throw readOnly();
+    }
+
+    @Override
+    public void replaceData(int offset, int count, String arg) {
+      throw readOnly();
+    }
+  }
+
+  private class TextView extends CharacterDataView implements Text {
+    private TextView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeName() {
+      return "#text";
+    }
+
+    @Override
+    public Text splitText(int offset) {
+      throw readOnly();
+    }
+
+    @Override
+    public boolean isElementContentWhitespace() {
+      return false;
+    }
+
+    @Override
+    public String getWholeText() {
+      int parent = parents[node];
+      StringBuilder whole = new StringBuilder();
+      int run = -1;
+      for (int child = firstChildren[parent]; child >= 0; child = nextSiblings[child]) {
+        if (!isText(child)) {
+          if (run >= 0) {
+            break;
+          }
+          whole.setLength(0);
+          continue;
+        }
+        whole.append(text, textStarts[child], textLengths[child]);
+        if (child == node) {
+          run = child;
+        }
+      }
+      return whole.toString();
+    }
+
+    @Override
+    public Text replaceWholeText(String content) {
+      throw readOnly();
+    }
+  }
+
+  private class CDATASectionView extends TextView implements CDATASection {
+    private CDATASectionView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeName() {
+      return "#cdata-section";
+    }
+  }
+
+  private class CommentView extends CharacterDataView implements Comment {
+    private CommentView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeName() {
+      return "#comment";
+    }
+  }
+
+  private class ProcessingInstructionView extends NodeView implements ProcessingInstruction {
+    private ProcessingInstructionView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getNodeValue() {
+      return getText(node);
+    }
+
+    @Override
+    public String getTarget() {
+      return getNodeName();
+    }
+
+    @Override
+    public String getData() {
+      return getText(node);
+    }
+
+    @Override
+    public void setData(String data) {
+      throw readOnly();
+    }
+  }
+
+  private class DocumentTypeView extends NodeView implements DocumentType {
+    private DocumentTypeView(int node) {
+      super(node);
+    }
+
+    @Override
+    public String getTextContent() {
+      return null;
+    }
+
+    @Override
+    public String getName() {
+      return getNodeName();
+    }
+
+    @Override
+    public NamedNodeMap getEntities() {
+      return new AttributeMap(-1);
+    }
+
+    @Override
+    public NamedNodeMap getNotations() {
+      return new AttributeMap(-1);
+    }
+
+    @Override
+    public String getPublicId() {
+      return doctypePublicId;
+    }
+
+    @Override
+    public String getSystemId() {
+      return doctypeSystemId;
+    }
+
+    @Override
+    public String getInternalSubset() {
+      return null;
+    }
+  }
+
+  /**
+   * The children of a node. Sequential access by index takes constant time.
+   */
+  private class ChildList implements NodeList {
+    private final int parent;
+    private int length = -1;
+    // The last node returned, and its index.
+    private int lastNode = -1;
+    private int lastIndex = -1;
+
+    private ChildList(int parent) {
+      this.parent = parent;
+    }
+
+    @Override
+    public synchronized Node item(int index) {
+      if (index < 0) {
+        return null;
+      }
+      int child;
+      int i;
+      if (lastIndex >= 0 && lastIndex <= index) {
+        child = lastNode;
+        i = lastIndex;
+      } else {
+        child = firstChildren[parent];
+        i = 0;
+      }
+      for (; child >= 0 && i < index; i++) {
+        child = nextSiblings[child];
+      }
+      if (child < 0) {
+        return null;
+      }
+      lastNode = child;
+      lastIndex = index;
+      return view(child);
+    }
+
+    @Override
+    public synchronized int getLength() {
+      if (length < 0) {
+        int count = 0;
+        for (int child = firstChildren[parent]; child >= 0; child = nextSiblings[child]) {
+          count++;
+        }
+        length = count;
+      }
+      return length;
+    }
+  }
+
+  /**
+   * The descendant elements of a node with a given name, in document order.
+   */
+  private class ElementList implements NodeList {
+    private final int[] elements;
+
+    private ElementList(int root, String namespaceUri, String localName, String qualified) {
+      int end = getEnd(root);
+      int[] found = new int[16];
+      int count = 0;
+      for (int i = root + 1; i < end; i++) {
+        if (!isElement(i)) {
+          continue;
+        }
+        int name = names[i];
+        boolean matches;
+        if (qualified != null) {
+          matches = "*".equals(qualified) || qualified.equals(nameQualified[name]);
+        } else {
+          matches = ("*".equals(localName) || nameLocals[name].equals(localName))
+              && ("*".equals(namespaceUri)
+                  || nameUris[name].equals(namespaceUri == null ? "" : namespaceUri));
+        }
+        if (matches) {
+          if (count == found.length) {
+            found = Arrays.copyOf(found, count * 2);
+          }
+          found[count++] = i;
+        }
+      }
+      this.elements = Arrays.copyOf(found, count);
+    }
+
+    @Override
+    public Node item(int index) {
+      return index < 0 || index >= elements.length ? null : view(elements[index]);
+    }
+
+    @Override
+    public int getLength() {
+      return elements.length;
+    }
+  }
+
+  /**
+   * The attributes of an element.
+   */
+  private class AttributeMap implements NamedNodeMap {
+    // -1 for an empty map.
+    private final int elem;
+
+    private AttributeMap(int elem) {
+      this.elem = elem;
+    }
+
+    @Override
+    public Node getNamedItem(String name) {
+      return elem < 0 ? null : view(findAttribute(elem, null, null, name));
+    }
+
+    @Override
+    public Node setNamedItem(Node arg) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node removeNamedItem(String name) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node item(int index) {
+      return index < 0 || index >= getLength() ? null : view(elem + 1 + index);
+    }
+
+    @Override
+    public int getLength() {
+      return elem < 0 ? 0 : textLengths[elem];
+    }
+
+    @Override
+    public Node getNamedItemNS(String namespaceURI, String localName) {
+      return elem < 0 ? null : view(findAttribute(elem, namespaceURI, localName, null));
+    }
+
+    @Override
+    public Node setNamedItemNS(Node arg) {
+      throw readOnly();
+    }
+
+    @Override
+    public Node removeNamedItemNS(String namespaceURI, String localName) {
+      throw readOnly();
+    }
+  }
+
+  /**
+   * Compare two nodes per <code>Node.isEqualNode()</code>.
+   */
+  private static boolean isEqualNode(Node a, Node b) {
+    if (b == null || a.getNodeType() != b.getNodeType()) {
+      return false;
+    }
+    if (!equals(a.getNodeName(), b.getNodeName()) || !equals(a.getLocalName(), b.getLocalName())
+        || !equals(a.getNamespaceURI(), b.getNamespaceURI())
+        || !equals(a.getPrefix(), b.getPrefix()) || !equals(a.getNodeValue(), b.getNodeValue())) {
+      return false;
+    }
+    NamedNodeMap aAttrs = a.getAttributes();
+    NamedNodeMap bAttrs = b.getAttributes();
+    if (aAttrs != null || bAttrs != null) {
+      if (aAttrs == null || bAttrs == null || aAttrs.getLength() != bAttrs.getLength()) {
+        return false;
+      }
+      for (int i = 0; i < aAttrs.getLength(); i++) {
+        Node aAttr = aAttrs.item(i);
+        Node bAttr = aAttr.getLocalName() == null ? bAttrs.getNamedItem(aAttr.getNodeName())
+            : bAttrs.getNamedItemNS(aAttr.getNamespaceURI(), aAttr.getLocalName());
+        if (bAttr == null || !equals(aAttr.getNodeValue(), bAttr.getNodeValue())) {
+          return false;
+        }
+      }
+    }
+    Node aChild = a.getFirstChild();
+    Node bChild = b.getFirstChild();
+    while (aChild != null && bChild != null) {
+      if (!isEqualNode(aChild, bChild)) {
+        return false;
+      }
+      aChild = aChild.getNextSibling();
+      bChild = bChild.getNextSibling();
+    }
+    return aChild == null && bChild == null;
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
@@ -0,0 +1,204 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.EntityResolver;
+
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * A pool of the non-validating <code>DocumentBuilder</code>s RSuite constructs, so that batch jobs
+ * parsing many small documents need not construct a builder per document. Builders are pooled per
+ * <code>XmlApiManager</code>, and <code>reset()</code> when released. Callers that set an error
+ * handler on a leased builder must set it on every lease, as the reset discards it.
+ * <p>
+ * A builder may not be used by more than one thread at a time. Lease one with
+ * {@link #lease(XmlApiManager)} and {@link #release(XmlApiManager, DocumentBuilder)} it in a
+ * finally block, or use the pool-accepting <code>getDocument</code> methods of {@link DomUtils}.
+ */
+public class DocumentBuilderPool {
+
+  private static Log log = LogFactory.getLog(DocumentBuilderPool.class);
+
+  /**
+   * The default maximum number of idle builders retained per <code>XmlApiManager</code>.
+   */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  private static final DocumentBuilderPool DEFAULT_INSTANCE =
+      new DocumentBuilderPool(DEFAULT_MAX_IDLE, null);
+
+  private final int maxIdle;
+  private final EntityCache entityCache;
+  private final DocumentBuilderFactory factory;
+  private final Map<XmlApiManager, Deque<DocumentBuilder>> idle =
+      new WeakHashMap<XmlApiManager, Deque<DocumentBuilder>>();
+
+  private final AtomicLong leaseCount = new AtomicLong();
+  private final AtomicLong createCount = new AtomicLong();
+  private final AtomicLong discardCount = new AtomicLong();
+
+  /**
+   * Get a pool that may be shared across the library, by callers that do not need their own. It
+   * does not cache external entities.
+   * 
+   * @return The default pool.
+   */
+  public static DocumentBuilderPool getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a pool.
+   * 
+   * @param maxIdle The maximum number of idle builders to retain per <code>XmlApiManager</code>.
+   * @param entityCache Optional cache of resolved external entities for the builders to use. Null
+   *        may be sent in.
+   */
+  public DocumentBuilderPool(int maxIdle, EntityCache entityCache) {
+    this(maxIdle, entityCache, null);
+  }
+
+  /**
+   * Construct a pool whose builders come from the given factory rather than RSuite, such as to
+   * set a parser feature that RSuite's builders do not expose. Leased builders are still given
+   * RSuite's entity resolver.
+   * 
+   * @param maxIdle The maximum number of idle builders to retain per <code>XmlApiManager</code>.
+   * @param entityCache Optional cache of resolved external entities for the builders to use. Null
+   *        may be sent in.
+   * @param factory Null may be sent in to use the builders RSuite constructs.
+   */
+  public DocumentBuilderPool(int maxIdle, EntityCache entityCache,
+      DocumentBuilderFactory factory) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle may not be negative");
+    }
+    this.maxIdle = maxIdle;
+    this.entityCache = entityCache;
+    this.factory = factory;
+  }
+
+  /**
+   * Lease a builder configured with RSuite's entity resolver (wrapped by this pool's
+   * {@link EntityCache}, if any).
+   * 
+   * @param xmlApiManager
+   * @return A builder the caller must release.
+   * @throws IllegalStateException Thrown if this pool's factory cannot construct a builder.
+   */
+  public DocumentBuilder lease(XmlApiManager xmlApiManager) {
+    leaseCount.incrementAndGet();
+    DocumentBuilder builder = null;
+    synchronized (idle) {
+      Deque<DocumentBuilder> queue = idle.get(xmlApiManager);
+      if (queue != null) {
+        builder = queue.pollFirst();
+      }
+    }
+    if (builder == null) {
+      createCount.incrementAndGet();
+      builder = factory != null ? newDocumentBuilder()
+          : xmlApiManager.constructNonValidatingDocumentBuilder();
+    }
+
+    // DocumentBuilder#reset() restores the resolver the builder was constructed with, which need
+    // not be the one RSuite set afterwards. Always set it.
+    EntityResolver entityResolver = xmlApiManager.getRSuiteAwareEntityResolver();
+    if (entityCache != null) {
+      entityResolver = entityCache.getEntityResolver(entityResolver);
+    }
+    builder.setEntityResolver(entityResolver);
+    return builder;
+  }
+
+  private DocumentBuilder newDocumentBuilder() {
+    try {
+      // Factories are not thread-safe.
+      synchronized (factory) {
+        return factory.newDocumentBuilder();
+      }
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException("Unable to create a DocumentBuilder", e);
+    }
+  }
+
+  /**
+   * Reset a builder and return it to the pool.
+   * 
+   * @param xmlApiManager The <code>XmlApiManager</code> the builder was leased for.
+   * @param builder Null may be sent in.
+   */
+  public void release(XmlApiManager xmlApiManager, DocumentBuilder builder) {
+    if (builder == null) {
+      return;
+    }
+    try {
+      builder.reset();
+    } catch (UnsupportedOperationException e) {
+      log.debug("Discarding DocumentBuilder that does not support reset()");
+      discardCount.incrementAndGet();
+      return;
+    }
+    synchronized (idle) {
+      Deque<DocumentBuilder> queue = idle.get(xmlApiManager);
+      if (queue == null) {
+        queue = new ArrayDeque<DocumentBuilder>();
+        idle.put(xmlApiManager, queue);
+      }
+      if (queue.size() < maxIdle) {
+        queue.offerFirst(builder);
+        return;
+      }
+    }
+    discardCount.incrementAndGet();
+  }
+
+  /**
+   * Discard all idle builders.
+   */
+  public void clear() {
+    synchronized (idle) {
+      idle.clear();
+    }
+  }
+
+  /**
+   * @return The cache of resolved external entities the builders use, or null.
+   */
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
+  /**
+   * @return The number of leases granted.
+   */
+  public long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /**
+   * @return The number of builders constructed because none were idle.
+   */
+  public long getCreateCount() {
+    return createCount.get();
+  }
+
+  /**
+   * @return The number of released builders that were discarded.
+   */
+  public long getDiscardCount() {
+    return discardCount.get();
+  }
+
+}
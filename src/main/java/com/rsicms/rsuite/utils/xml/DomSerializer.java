@@ -0,0 +1,948 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serializes a DOM node as XML, writing directly to an <code>OutputStream</code> or an
+ * <code>Appendable</code>, without going through a <code>Transformer</code>. UTF-8 is encoded
+ * directly into a reusable buffer; other encodings go through a reusable
+ * <code>CharsetEncoder</code>, with characters the encoding cannot represent written as character
+ * references.
+ * <p>
+ * The output matches that of an identity transform by the JDK's built-in
+ * <code>TransformerFactory</code>, as of Java 8, given the same options. A document that is not
+ * standalone is declared <code>standalone="no"</code>, and one that is has no standalone
+ * declaration. Namespace declarations are added where the DOM lacks them, and a document type
+ * declaration is only written when requested and a system ID is available. When indenting, a new
+ * line is started before markup that does not follow text, and an element containing text other
+ * than whitespace is not indented within until its next child element; whitespace text nodes are
+ * kept. The one difference is that entity reference nodes are expanded rather than dropped.
+ * <p>
+ * An instance may be reused, but not by more than one thread at a time. {@link DomUtils} reuses
+ * one per thread.
+ */
+public class DomSerializer {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final String DEFAULT_ENCODING = "UTF-8";
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator", "\n");
+
+  private static final ThreadLocal<DomSerializer> threadSerializer =
+      new ThreadLocal<DomSerializer>() {
+        @Override
+        protected DomSerializer initialValue() {
+          return new DomSerializer();
+        }
+      };
+
+  private boolean includeXmlDeclaration = true;
+  private boolean includeDoctypeDeclaration;
+  private String encoding = DEFAULT_ENCODING;
+  private boolean indent;
+  private int indentAmount;
+
+  private Charset charset;
+  private CharsetEncoder probeEncoder;
+  private boolean unicodeCharset;
+
+  private Utf8Sink utf8Sink;
+  private EncoderSink encoderSink;
+  private final AppendableSink appendableSink = new AppendableSink();
+
+  private Sink sink;
+  private boolean inUse;
+
+  // In-scope namespace bindings, and where each element's bindings start.
+  private String[] nsPrefixes = new String[16];
+  private String[] nsUris = new String[16];
+  private int nsCount;
+  private int[] scopeStarts = new int[16];
+  private int depth;
+
+  // Indentation state, as kept by the JDK's serializer.
+  private boolean preserve;
+  private boolean prevText;
+  private boolean startNewLine;
+  private DocumentType pendingDoctype;
+
+  /**
+   * Construct a serializer that writes the XML declaration, omits the document type declaration,
+   * encodes as UTF-8, and does not indent.
+   */
+  public DomSerializer() {
+    setEncoding(DEFAULT_ENCODING);
+  }
+
+  /**
+   * Get the calling thread's serializer, with its options reset to those of a new instance. A new
+   * instance is returned should the thread's be in use, such as by a stream it is writing to.
+   * 
+   * @return A serializer for use by the calling thread only.
+   */
+  static DomSerializer forCurrentThread() {
+    DomSerializer serializer = threadSerializer.get();
+    if (serializer.inUse) {
+      return new DomSerializer();
+    }
+    return serializer.reset();
+  }
+
+  /**
+   * Restore the options to those of a new instance, keeping the buffers and encoders.
+   * 
+   * @return This serializer.
+   */
+  public DomSerializer reset() {
+    includeXmlDeclaration = true;
+    includeDoctypeDeclaration = false;
+    indent = false;
+    indentAmount = 0;
+    return setEncoding(DEFAULT_ENCODING);
+  }
+
+  /**
+   * @param includeXmlDeclaration Submit true to write the XML declaration. Only applies when
+   *        serializing a document or element.
+   * @return This serializer.
+   */
+  public DomSerializer setIncludeXmlDeclaration(boolean includeXmlDeclaration) {
+    this.includeXmlDeclaration = includeXmlDeclaration;
+    return this;
+  }
+
+  /**
+   * @param includeDoctypeDeclaration Submit true to write the owner document's document type
+   *        declaration, when it has a system ID.
+   * @return This serializer.
+   */
+  public DomSerializer setIncludeDoctypeDeclaration(boolean includeDoctypeDeclaration) {
+    this.includeDoctypeDeclaration = includeDoctypeDeclaration;
+    return this;
+  }
+
+  /**
+   * @param encoding The name of the encoding to write and declare. Null may be sent in for UTF-8.
+   * @return This serializer.
+   */
+  public DomSerializer setEncoding(String encoding) {
+    if (encoding == null) {
+      encoding = DEFAULT_ENCODING;
+    }
+    if (charset != null && encoding.equals(this.encoding)) {
+      return this;
+    }
+    this.encoding = encoding;
+    this.charset = Charset.forName(this.encoding);
+    String name = charset.name();
+    this.unicodeCharset = name.startsWith("UTF-") || name.equals("GB18030");
+    this.probeEncoder = unicodeCharset ? null : charset.newEncoder();
+    return this;
+  }
+
+  /**
+   * @param indent Submit true to indent element-only content.
+   * @return This serializer.
+   */
+  public DomSerializer setIndent(boolean indent) {
+    this.indent = indent;
+    return this;
+  }
+
+  /**
+   * @param indentAmount The number of spaces to indent by, per level. Only used when indenting.
+   *        The default is zero, which only starts new lines.
+   * @return This serializer.
+   */
+  public DomSerializer setIndentAmount(int indentAmount) {
+    this.indentAmount = Math.max(0, indentAmount);
+    return this;
+  }
+
+  /**
+   * @return The name of the encoding written and declared.
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Serialize the given node to the given stream, in this serializer's encoding. The stream is
+   * flushed, but not closed.
+   * 
+   * @param node
+   * @param outputStream
+   * @throws IOException
+   */
+  public void serialize(Node node, OutputStream outputStream) throws IOException {
+    if (inUse) {
+      throw new IllegalStateException("This serializer is already in use");
+    }
+    if (charset.name().equals(DEFAULT_ENCODING)) {
+      if (utf8Sink == null) {
+        utf8Sink = new Utf8Sink();
+      }
+      utf8Sink.outputStream = outputStream;
+      sink = utf8Sink;
+    } else {
+      if (encoderSink == null || !encoderSink.encoder.charset().equals(charset)) {
+        encoderSink = new EncoderSink(charset);
+      }
+      encoderSink.reset(outputStream);
+      sink = encoderSink;
+    }
+    inUse = true;
+    try {
+      write(node);
+      sink.flush();
+    } finally {
+      inUse = false;
+      if (sink == utf8Sink) {
+        utf8Sink.outputStream = null;
+      } else {
+        encoderSink.outputStream = null;
+      }
+      sink = null;
+    }
+  }
+
+  /**
+   * Serialize the given node to the given <code>Appendable</code>. The declared encoding still
+   * determines which characters are written as character references.
+   * 
+   * @param node
+   * @param appendable
+   * @throws IOException
+   */
+  public void serialize(Node node, Appendable appendable) throws IOException {
+    if (inUse) {
+      throw new IllegalStateException("This serializer is already in use");
+    }
+    appendableSink.appendable = appendable;
+    sink = appendableSink;
+    inUse = true;
+    try {
+      write(node);
+    } finally {
+      inUse = false;
+      appendableSink.appendable = null;
+      sink = null;
+    }
+  }
+
+  /**
+   * Serialize the given node to a string.
+   * 
+   * @param node
+   * @return The serialized node.
+   */
+  public String serializeToString(Node node) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      serialize(node, sb);
+    } catch (IOException e) {
+      // StringBuilder does not throw IOException.
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
+
+  private void write(Node root) throws IOException {
+    nsCount = 0;
+    depth = 0;
+    preserve = false;
+    prevText = false;
+    startNewLine = false;
+
+    short rootType = root.getNodeType();
+    Document doc =
+        rootType == Node.DOCUMENT_NODE ? (Document) root : root.getOwnerDocument();
+    // Written before the first element, as with xsl:output doctype-system.
+    pendingDoctype = includeDoctypeDeclaration && doc != null ? doc.getDoctype() : null;
+    if (pendingDoctype != null && pendingDoctype.getSystemId() == null) {
+      pendingDoctype = null;
+    }
+    if (includeXmlDeclaration
+        && (rootType == Node.DOCUMENT_NODE || rootType == Node.ELEMENT_NODE)) {
+      writeXmlDeclaration(doc, rootType == Node.DOCUMENT_NODE);
+    }
+
+    Node node = root;
+    while (true) {
+      boolean descend = writeStart(node);
+      if (descend) {
+        node = node.getFirstChild();
+        continue;
+      }
+      while (node != root && node.getNextSibling() == null) {
+        node = node.getParentNode();
+        writeEnd(node);
+      }
+      if (node == root) {
+        break;
+      }
+      node = node.getNextSibling();
+    }
+    if (indent && !prevText) {
+      sink.write(LINE_SEPARATOR);
+    }
+  }
+
+  /**
+   * Write the start of the given node.
+   * 
+   * @return True if the node's children should be written next.
+   */
+  private boolean writeStart(Node node) throws IOException {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE:
+        return writeStartElement((Element) node);
+      case Node.TEXT_NODE:
+        String text = node.getNodeValue();
+        if (text != null && text.length() > 0) {
+          if (!isWhitespace(text)) {
+            preserve = true;
+          }
+          writeEscaped(text, false);
+          prevText = true;
+        }
+        return false;
+      case Node.CDATA_SECTION_NODE:
+        String cdata = node.getNodeValue();
+        if (cdata != null && cdata.length() > 0) {
+          preserve = true;
+          writeCData(cdata);
+        }
+        return false;
+      case Node.COMMENT_NODE:
+        if (shouldIndent(depth)) {
+          indent(depth);
+        }
+        writeComment(node.getNodeValue());
+        startNewLine = true;
+        return false;
+      case Node.PROCESSING_INSTRUCTION_NODE:
+        if (shouldIndent(depth)) {
+          indent(depth);
+        }
+        writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+        startNewLine = true;
+        return false;
+      case Node.DOCUMENT_TYPE_NODE:
+        // Written before the document element, if requested.
+        return false;
+      case Node.ATTRIBUTE_NODE:
+        writeEscaped(node.getNodeValue(), false);
+        return false;
+      case Node.DOCUMENT_NODE:
+      case Node.DOCUMENT_FRAGMENT_NODE:
+      case Node.ENTITY_REFERENCE_NODE:
+        // Containers without markup of their own.
+        return node.getFirstChild() != null;
+      default:
+        return false;
+    }
+  }
+
+  private void writeEnd(Node node) throws IOException {
+    if (node.getNodeType() != Node.ELEMENT_NODE) {
+      return;
+    }
+    if (shouldIndent(depth)) {
+      indent(depth - 1);
+    }
+    depth--;
+    sink.write("</");
+    sink.write(node.getNodeName());
+    sink.write('>');
+    preserve = false;
+    prevText = false;
+    nsCount = scopeStarts[depth];
+  }
+
+  private boolean writeStartElement(Element elem) throws IOException {
+    String qname = elem.getNodeName();
+    if (pendingDoctype != null) {
+      writeDoctype(pendingDoctype, qname);
+      pendingDoctype = null;
+    }
+    preserve = false;
+    if (shouldIndent(depth) && startNewLine) {
+      indent(depth);
+    }
+    startNewLine = true;
+    if (depth == scopeStarts.length) {
+      scopeStarts = grow(scopeStarts);
+    }
+    scopeStarts[depth] = nsCount;
+
+    sink.write('<');
+    sink.write(qname);
+
+    NamedNodeMap attrs = elem.getAttributes();
+    int attrCount = attrs == null ? 0 : attrs.getLength();
+
+    // Namespace declarations present in the DOM.
+    for (int i = 0; i < attrCount; i++) {
+      Attr attr = (Attr) attrs.item(i);
+      if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+        String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getLocalName()) ? ""
+            : attr.getLocalName();
+        String uri = attr.getNodeValue();
+        if (!uri.equals(lookupNamespace(prefix))) {
+          bindNamespace(prefix, uri);
+        }
+        writeAttribute(attr.getNodeName(), uri);
+      }
+    }
+
+    // Namespace fixup for the element, as a DOM built with the NS methods need not carry
+    // declarations. Level 1 nodes (no local name) are written as-is.
+    if (elem.getLocalName() != null) {
+      fixupNamespace(elem.getPrefix(), elem.getNamespaceURI(), false);
+    }
+
+    for (int i = 0; i < attrCount; i++) {
+      Attr attr = (Attr) attrs.item(i);
+      String nsUri = attr.getNamespaceURI();
+      if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(nsUri)) {
+        continue;
+      }
+      String name = attr.getNodeName();
+      if (nsUri != null && nsUri.length() > 0 && attr.getLocalName() != null) {
+        String prefix = fixupNamespace(attr.getPrefix(), nsUri, true);
+        if (!prefix.equals(attr.getPrefix())) {
+          name = prefix + ':' + attr.getLocalName();
+        }
+      }
+      writeAttribute(name, attr.getNodeValue());
+    }
+
+    prevText = false;
+    if (!hasContent(elem)) {
+      sink.write("/>");
+      nsCount = scopeStarts[depth];
+      return false;
+    }
+    sink.write('>');
+    depth++;
+    return true;
+  }
+
+  /**
+   * Declare the given namespace if it is not already in scope with the given prefix.
+   * 
+   * @return The prefix the namespace is bound to.
+   */
+  private String fixupNamespace(String prefix, String uri, boolean isAttribute)
+      throws IOException {
+    if (prefix == null) {
+      prefix = "";
+    }
+    if (uri == null) {
+      uri = "";
+    }
+    if (XMLConstants.XML_NS_URI.equals(uri)) {
+      return XMLConstants.XML_NS_PREFIX;
+    }
+    if (isAttribute && prefix.length() > 0 && !uri.equals(lookupNamespace(prefix))
+        && isBoundOnCurrentElement(prefix)) {
+      // The prefix is already declared differently on this element.
+      prefix = "";
+    }
+    if (isAttribute && prefix.length() == 0) {
+      // A namespaced attribute requires a prefix; find or invent one.
+      for (int i = nsCount - 1; i >= 0; i--) {
+        if (nsPrefixes[i].length() > 0 && nsUris[i].equals(uri)
+            && uri.equals(lookupNamespace(nsPrefixes[i]))) {
+          return nsPrefixes[i];
+        }
+      }
+      int n = 0;
+      do {
+        prefix = "ns" + n++;
+      } while (lookupNamespace(prefix) != null);
+    }
+    if (uri.equals(lookupNamespace(prefix))
+        || (prefix.length() == 0 && uri.length() == 0 && lookupNamespace(prefix) == null)) {
+      return prefix;
+    }
+    if (prefix.length() > 0 && uri.length() == 0) {
+      // Cannot undeclare a prefix in XML 1.0; leave as is.
+      return prefix;
+    }
+    bindNamespace(prefix, uri);
+    writeAttribute(prefix.length() == 0 ? XMLConstants.XMLNS_ATTRIBUTE
+        : XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix, uri);
+    return prefix;
+  }
+
+  private String lookupNamespace(String prefix) {
+    for (int i = nsCount - 1; i >= 0; i--) {
+      if (nsPrefixes[i].equals(prefix)) {
+        return nsUris[i];
+      }
+    }
+    return null;
+  }
+
+  private boolean isBoundOnCurrentElement(String prefix) {
+    for (int i = nsCount - 1; i >= scopeStarts[depth]; i--) {
+      if (nsPrefixes[i].equals(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void bindNamespace(String prefix, String uri) {
+    if (nsCount == nsPrefixes.length) {
+      String[] prefixes = new String[nsCount * 2];
+      String[] uris = new String[nsCount * 2];
+      System.arraycopy(nsPrefixes, 0, prefixes, 0, nsCount);
+      System.arraycopy(nsUris, 0, uris, 0, nsCount);
+      nsPrefixes = prefixes;
+      nsUris = uris;
+    }
+    nsPrefixes[nsCount] = prefix;
+    nsUris[nsCount] = uri;
+    nsCount++;
+  }
+
+  private void writeAttribute(String name, String value) throws IOException {
+    sink.write(' ');
+    sink.write(name);
+    sink.write("=\"");
+    writeEscaped(value, true);
+    sink.write('"');
+  }
+
+  private void writeXmlDeclaration(Document doc, boolean isDocument) throws IOException {
+    String version = doc != null && doc.getXmlVersion() != null ? doc.getXmlVersion() : "1.0";
+    sink.write("<?xml version=\"");
+    sink.write(version);
+    sink.write("\" encoding=\"");
+    sink.write(encoding);
+    sink.write('"');
+    // As with the JDK's serializer, only a document that is not standalone says so.
+    boolean writeStandalone = isDocument && !doc.getXmlStandalone();
+    if (writeStandalone) {
+      sink.write(" standalone=\"no\"");
+    }
+    sink.write("?>");
+    if (indent && (writeStandalone || pendingDoctype != null)) {
+      sink.write(LINE_SEPARATOR);
+    }
+  }
+
+  private void writeDoctype(DocumentType doctype, String rootName) throws IOException {
+    sink.write("<!DOCTYPE ");
+    sink.write(rootName);
+    if (doctype.getPublicId() != null) {
+      sink.write(" PUBLIC \"");
+      sink.write(doctype.getPublicId());
+      sink.write("\" \"");
+    } else {
+      sink.write(" SYSTEM \"");
+    }
+    sink.write(doctype.getSystemId());
+    sink.write("\">");
+    sink.write(LINE_SEPARATOR);
+  }
+
+  private void writeComment(String value) throws IOException {
+    sink.write("<!--");
+    int length = value.length();
+    int start = 0;
+    // "--" may not appear within a comment, nor may it end with "-".
+    for (int i = 1; i < length; i++) {
+      if (value.charAt(i) == '-' && value.charAt(i - 1) == '-') {
+        sink.write(value, start, i);
+        sink.write(' ');
+        start = i;
+      }
+    }
+    sink.write(value, start, length);
+    if (length > 0 && value.charAt(length - 1) == '-') {
+      sink.write(' ');
+    }
+    sink.write("-->");
+  }
+
+  private void writeProcessingInstruction(String target, String data) throws IOException {
+    sink.write("<?");
+    sink.write(target);
+    if (data == null) {
+      data = "";
+    }
+    if (data.length() > 0 && !Character.isSpaceChar(data.charAt(0))) {
+      sink.write(' ');
+    }
+    int end = data.indexOf("?>");
+    if (end >= 0) {
+      // "?>" would end the instruction early.
+      sink.write(data, 0, end);
+      sink.write("? >");
+      sink.write(data, end + 2, data.length());
+    } else {
+      sink.write(data);
+    }
+    sink.write("?>");
+  }
+
+  private void writeCData(String value) throws IOException {
+    int length = value.length();
+    boolean open = false;
+    // Start of the characters not yet written, which are all to be written as they are.
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      int codePoint = -1;
+      if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        // As with the JDK's serializer, a character beyond the BMP does not open a section, and
+        // is written as a reference outside of one when the encoding lacks it.
+        if (unicodeCharset) {
+          i++;
+          continue;
+        }
+        codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+      } else if (c >= 0x7F && !unicodeCharset && !probeEncoder.canEncode(c)) {
+        codePoint = c;
+      }
+      if (codePoint >= 0) {
+        sink.write(value, start, i);
+        if (open) {
+          sink.write("]]>");
+          open = false;
+        }
+        sink.write("&#");
+        sink.write(Integer.toString(codePoint));
+        sink.write(';');
+        i += Character.charCount(codePoint) - 1;
+        start = i + 1;
+        continue;
+      }
+      if (!open) {
+        sink.write(value, start, i);
+        sink.write("<![CDATA[");
+        open = true;
+        start = i;
+      }
+      if (c == '\n') {
+        sink.write(value, start, i);
+        sink.write(LINE_SEPARATOR);
+        start = i + 1;
+      } else if (c == ']' && value.startsWith("]]>", i)) {
+        // "]]>" cannot appear within a CDATA section; split it across two.
+        sink.write(value, start, i + 2);
+        sink.write("]]><![CDATA[");
+        start = i + 2;
+        i++;
+      }
+    }
+    sink.write(value, start, length);
+    if (open) {
+      sink.write("]]>");
+    }
+  }
+
+  private void writeEscaped(String value, boolean inAttribute) throws IOException {
+    if (value == null) {
+      return;
+    }
+    int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement = null;
+      int codePoint = -1;
+      switch (c) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        case '"':
+          replacement = inAttribute ? "&quot;" : null;
+          break;
+        case '\n':
+          replacement = inAttribute ? "&#10;" : null;
+          break;
+        case '\r':
+          replacement = "&#13;";
+          break;
+        case '\t':
+          replacement = inAttribute ? "&#9;" : null;
+          break;
+        default:
+          if (c < 0x7F) {
+            break;
+          }
+          if (Character.isHighSurrogate(c) && i + 1 < length
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+            // The JDK's serializer writes characters beyond the BMP as references, even in a
+            // Unicode encoding.
+            codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+          } else if (c <= 0x9F && !inAttribute) {
+            // As are control characters in text.
+            codePoint = c;
+          } else if (!unicodeCharset && !probeEncoder.canEncode(c)) {
+            codePoint = c;
+          }
+      }
+      if (replacement != null) {
+        sink.write(value, start, i);
+        sink.write(replacement);
+        start = i + 1;
+      } else if (codePoint >= 0) {
+        sink.write(value, start, i);
+        sink.write("&#");
+        sink.write(Integer.toString(codePoint));
+        sink.write(';');
+        i += Character.charCount(codePoint) - 1;
+        start = i + 1;
+      }
+    }
+    sink.write(value, start, length);
+  }
+
+  /**
+   * @param elemDepth The number of elements open.
+   * @return True if a new line should be started before the next markup.
+   */
+  private boolean shouldIndent(int elemDepth) {
+    return indent && !preserve && !prevText && elemDepth > 0;
+  }
+
+  private void indent(int level) throws IOException {
+    if (startNewLine) {
+      sink.write(LINE_SEPARATOR);
+    }
+    for (int i = level * indentAmount; i > 0; i--) {
+      sink.write(' ');
+    }
+  }
+
+  /**
+   * @return True if the element has a child that produces output, and so needs an end tag.
+   */
+  private static boolean hasContent(Element elem) {
+    for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+      short type = child.getNodeType();
+      if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+        String value = child.getNodeValue();
+        if (value != null && value.length() > 0) {
+          return true;
+        }
+      } else if (type != Node.DOCUMENT_TYPE_NODE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isWhitespace(String value) {
+    for (int i = value.length() - 1; i >= 0; i--) {
+      char c = value.charAt(i);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] grow(int[] array) {
+    int[] grown = new int[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Where serialized characters go.
+   */
+  private abstract static class Sink {
+    abstract void write(char c) throws IOException;
+
+    abstract void write(String s, int start, int end) throws IOException;
+
+    void write(String s) throws IOException {
+      write(s, 0, s.length());
+    }
+
+    void flush() throws IOException {}
+  }
+
+  /**
+   * Encodes UTF-8 directly into a reusable byte buffer.
+   */
+  private static final class Utf8Sink extends Sink {
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream outputStream;
+
+    @Override
+    void write(char c) throws IOException {
+      if (c < 0x80) {
+        if (position == buffer.length) {
+          drain();
+        }
+        buffer[position++] = (byte) c;
+      } else {
+        write(String.valueOf(c), 0, 1);
+      }
+    }
+
+    @Override
+    void write(String s, int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        if (position > buffer.length - 4) {
+          drain();
+        }
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          buffer[position++] = (byte) c;
+        } else if (c < 0x800) {
+          buffer[position++] = (byte) (0xC0 | (c >> 6));
+          buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < end
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          buffer[position++] = (byte) (0xF0 | (cp >> 18));
+          buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+          buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+          buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+          // Unpaired surrogate; not representable.
+          buffer[position++] = (byte) '?';
+        } else {
+          buffer[position++] = (byte) (0xE0 | (c >> 12));
+          buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    @Override
+    void flush() throws IOException {
+      drain();
+      outputStream.flush();
+    }
+
+    private void drain() throws IOException {
+      if (position > 0) {
+        outputStream.write(buffer, 0, position);
+        position = 0;
+      }
+    }
+  }
+
+  /**
+   * Encodes through a reusable <code>CharsetEncoder</code> and buffers.
+   */
+  private static final class EncoderSink extends Sink {
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes;
+    private OutputStream outputStream;
+
+    private EncoderSink(Charset charset) {
+      this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.bytes = ByteBuffer.allocate((int) (BUFFER_SIZE * encoder.maxBytesPerChar()) + 16);
+    }
+
+    private void reset(OutputStream outputStream) {
+      this.outputStream = outputStream;
+      encoder.reset();
+      chars.clear();
+      bytes.clear();
+    }
+
+    @Override
+    void write(char c) throws IOException {
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+      chars.put(c);
+    }
+
+    @Override
+    void write(String s, int start, int end) throws IOException {
+      while (start < end) {
+        if (!chars.hasRemaining()) {
+          encode(false);
+        }
+        int count = Math.min(end - start, chars.remaining());
+        chars.put(s, start, start + count);
+        start += count;
+      }
+    }
+
+    @Override
+    void flush() throws IOException {
+      encode(true);
+      CoderResult result;
+      do {
+        result = encoder.flush(bytes);
+        drain();
+      } while (result.isOverflow());
+      outputStream.flush();
+    }
+
+    private void encode(boolean endOfInput) throws IOException {
+      chars.flip();
+      CoderResult result;
+      do {
+        result = encoder.encode(chars, bytes, endOfInput);
+        drain();
+      } while (result.isOverflow());
+      // Retain a trailing high surrogate awaiting its pair.
+      chars.compact();
+    }
+
+    private void drain() throws IOException {
+      if (bytes.position() > 0) {
+        outputStream.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+      }
+    }
+  }
+
+  /**
+   * Appends characters as-is.
+   */
+  private static final class AppendableSink extends Sink {
+    private Appendable appendable;
+
+    @Override
+    void write(char c) throws IOException {
+      appendable.append(c);
+    }
+
+    @Override
+    void write(String s, int start, int end) throws IOException {
+      appendable.append(s, start, end);
+    }
+  }
+
+}
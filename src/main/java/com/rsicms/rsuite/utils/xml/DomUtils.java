@@ -1,39 +1,39 @@
 package com.rsicms.rsuite.utils.xml;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.util.Set;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentType;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 import com.reallysi.rsuite.api.RSuiteException;
 import com.reallysi.rsuite.api.extensions.ExecutionContext;
@@ -46,11 +46,42 @@ import com.reallysi.rsuite.service.XmlApiManager;
  */
 public class DomUtils {
 
-  @SuppressWarnings("unused")
   private static Log log = LogFactory.getLog(DomUtils.class);
 
   /**
-   * Get the qualified name of the given element.
+   * Factory looked up once for {@link #newDocument()}, which keeps one builder per thread.
+   */
+  private static final DocumentBuilderFactory newDocumentBuilderFactory =
+      DocumentBuilderFactory.newInstance();
+  private static final ThreadLocal<DocumentBuilder> newDocumentBuilder =
+      new ThreadLocal<DocumentBuilder>();
+
+  /**
+   * The Xerces feature that defers the creation of nodes until they are first accessed.
+   */
+  private static final String FEATURE_DEFER_NODE_EXPANSION =
+      "http://apache.org/xml/features/dom/defer-node-expansion";
+
+  /**
+   * Pools of builders that parse with and without deferred node expansion. RSuite's builders fix
+   * the feature when constructed, so these come from factories that set it. The deferred pool is
+   * null when the JAXP implementation does not support it.
+   */
+  private static final DocumentBuilderPool deferredDocumentBuilderPool =
+      newDocumentBuilderPool(true);
+  private static final DocumentBuilderPool eagerDocumentBuilderPool =
+      newDocumentBuilderPool(false);
+
+  private int spillThreshold = SpillableOutputStream.DEFAULT_SPILL_THRESHOLD;
+
+  private ParseStatistics eagerParseStatistics = new ParseStatistics();
+  private ParseStatistics deferredParseStatistics = new ParseStatistics();
+  private XmlMetricsListener metricsListener;
+
+  /**
+   * Get the qualified name of the given element. The name comes from
+   * {@link QNamePool#getDefault()}, so repeated calls for elements with the same name return the
+   * same instance.
    * 
    * @param elem
    * @return QName of given element.
@@ -62,7 +93,31 @@ public class DomUtils {
       nsUri = elem.getNamespaceURI();
       localName = elem.getLocalName();
     }
-    return new QName(nsUri, localName);
+    return QNamePool.getDefault().intern(nsUri, localName);
+  }
+
+  /**
+   * Find out whether the given node is an element with the given name, without allocating when
+   * the name is pooled. See {@link QNamePool#isElement(Node, QName)}.
+   * 
+   * @param node
+   * @param name
+   * @return True if the node is an element with the given name.
+   */
+  public static boolean isElement(Node node, QName name) {
+    return QNamePool.getDefault().isElement(node, name);
+  }
+
+  /**
+   * Find out whether the given node is an element with one of the given names, without allocating
+   * when the node's name is pooled. See {@link QNamePool#isElement(Node, Set)}.
+   * 
+   * @param node
+   * @param names
+   * @return True if the node is an element with one of the given names.
+   */
+  public static boolean isElement(Node node, Set<QName> names) {
+    return QNamePool.getDefault().isElement(node, names);
   }
 
   /**
@@ -78,7 +133,18 @@ public class DomUtils {
    */
   public static Document getDocument(ExecutionContext context, InputStream inputStream)
       throws SAXException, IOException {
-    return context.getXmlApiManager().constructNonValidatingDocumentBuilder().parse(inputStream);
+    XmlMetricsListener listener = XmlMetricsListener.getDefault();
+    InputStream in = meter(listener, inputStream);
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      Document doc =
+          context.getXmlApiManager().constructNonValidatingDocumentBuilder().parse(in);
+      parsed = true;
+      return doc;
+    } finally {
+      reportParsed(listener, start, in, parsed);
+    }
   }
 
   /**
@@ -92,7 +158,332 @@ public class DomUtils {
    */
   public Document getDocument(XmlApiManager xmlApiManager, File file)
       throws SAXException, IOException {
-    return xmlApiManager.constructNonValidatingDocumentBuilder().parse(file);
+    XmlMetricsListener listener = getMetricsListener();
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      Document doc = xmlApiManager.constructNonValidatingDocumentBuilder().parse(file);
+      parsed = true;
+      return doc;
+    } finally {
+      reportParsed(listener, start, file, parsed);
+    }
+  }
+
+  /**
+   * Get an instance of <code>Document</code>, starting from an <code>InputStream</code>, using a
+   * builder drawn from the given pool.
+   * 
+   * @param xmlApiManager
+   * @param inputStream
+   * @param documentBuilderPool See {@link DocumentBuilderPool#getDefault()}.
+   * @return Document
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Document getDocument(XmlApiManager xmlApiManager, InputStream inputStream,
+      DocumentBuilderPool documentBuilderPool) throws SAXException, IOException {
+    XmlMetricsListener listener = getMetricsListener();
+    InputStream in = meter(listener, inputStream);
+    DocumentBuilder builder = documentBuilderPool.lease(xmlApiManager);
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      Document doc = builder.parse(in);
+      parsed = true;
+      return doc;
+    } finally {
+      reportParsed(listener, start, in, parsed);
+      documentBuilderPool.release(xmlApiManager, builder);
+    }
+  }
+
+  /**
+   * Get a <code>Document</code> from a <code>File</code>, using a builder drawn from the given
+   * pool.
+   * 
+   * @param xmlApiManager
+   * @param file
+   * @param documentBuilderPool See {@link DocumentBuilderPool#getDefault()}.
+   * @return Document
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Document getDocument(XmlApiManager xmlApiManager, File file,
+      DocumentBuilderPool documentBuilderPool) throws SAXException, IOException {
+    XmlMetricsListener listener = getMetricsListener();
+    DocumentBuilder builder = documentBuilderPool.lease(xmlApiManager);
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      Document doc = builder.parse(file);
+      parsed = true;
+      return doc;
+    } finally {
+      reportParsed(listener, start, file, parsed);
+      documentBuilderPool.release(xmlApiManager, builder);
+    }
+  }
+
+  /**
+   * Parse an <code>InputStream</code> into a compact, read-only document, which holds the
+   * document in primitive arrays rather than an object per node. Use
+   * {@link CompactDocument#getDocument()} to pass it to code that reads a <code>Document</code>,
+   * such as XPath evaluation or a transform's <code>DOMSource</code>.
+   * 
+   * @param xmlApiManager
+   * @param inputStream
+   * @return CompactDocument
+   * @throws SAXException
+   * @throws IOException
+   */
+  public CompactDocument getCompactDocument(XmlApiManager xmlApiManager, InputStream inputStream)
+      throws SAXException, IOException {
+    return getCompactDocument(xmlApiManager, inputStream, XMLReaderPool.getDefault());
+  }
+
+  /**
+   * Parse an <code>InputStream</code> into a compact, read-only document, using a reader drawn
+   * from the given pool.
+   * 
+   * @param xmlApiManager
+   * @param inputStream
+   * @param xmlReaderPool See {@link XMLReaderPool#getDefault()}.
+   * @return CompactDocument
+   * @throws SAXException
+   * @throws IOException
+   */
+  public CompactDocument getCompactDocument(XmlApiManager xmlApiManager, InputStream inputStream,
+      XMLReaderPool xmlReaderPool) throws SAXException, IOException {
+    XmlMetricsListener listener = getMetricsListener();
+    InputStream in = meter(listener, inputStream);
+    XMLReader reader = xmlReaderPool.lease(xmlApiManager.getRSuiteAwareEntityResolver());
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      CompactDocument doc = CompactDocument.parse(reader, new InputSource(in));
+      parsed = true;
+      return doc;
+    } finally {
+      reportParsed(listener, start, in, parsed);
+      xmlReaderPool.release(reader);
+    }
+  }
+
+  /**
+   * Get a <code>Document</code> from a <code>File</code>, optionally deferring the creation of
+   * each node until it is first accessed. A deferred document is first built as a compact parse
+   * record, and is cheaper to parse when callers only touch part of it; it is not safe to read
+   * from more than one thread, as reading it creates nodes.
+   * <p>
+   * Either way, the document is parsed by a pooled namespace-aware, non-validating builder with
+   * the deferral feature set explicitly, as some implementations defer by default, and with
+   * RSuite's entity resolver. The parse is counted in {@link #getDeferredParseStatistics()} or
+   * {@link #getEagerParseStatistics()}. Only the parse itself is measured: the nodes a deferred
+   * document creates as it is read are not, so its counters understate the cost of a document that
+   * is read in full.
+   * 
+   * @param xmlApiManager
+   * @param file
+   * @param deferNodeExpansion Submit true to defer node creation. When the JAXP implementation
+   *        does not support it, the document is parsed eagerly and counted as such. See
+   *        {@link #isDeferredNodeExpansionSupported()}.
+   * @return Document
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Document getDocument(XmlApiManager xmlApiManager, File file, boolean deferNodeExpansion)
+      throws SAXException, IOException {
+    return parse(xmlApiManager, new InputSource(file.toURI().toString()), file.length(),
+        deferNodeExpansion);
+  }
+
+  /**
+   * Get a <code>Document</code> from an <code>InputStream</code>, optionally deferring the
+   * creation of each node until it is first accessed. See
+   * {@link #getDocument(XmlApiManager, File, boolean)}.
+   * 
+   * @param xmlApiManager
+   * @param inputStream
+   * @param deferNodeExpansion Submit true to defer node creation.
+   * @return Document
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Document getDocument(XmlApiManager xmlApiManager, InputStream inputStream,
+      boolean deferNodeExpansion) throws SAXException, IOException {
+    return parse(xmlApiManager, new InputSource(meter(getMetricsListener(), inputStream)), -1,
+        deferNodeExpansion);
+  }
+
+  /**
+   * @return True if the JAXP implementation supports deferred node expansion.
+   */
+  public static boolean isDeferredNodeExpansionSupported() {
+    return deferredDocumentBuilderPool != null;
+  }
+
+  /**
+   * @return Counters of the documents this instance parsed eagerly, by way of the
+   *         <code>getDocument</code> methods that accept <code>deferNodeExpansion</code>.
+   */
+  public ParseStatistics getEagerParseStatistics() {
+    return eagerParseStatistics;
+  }
+
+  /**
+   * Set the counters of eagerly parsed documents, such as to share them between instances.
+   * 
+   * @param eagerParseStatistics
+   */
+  public void setEagerParseStatistics(ParseStatistics eagerParseStatistics) {
+    if (eagerParseStatistics == null) {
+      throw new IllegalArgumentException("eagerParseStatistics may not be null");
+    }
+    this.eagerParseStatistics = eagerParseStatistics;
+  }
+
+  /**
+   * @return Counters of the documents this instance parsed with deferred node expansion.
+   */
+  public ParseStatistics getDeferredParseStatistics() {
+    return deferredParseStatistics;
+  }
+
+  /**
+   * Set the counters of documents parsed with deferred node expansion, such as to share them
+   * between instances.
+   * 
+   * @param deferredParseStatistics
+   */
+  public void setDeferredParseStatistics(ParseStatistics deferredParseStatistics) {
+    if (deferredParseStatistics == null) {
+      throw new IllegalArgumentException("deferredParseStatistics may not be null");
+    }
+    this.deferredParseStatistics = deferredParseStatistics;
+  }
+
+  private Document parse(XmlApiManager xmlApiManager, InputSource inputSource, long inputLength,
+      boolean deferNodeExpansion) throws SAXException, IOException {
+    XmlMetricsListener listener = getMetricsListener();
+    boolean deferred = deferNodeExpansion && deferredDocumentBuilderPool != null;
+    ParseStatistics statistics = deferred ? deferredParseStatistics : eagerParseStatistics;
+    DocumentBuilderPool pool = deferred ? deferredDocumentBuilderPool : eagerDocumentBuilderPool;
+    DocumentBuilder builder = pool.lease(xmlApiManager);
+
+    long startAllocated = ParseStatistics.currentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    boolean parsed = false;
+    try {
+      Document doc = builder.parse(inputSource);
+      parsed = true;
+      statistics.record(System.nanoTime() - start,
+          startAllocated < 0 ? -1 : ParseStatistics.currentThreadAllocatedBytes() - startAllocated,
+          inputLength);
+      return doc;
+    } finally {
+      if (!parsed) {
+        statistics.recordFailure();
+      }
+      reportParsed(listener, start,
+          inputLength >= 0 ? inputLength : countOf(inputSource.getByteStream()), parsed);
+      pool.release(xmlApiManager, builder);
+    }
+  }
+
+  /**
+   * @return A pool of builders from a namespace-aware, non-validating factory with node expansion
+   *         deferred or not, or null if deferral was requested and is not supported. When
+   *         disabling deferral is not supported, the implementation is assumed not to defer.
+   */
+  private static DocumentBuilderPool newDocumentBuilderPool(boolean deferNodeExpansion) {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setValidating(false);
+    try {
+      factory.setFeature(FEATURE_DEFER_NODE_EXPANSION, deferNodeExpansion);
+      factory.newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      if (deferNodeExpansion) {
+        log.info("Deferred node expansion is not supported by " + factory.getClass().getName());
+        return null;
+      }
+      factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      factory.setValidating(false);
+    }
+    return new DocumentBuilderPool(DocumentBuilderPool.DEFAULT_MAX_IDLE, null, factory);
+  }
+
+  /**
+   * @return The listener the instance methods report parses and serializations to: the one set
+   *         on this instance, or else {@link XmlMetricsListener#getDefault()}. Static methods
+   *         report to the default.
+   */
+  public XmlMetricsListener getMetricsListener() {
+    return metricsListener != null ? metricsListener : XmlMetricsListener.getDefault();
+  }
+
+  /**
+   * Set the listener the instance methods report parses and serializations to.
+   * 
+   * @param metricsListener Null may be sent in to report to
+   *        {@link XmlMetricsListener#getDefault()}.
+   */
+  public void setMetricsListener(XmlMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * @return The given stream, wrapped to count its bytes unless the listener is
+   *         {@link XmlMetricsListener#NONE}.
+   */
+  private static InputStream meter(XmlMetricsListener listener, InputStream inputStream) {
+    return listener == XmlMetricsListener.NONE || inputStream == null ? inputStream
+        : new MeteredInputStream(inputStream);
+  }
+
+  private static long countOf(InputStream inputStream) {
+    return inputStream instanceof MeteredInputStream
+        ? ((MeteredInputStream) inputStream).getCount() : -1;
+  }
+
+  private static void reportParsed(XmlMetricsListener listener, long start,
+      InputStream inputStream, boolean parsed) {
+    if (listener != XmlMetricsListener.NONE) {
+      reportParsed(listener, start, countOf(inputStream), parsed);
+    }
+  }
+
+  private static void reportParsed(XmlMetricsListener listener, long start, File file,
+      boolean parsed) {
+    if (listener != XmlMetricsListener.NONE) {
+      reportParsed(listener, start, file.length(), parsed);
+    }
+  }
+
+  static void reportParsed(XmlMetricsListener listener, long start, long inputBytes,
+      boolean parsed) {
+    if (listener == XmlMetricsListener.NONE) {
+      return;
+    }
+    try {
+      listener.documentParsed(System.nanoTime() - start, inputBytes, !parsed);
+    } catch (RuntimeException e) {
+      log.warn("Metrics listener failed", e);
+    }
+  }
+
+  private static void reportSerialized(XmlMetricsListener listener, long start,
+      long outputLength, boolean serialized) {
+    if (listener == XmlMetricsListener.NONE) {
+      return;
+    }
+    try {
+      listener.documentSerialized(System.nanoTime() - start, outputLength, !serialized);
+    } catch (RuntimeException e) {
+      log.warn("Metrics listener failed", e);
+    }
   }
 
   /**
@@ -114,10 +505,9 @@ public class DomUtils {
   }
 
   /**
-   * Get an <code>InputStream</code> for a <code>Document</code>.
-   * <p>
-   * Credit to
-   * http://stackoverflow.com/questions/865039/how-to-create-an-inputstream-from-a-document-or-node
+   * Get an <code>InputStream</code> for a <code>Document</code>, serialized with an XML
+   * declaration, in the encoding the document declares, or else UTF-8. The output is that of an
+   * identity transform; see {@link DomSerializer}.
    * 
    * @param doc
    * @return An input stream, of the given document.
@@ -127,18 +517,45 @@ public class DomUtils {
    */
   public InputStream iGetInputStream(Document doc) throws TransformerConfigurationException,
       TransformerException, TransformerFactoryConfigurationError {
-    ByteArrayOutputStream outputStream = null;
+    XmlMetricsListener listener = getMetricsListener();
+    SpillableOutputStream outputStream = new SpillableOutputStream(spillThreshold);
+    long start = System.nanoTime();
+    boolean serialized = false;
     try {
-      outputStream = new ByteArrayOutputStream();
-      Source xmlSource = new DOMSource(doc);
-      Result outputTarget = new StreamResult(outputStream);
-      TransformerFactory.newInstance().newTransformer().transform(xmlSource, outputTarget);
-      return new ByteArrayInputStream(outputStream.toByteArray());
+      DomSerializer.forCurrentThread().setEncoding(doc.getXmlEncoding())
+          .serialize(doc, outputStream);
+      InputStream inputStream = outputStream.toInputStream();
+      serialized = true;
+      return inputStream;
+    } catch (IOException e) {
+      throw new TransformerException("Unable to buffer the serialized document", e);
     } finally {
-      IOUtils.closeQuietly(outputStream);
+      reportSerialized(listener, start, outputStream.size(), serialized);
+      outputStream.dispose();
     }
   }
 
+  /**
+   * @return The number of bytes {@link #iGetInputStream(Document)} holds in memory before spilling
+   *         to a temporary file.
+   */
+  public int getSpillThreshold() {
+    return spillThreshold;
+  }
+
+  /**
+   * Set the number of bytes {@link #iGetInputStream(Document)} holds in memory before spilling to
+   * a temporary file. The default is {@link SpillableOutputStream#DEFAULT_SPILL_THRESHOLD}.
+   * 
+   * @param spillThreshold
+   */
+  public void setSpillThreshold(int spillThreshold) {
+    if (spillThreshold < 0) {
+      throw new IllegalArgumentException("spillThreshold may not be negative");
+    }
+    this.spillThreshold = spillThreshold;
+  }
+
   /**
    * Construct a new Document.
    * <p>
@@ -148,7 +565,14 @@ public class DomUtils {
    * @throws ParserConfigurationException
    */
   public static Document newDocument() throws ParserConfigurationException {
-    return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    DocumentBuilder builder = newDocumentBuilder.get();
+    if (builder == null) {
+      synchronized (newDocumentBuilderFactory) {
+        builder = newDocumentBuilderFactory.newDocumentBuilder();
+      }
+      newDocumentBuilder.set(builder);
+    }
+    return builder.newDocument();
   }
 
   /**
@@ -161,16 +585,62 @@ public class DomUtils {
    * @return the qualifying child's node value, or null when there is no such child.
    */
   public static String findFirstChildString(Element elem, String childElemName) {
-    NodeList children = elem.getChildNodes();
-    for (int i = 0; i < children.getLength(); i++) {
-      Node child = children.item(i);
-      if (child.getNodeName().equals(childElemName)) {
+    if (childElemName == null) {
+      return null;
+    }
+    for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (childElemName.equals(child.getNodeName())) {
         return child.getNodeValue();
       }
     }
     return null;
   }
 
+  /**
+   * Get the first child element with the given namespace URI and local name. Children are visited
+   * by sibling, which avoids <code>NodeList</code> implementations with linear-time
+   * <code>item()</code>. To look up several children of the same element, use a
+   * {@link ChildIndex}.
+   * 
+   * @param elem
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName
+   * @return The first such child, or null when there is none.
+   */
+  public static Element findFirstChildElement(Element elem, String namespaceUri,
+      String localName) {
+    if (localName == null) {
+      throw new IllegalArgumentException("localName may not be null");
+    }
+    for (Node child = elem.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() != Node.ELEMENT_NODE) {
+        continue;
+      }
+      // Nodes created without namespace support only have a node name.
+      String childLocalName =
+          child.getLocalName() == null ? child.getNodeName() : child.getLocalName();
+      if (localName.equals(childLocalName) && StringUtils.equals(
+          StringUtils.defaultString(namespaceUri),
+          StringUtils.defaultString(child.getNamespaceURI()))) {
+        return (Element) child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the text content of the first child element with the given namespace URI and local name.
+   * 
+   * @param elem
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName
+   * @return The child's text content, or null when there is no such child.
+   */
+  public static String findFirstChildText(Element elem, String namespaceUri, String localName) {
+    Element child = findFirstChildElement(elem, namespaceUri, localName);
+    return child == null ? null : child.getTextContent();
+  }
+
   /**
    * Convert a <code>Document</code> to a string, which can be helpful for debugging purposes.
    * <p>
@@ -188,9 +658,9 @@ public class DomUtils {
   }
 
   /**
-   * Convert a <code>Document</code> to a string, which can be helpful for debugging purposes.
-   * <p>
-   * Credit: http://stackoverflow.com/questions/2567416/document-to-string
+   * Convert a <code>Document</code> to a string, which can be helpful for debugging purposes. The
+   * output is that of an identity transform with indentation, declaring the encoding the document
+   * declares, or else UTF-8; see {@link DomSerializer}.
    * 
    * @param doc
    * @param omitXmlDeclaration Submit true to exclude the XML declaration.
@@ -198,20 +668,15 @@ public class DomUtils {
    * @return String representation of <code>Document</code>
    */
   public static String toString(Document doc, boolean omitXmlDeclaration) {
+    long start = System.nanoTime();
+    String result = null;
     try {
-      StringWriter sw = new StringWriter();
-      TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer transformer = tf.newTransformer();
-      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
-          omitXmlDeclaration ? "yes" : "no");
-      transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-      transformer.transform(new DOMSource(doc), new StreamResult(sw));
-      return sw.toString();
-    } catch (Exception ex) {
-      throw new RuntimeException("Error converting to String", ex);
+      result = DomSerializer.forCurrentThread().setIncludeXmlDeclaration(!omitXmlDeclaration)
+          .setEncoding(doc.getXmlEncoding()).setIndent(true).serializeToString(doc);
+      return result;
+    } finally {
+      reportSerialized(XmlMetricsListener.getDefault(), start,
+          result == null ? -1 : result.length(), result != null);
     }
   }
 
@@ -270,11 +735,90 @@ public class DomUtils {
         transformer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM, doctype.getSystemId());
     }
 
-    transformer.transform(ds, sr);
+    long start = System.nanoTime();
+    boolean serialized = false;
+    try {
+      transformer.transform(ds, sr);
+      serialized = true;
+    } finally {
+      reportSerialized(XmlMetricsListener.getDefault(), start,
+          serialized ? sw.getBuffer().length() : -1, serialized);
+    }
 
     return sw.toString();
   }
 
+  /**
+   * Serialize a node to a string, with the same options as
+   * {@link #serializeToString(Transformer, Node, boolean, boolean, String)}, but without a
+   * <code>Transformer</code>.
+   * 
+   * @param node
+   * @param includeXMLDeclaration
+   * @param includeDoctypeDeclaration
+   * @param encoding The encoding to declare, unless the node's document declares its own.
+   * @return A string representation of the given Node, after applying options.
+   */
+  public static String serializeToString(Node node, boolean includeXMLDeclaration,
+      boolean includeDoctypeDeclaration, String encoding) {
+    if (node == null)
+      return null;
+    long start = System.nanoTime();
+    String result = null;
+    try {
+      result = newSerializer(node, includeXMLDeclaration, includeDoctypeDeclaration, encoding)
+          .serializeToString(node);
+      return result;
+    } finally {
+      reportSerialized(XmlMetricsListener.getDefault(), start,
+          result == null ? -1 : result.length(), result != null);
+    }
+  }
+
+  /**
+   * Serialize a node to the given stream, with the same options as
+   * {@link #serializeToString(Transformer, Node, boolean, boolean, String)}. The bytes are written
+   * in the requested encoding, rather than going through a string. The stream is not closed.
+   * 
+   * @param node
+   * @param outputStream
+   * @param includeXMLDeclaration
+   * @param includeDoctypeDeclaration
+   * @param encoding The encoding to write, unless the node's document declares its own.
+   * @throws IOException
+   */
+  public static void serialize(Node node, OutputStream outputStream,
+      boolean includeXMLDeclaration, boolean includeDoctypeDeclaration, String encoding)
+      throws IOException {
+    XmlMetricsListener listener = XmlMetricsListener.getDefault();
+    MeteredOutputStream meteredOutput =
+        listener == XmlMetricsListener.NONE ? null : new MeteredOutputStream(outputStream);
+    long start = System.nanoTime();
+    boolean serialized = false;
+    try {
+      newSerializer(node, includeXMLDeclaration, includeDoctypeDeclaration, encoding)
+          .serialize(node, meteredOutput == null ? outputStream : meteredOutput);
+      serialized = true;
+    } finally {
+      reportSerialized(listener, start, meteredOutput == null ? -1 : meteredOutput.getCount(),
+          serialized);
+    }
+  }
+
+  private static DomSerializer newSerializer(Node node, boolean includeXMLDeclaration,
+      boolean includeDoctypeDeclaration, String encoding) {
+    Document doc = node.getNodeType() == Node.DOCUMENT_NODE ? (Document) node
+        : node.getOwnerDocument();
+    if (null != doc) {
+      String docxmlenc = doc.getXmlEncoding();
+      if (null != docxmlenc) {
+        encoding = docxmlenc;
+      }
+    }
+    return DomSerializer.forCurrentThread().setIncludeXmlDeclaration(includeXMLDeclaration)
+        .setIncludeDoctypeDeclaration(includeDoctypeDeclaration).setEncoding(encoding);
+  }
+
   /**
    * Serialize the node to a string. This signature uses DOMImplementationLS. Use
    * {@link #serializeToString(Transformer, Node, boolean, boolean, String)} for additional control
@@ -287,7 +831,15 @@ public class DomUtils {
     Document document = node.getOwnerDocument();
     DOMImplementationLS domImplLS = (DOMImplementationLS) document.getImplementation();
     LSSerializer serializer = domImplLS.createLSSerializer();
-    return serializer.writeToString(node);
+    long start = System.nanoTime();
+    String result = null;
+    try {
+      result = serializer.writeToString(node);
+      return result;
+    } finally {
+      reportSerialized(XmlMetricsListener.getDefault(), start,
+          result == null ? -1 : result.length(), result != null);
+    }
   }
 
   /**
@@ -295,7 +847,13 @@ public class DomUtils {
    * {@link #serializeToString(Transformer, Node, boolean, boolean, String)} but serves up the
    * return as an Element.
    * 
-   * @param transformer
+   * <p>
+   * The XML declaration, doctype declaration, and encoding only apply to serialized output, so they
+   * do not change the returned Element. When no transformation is needed, send in a null
+   * transformer to copy the Element directly, per {@link #copyElement(Element)}, which is much
+   * faster than an identity transform for large elements.
+   * 
+   * @param transformer Null may be sent in to copy the Element without transforming it.
    * @param elem
    * @param includeXMLDeclaration
    * @param includeDoctypeDeclaration
@@ -310,6 +868,14 @@ public class DomUtils {
     if (elem == null)
       return null;
 
+    if (transformer == null) {
+      try {
+        return copyElement(elem);
+      } catch (ParserConfigurationException e) {
+        throw new TransformerException("Unable to create a new Document", e);
+      }
+    }
+
     DOMSource ds = new DOMSource(elem);
     DOMResult dr = new DOMResult();
     transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
@@ -340,4 +906,37 @@ public class DomUtils {
     throw new TransformerException("DOMResult is not a Document.");
   }
 
+  /**
+   * Copy the provided Element and its descendants into a new Document, as its document element. The
+   * namespaces declared on the Element's ancestors are declared on the copy, so that it can be
+   * serialized or transformed on its own. The result is the same as an identity transform into a
+   * <code>DOMResult</code>, without the cost of the transform, except that the copy also declares
+   * ancestor namespaces that are only used in content, such as in <code>xsi:type</code> values.
+   * 
+   * @param elem
+   * @return The copy, or null when the provided Element is null.
+   * @throws ParserConfigurationException
+   */
+  public static Element copyElement(Element elem) throws ParserConfigurationException {
+    if (elem == null)
+      return null;
+
+    Document doc = newDocument();
+    Element copy = (Element) doc.importNode(elem, true);
+    for (Node ancestor = elem.getParentNode(); ancestor != null
+        && ancestor.getNodeType() == Node.ELEMENT_NODE; ancestor = ancestor.getParentNode()) {
+      NamedNodeMap attrs = ancestor.getAttributes();
+      for (int i = 0; i < attrs.getLength(); i++) {
+        Node attr = attrs.item(i);
+        String name = attr.getNodeName();
+        if ((name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith("xmlns:"))
+            && !copy.hasAttribute(name)) {
+          copy.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, attr.getNodeValue());
+        }
+      }
+    }
+    doc.appendChild(copy);
+    return copy;
+  }
+
 }
@@ -0,0 +1,54 @@
+package com.rsicms.rsuite.utils.xml;
+
+import org.w3c.dom.Node;
+
+/**
+ * Receives the nodes visited by a {@link DomWalker}, both before (pre-order) and after
+ * (post-order) their descendants. Override either or both methods; by default, both continue the
+ * walk.
+ */
+public abstract class DomVisitor {
+
+  /**
+   * What to do after visiting a node.
+   */
+  public enum Action {
+    /**
+     * Continue the walk.
+     */
+    CONTINUE,
+    /**
+     * Continue the walk, without visiting the node's descendants. Only applies to
+     * {@link DomVisitor#startNode(Node, int)}.
+     */
+    SKIP_CHILDREN,
+    /**
+     * End the walk.
+     */
+    STOP
+  }
+
+  /**
+   * Visit a node before its descendants.
+   * 
+   * @param node
+   * @param depth The node's depth relative to the node the walk started from, which is at depth 0.
+   * @return What to do next.
+   */
+  public Action startNode(Node node, int depth) {
+    return Action.CONTINUE;
+  }
+
+  /**
+   * Visit a node after its descendants. Called for every node passed to
+   * {@link #startNode(Node, int)}, unless the walk was stopped first.
+   * 
+   * @param node
+   * @param depth The node's depth relative to the node the walk started from, which is at depth 0.
+   * @return What to do next: {@link Action#STOP} ends the walk, and anything else continues it.
+   */
+  public Action endNode(Node node, int depth) {
+    return Action.CONTINUE;
+  }
+
+}
@@ -0,0 +1,240 @@
+package com.rsicms.rsuite.utils.xml;
+
+import org.apache.commons.lang.StringUtils;
+import org.w3c.dom.Node;
+import org.w3c.dom.traversal.NodeFilter;
+
+import com.rsicms.rsuite.utils.xml.DomVisitor.Action;
+
+/**
+ * Depth-first traversal of a DOM subtree in document order, by way of
+ * <code>getFirstChild()</code>, <code>getNextSibling()</code> and <code>getParentNode()</code>.
+ * Unlike walking <code>getChildNodes()</code>, this creates no objects per node, and does not
+ * depend on <code>NodeList.item()</code>, which takes linear time in some DOM implementations.
+ * <p>
+ * The nodes passed to the {@link DomVisitor} may be limited by node type, using the
+ * <code>NodeFilter.SHOW_*</code> constants, and by name. Nodes that are filtered out are still
+ * descended into. The walk may also be limited to a maximum depth, such as 1 for the children of
+ * the starting node only.
+ * <p>
+ * Configure an instance with its setters before sharing it; walks are then thread-safe, as long
+ * as the DOM is not modified during them.
+ */
+public class DomWalker {
+
+  private int whatToShow = NodeFilter.SHOW_ALL;
+  private boolean filterByName;
+  private String namespaceUri;
+  private String localName;
+  private String nodeName;
+  private int maxDepth = -1;
+  private boolean includeStart;
+
+  /**
+   * Set the node types to visit.
+   * 
+   * @param whatToShow A combination of the <code>NodeFilter.SHOW_*</code> constants. The default
+   *        is <code>NodeFilter.SHOW_ALL</code>.
+   * @return This walker.
+   */
+  public DomWalker setWhatToShow(int whatToShow) {
+    this.whatToShow = whatToShow;
+    return this;
+  }
+
+  /**
+   * Only visit elements with the given namespace URI and local name. Elements created without
+   * namespace support are matched by node name, in no namespace.
+   * 
+   * @param namespaceUri Null or an empty string for no namespace.
+   * @param localName Null for any local name in the given namespace.
+   * @return This walker.
+   */
+  public DomWalker setElementName(String namespaceUri, String localName) {
+    this.whatToShow = NodeFilter.SHOW_ELEMENT;
+    this.filterByName = true;
+    this.namespaceUri = StringUtils.defaultString(namespaceUri);
+    this.localName = localName;
+    this.nodeName = null;
+    return this;
+  }
+
+  /**
+   * Only visit nodes with the given node name, such as a qualified element name or
+   * <code>#text</code>.
+   * 
+   * @param nodeName
+   * @return This walker.
+   */
+  public DomWalker setNodeName(String nodeName) {
+    if (nodeName == null) {
+      throw new IllegalArgumentException("nodeName may not be null");
+    }
+    this.filterByName = true;
+    this.namespaceUri = null;
+    this.localName = null;
+    this.nodeName = nodeName;
+    return this;
+  }
+
+  /**
+   * Set the maximum depth to walk to, relative to the node the walk starts from.
+   * 
+   * @param maxDepth 1 for the starting node's children only, or a negative number for no limit,
+   *        which is the default.
+   * @return This walker.
+   */
+  public DomWalker setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+    return this;
+  }
+
+  /**
+   * Set whether to visit the node the walk starts from, in addition to its descendants. The
+   * default is false.
+   * 
+   * @param includeStart
+   * @return This walker.
+   */
+  public DomWalker setIncludeStart(boolean includeStart) {
+    this.includeStart = includeStart;
+    return this;
+  }
+
+  /**
+   * Walk the given subtree.
+   * 
+   * @param start The node to start from.
+   * @param visitor Receives the nodes that pass this walker's filters.
+   * @return True if the visitor stopped the walk, or false if the walk completed.
+   */
+  public boolean walk(Node start, DomVisitor visitor) {
+    if (start == null) {
+      throw new IllegalArgumentException("start may not be null");
+    }
+    int depth;
+    Node node;
+    if (includeStart) {
+      node = start;
+      depth = 0;
+    } else {
+      node = maxDepth == 0 ? null : start.getFirstChild();
+      depth = 1;
+    }
+
+    while (node != null) {
+      boolean descend = maxDepth < 0 || depth < maxDepth;
+      if (accept(node)) {
+        Action action = visitor.startNode(node, depth);
+        if (action == Action.STOP) {
+          return true;
+        }
+        if (action == Action.SKIP_CHILDREN) {
+          descend = false;
+        }
+      }
+      Node child = descend ? node.getFirstChild() : null;
+      if (child != null) {
+        node = child;
+        depth++;
+        continue;
+      }
+
+      // Finish this node and any ancestors whose last child it is, then move to the next sibling.
+      while (true) {
+        if (accept(node) && visitor.endNode(node, depth) == Action.STOP) {
+          return true;
+        }
+        if (node == start) {
+          return false;
+        }
+        Node sibling = node.getNextSibling();
+        if (sibling != null) {
+          node = sibling;
+          break;
+        }
+        node = node.getParentNode();
+        depth--;
+        if (node == null || (node == start && !includeStart)) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the first node in the given subtree, in document order, that passes this walker's
+   * filters.
+   * 
+   * @param start The node to start from.
+   * @return The first such node, or null when there is none.
+   */
+  public Node findFirst(Node start) {
+    if (start == null) {
+      throw new IllegalArgumentException("start may not be null");
+    }
+    int depth;
+    Node node;
+    if (includeStart) {
+      node = start;
+      depth = 0;
+    } else {
+      node = maxDepth == 0 ? null : start.getFirstChild();
+      depth = 1;
+    }
+
+    while (node != null) {
+      if (accept(node)) {
+        return node;
+      }
+      Node child = maxDepth < 0 || depth < maxDepth ? node.getFirstChild() : null;
+      if (child != null) {
+        node = child;
+        depth++;
+        continue;
+      }
+      while (true) {
+        if (node == start) {
+          return null;
+        }
+        Node sibling = node.getNextSibling();
+        if (sibling != null) {
+          node = sibling;
+          break;
+        }
+        node = node.getParentNode();
+        depth--;
+        if (node == null || node == start) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return True if the given node passes this walker's filters.
+   */
+  private boolean accept(Node node) {
+    // NodeFilter.SHOW_* constants are 1 shifted left by one less than the node type.
+    if ((whatToShow & (1 << (node.getNodeType() - 1))) == 0) {
+      return false;
+    }
+    if (!filterByName) {
+      return true;
+    }
+    if (nodeName != null) {
+      return nodeName.equals(node.getNodeName());
+    }
+    String name = node.getLocalName();
+    if (name == null) {
+      // Created without namespace support.
+      return (localName == null || localName.equals(node.getNodeName()))
+          && namespaceUri.length() == 0;
+    }
+    return (localName == null || localName.equals(name))
+        && namespaceUri.equals(StringUtils.defaultString(node.getNamespaceURI()));
+  }
+
+}
@@ -0,0 +1,301 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * An in-memory cache of resolved external entities, such as DTD modules and entity files. Parsing
+ * DTD-based content (e.g., DITA or DocBook) otherwise resolves and re-reads the same modules for
+ * every document.
+ * <p>
+ * Use {@link #getEntityResolver(EntityResolver)} to wrap an entity resolver, such as RSuite's, with
+ * this cache, or construct a {@link DocumentBuilderPool} with it to parse with the pool-accepting
+ * <code>getDocument</code> methods of {@link DomUtils}. Entities are keyed by public and system
+ * ID, and retained up to a total number of bytes, evicting the least recently used first.
+ * Entities larger than a quarter of that total are not retained. Cached entities are not checked
+ * for changes; call {@link #clear()} after redeploying DTDs.
+ */
+public class EntityCache {
+
+  /**
+   * The default maximum number of bytes retained by a cache.
+   */
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+  private static final EntityCache DEFAULT_INSTANCE = new EntityCache(DEFAULT_MAX_BYTES);
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final Map<String, CachedEntity> entities =
+      new LinkedHashMap<String, CachedEntity>(64, 0.75f, true);
+  private long totalBytes;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Get a cache that may be shared across the library, by callers that do not need their own.
+   * 
+   * @return The default cache.
+   */
+  public static EntityCache getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a cache.
+   * 
+   * @param maxBytes The maximum number of bytes to retain, across all entities.
+   */
+  public EntityCache(long maxBytes) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be at least 1");
+    }
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.max(1, maxBytes / 4);
+  }
+
+  /**
+   * Get an entity resolver that serves entities from this cache, and defers to the given resolver
+   * for those not yet cached.
+   * 
+   * @param delegate The resolver to defer to. Null may be sent in, in which case entities are read
+   *        directly from their system ID.
+   * @return A caching entity resolver.
+   */
+  public EntityResolver getEntityResolver(EntityResolver delegate) {
+    return new CachingEntityResolver(this, delegate);
+  }
+
+  /**
+   * Remove all entities from the cache.
+   */
+  public void clear() {
+    synchronized (entities) {
+      entities.clear();
+      totalBytes = 0;
+    }
+  }
+
+  /**
+   * @return The number of entities cached.
+   */
+  public int size() {
+    synchronized (entities) {
+      return entities.size();
+    }
+  }
+
+  /**
+   * @return The number of bytes cached, across all entities.
+   */
+  public long getTotalBytes() {
+    synchronized (entities) {
+      return totalBytes;
+    }
+  }
+
+  /**
+   * @return The maximum number of bytes retained, across all entities.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return The number of entities served from the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of entities that had to be resolved and read.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of entities evicted to stay within the maximum number of bytes.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  InputSource resolveEntity(EntityResolver delegate, String publicId, String systemId)
+      throws SAXException, IOException {
+    if (publicId == null && systemId == null) {
+      return delegate == null ? null : delegate.resolveEntity(publicId, systemId);
+    }
+    String key = (publicId == null ? "" : publicId) + '\n' + (systemId == null ? "" : systemId);
+
+    CachedEntity entity;
+    synchronized (entities) {
+      entity = entities.get(key);
+    }
+    if (entity != null) {
+      hitCount.incrementAndGet();
+      return entity.toInputSource();
+    }
+    missCount.incrementAndGet();
+
+    // Resolve outside the lock; concurrent misses on the same entity each read it.
+    InputSource resolved = delegate == null ? null : delegate.resolveEntity(publicId, systemId);
+    entity = read(resolved, publicId, systemId);
+    if (entity == null) {
+      return resolved;
+    }
+    store(key, entity);
+    return entity.toInputSource();
+  }
+
+  /**
+   * Read the resolved entity into memory.
+   * 
+   * @return The entity, or null if it cannot be read here and the parser should be left to do so.
+   */
+  private static CachedEntity read(InputSource resolved, String publicId, String systemId)
+      throws IOException {
+    String resolvedSystemId = systemId;
+    String resolvedPublicId = publicId;
+    String encoding = null;
+    byte[] bytes;
+
+    if (resolved != null) {
+      if (resolved.getSystemId() != null) {
+        resolvedSystemId = resolved.getSystemId();
+      }
+      if (resolved.getPublicId() != null) {
+        resolvedPublicId = resolved.getPublicId();
+      }
+      encoding = resolved.getEncoding();
+    }
+
+    if (resolved != null && resolved.getByteStream() != null) {
+      InputStream in = resolved.getByteStream();
+      try {
+        bytes = IOUtils.toByteArray(in);
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    } else if (resolved != null && resolved.getCharacterStream() != null) {
+      Reader reader = resolved.getCharacterStream();
+      try {
+        bytes = IOUtils.toByteArray(reader, "UTF-8");
+      } finally {
+        IOUtils.closeQuietly(reader);
+      }
+      encoding = "UTF-8";
+    } else {
+      URL url = toAbsoluteURL(resolvedSystemId);
+      if (url == null) {
+        return null;
+      }
+      InputStream in = url.openStream();
+      try {
+        bytes = IOUtils.toByteArray(in);
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+    return new CachedEntity(resolvedPublicId, resolvedSystemId, encoding, bytes);
+  }
+
+  private void store(String key, CachedEntity entity) {
+    long entityBytes = entity.bytes.length;
+    if (entityBytes > maxEntryBytes) {
+      return;
+    }
+    synchronized (entities) {
+      CachedEntity previous = entities.put(key, entity);
+      if (previous != null) {
+        totalBytes -= previous.bytes.length;
+      }
+      totalBytes += entityBytes;
+      Iterator<CachedEntity> it = entities.values().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        CachedEntity eldest = it.next();
+        if (eldest == entity) {
+          continue;
+        }
+        totalBytes -= eldest.bytes.length;
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  private static URL toAbsoluteURL(String systemId) {
+    if (systemId == null) {
+      return null;
+    }
+    try {
+      return new URL(systemId);
+    } catch (MalformedURLException e) {
+      // Relative, or not a URL the JVM knows how to open; leave it to the parser.
+      return null;
+    }
+  }
+
+  private static class CachedEntity {
+    private final String publicId;
+    private final String systemId;
+    private final String encoding;
+    private final byte[] bytes;
+
+    private CachedEntity(String publicId, String systemId, String encoding, byte[] bytes) {
+      this.publicId = publicId;
+      this.systemId = systemId;
+      this.encoding = encoding;
+      this.bytes = bytes;
+    }
+
+    /**
+     * The system ID is retained so that references relative to this entity still resolve.
+     */
+    private InputSource toInputSource() {
+      InputSource inputSource = new InputSource(new ByteArrayInputStream(bytes));
+      inputSource.setPublicId(publicId);
+      inputSource.setSystemId(systemId);
+      if (encoding != null) {
+        inputSource.setEncoding(encoding);
+      }
+      return inputSource;
+    }
+  }
+
+  /**
+   * The entity resolver returned by {@link EntityCache#getEntityResolver(EntityResolver)}.
+   */
+  private static class CachingEntityResolver implements EntityResolver {
+    private final EntityCache cache;
+    private final EntityResolver delegate;
+
+    private CachingEntityResolver(EntityCache cache, EntityResolver delegate) {
+      this.cache = cache;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId)
+        throws SAXException, IOException {
+      return cache.resolveEntity(delegate, publicId, systemId);
+    }
+  }
+
+}
@@ -0,0 +1,140 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations, cheap enough to record every operation. Durations are counted in
+ * buckets of logarithmic width, eight per power of two, so percentiles are reported to within
+ * about 12%, over any range, in constant space.
+ * <p>
+ * Instances are thread-safe. Recording does not lock or allocate.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Record one duration.
+   * 
+   * @param nanos Negative durations are recorded as 0.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(bucketIndex(nanos));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Clear all recorded durations.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+
+  /**
+   * @return The number of durations recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return The sum of the durations recorded, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  /**
+   * @return The longest duration recorded, in nanoseconds.
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * @return The mean duration recorded, in nanoseconds.
+   */
+  public long getMeanNanos() {
+    long n = count.get();
+    return n == 0 ? 0 : totalNanos.get() / n;
+  }
+
+  /**
+   * Get the duration that the given percentage of durations recorded do not exceed.
+   * 
+   * @param percentile From 0 to 100, such as 99 for the 99th percentile.
+   * @return The upper bound of the bucket holding the percentile, in nanoseconds, or 0 when
+   *         nothing has been recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be from 0 to 100");
+    }
+    long total = count.get();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + ", meanMillis=" + toMillis(getMeanNanos()) + ", p50Millis="
+        + toMillis(getPercentileNanos(50)) + ", p99Millis=" + toMillis(getPercentileNanos(99))
+        + ", maxMillis=" + toMillis(getMaxNanos());
+  }
+
+  /**
+   * @return The given duration in milliseconds, to three decimal places.
+   */
+  static double toMillis(long nanos) {
+    return Math.round(nanos / 1000.0) / 1000.0;
+  }
+
+  private static int bucketIndex(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+}
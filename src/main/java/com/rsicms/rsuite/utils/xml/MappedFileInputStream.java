@@ -0,0 +1,257 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An <code>InputStream</code> that reads a file through memory-mapped segments of a
+ * <code>FileChannel</code>, avoiding a copy into a heap buffer per read. Files larger than a single
+ * mapping allows are mapped one segment at a time.
+ * <p>
+ * Each segment is unmapped as soon as the stream moves past it or is closed, where the JVM allows,
+ * rather than whenever the garbage collector gets to it. An instance must therefore not be closed
+ * by one thread while another is reading from it.
+ * <p>
+ * The file may optionally be deleted when the stream is closed, which is how
+ * {@link SpillableOutputStream} hands off its temporary files. Some platforms do not allow a file
+ * to be deleted while it is mapped; should the JVM not allow unmapping, the file is then deleted
+ * when the JVM exits.
+ */
+public class MappedFileInputStream extends InputStream {
+
+  private static Log log = LogFactory.getLog(MappedFileInputStream.class);
+
+  /**
+   * Largest number of bytes mapped at once.
+   */
+  static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+  /**
+   * Unmaps segments, or null when the JVM offers no way to.
+   */
+  private static final Unmapper unmapper = newUnmapper();
+
+  private final File file;
+  private final boolean deleteOnClose;
+  private final long length;
+
+  private RandomAccessFile randomAccessFile;
+  private FileChannel channel;
+  private MappedByteBuffer segment;
+  private long segmentStart;
+  private long mark;
+  private boolean closed;
+
+  /**
+   * Open a stream over the given file.
+   * 
+   * @param file
+   * @param deleteOnClose Submit true to delete the file when this stream is closed.
+   * @throws IOException
+   */
+  public MappedFileInputStream(File file, boolean deleteOnClose) throws IOException {
+    this.file = file;
+    this.deleteOnClose = deleteOnClose;
+    this.randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      this.channel = randomAccessFile.getChannel();
+      this.length = channel.size();
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return The number of bytes in the file.
+   */
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureSegment()) {
+      return -1;
+    }
+    return segment.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureSegment()) {
+      return -1;
+    }
+    int count = Math.min(len, segment.remaining());
+    segment.get(b, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    checkOpen();
+    if (n <= 0) {
+      return 0;
+    }
+    long position = position();
+    long skipped = Math.min(n, length - position);
+    seek(position + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, length - position());
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = closed ? 0 : position();
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    checkOpen();
+    seek(mark);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    unmapSegment();
+    channel = null;
+    try {
+      randomAccessFile.close();
+    } finally {
+      randomAccessFile = null;
+      if (deleteOnClose && !file.delete() && file.exists()) {
+        log.debug("Unable to delete mapped file " + file + " upon close; will retry at exit.");
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private long position() {
+    return segment == null ? segmentStart : segmentStart + segment.position();
+  }
+
+  private void seek(long position) throws IOException {
+    if (segment != null && position >= segmentStart
+        && position <= segmentStart + segment.limit()) {
+      segment.position((int) (position - segmentStart));
+    } else {
+      unmapSegment();
+      segmentStart = position;
+    }
+  }
+
+  /**
+   * Make sure there is a current segment with bytes remaining.
+   * 
+   * @return False at the end of the file.
+   */
+  private boolean ensureSegment() throws IOException {
+    checkOpen();
+    if (segment != null && segment.hasRemaining()) {
+      return true;
+    }
+    long start = segment == null ? segmentStart : segmentStart + segment.limit();
+    if (start >= length) {
+      return false;
+    }
+    long size = Math.min(MAX_SEGMENT_SIZE, length - start);
+    unmapSegment();
+    segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    segmentStart = start;
+    return true;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void unmapSegment() {
+    MappedByteBuffer buffer = segment;
+    segment = null;
+    if (buffer != null && unmapper != null) {
+      try {
+        unmapper.unmap(buffer);
+      } catch (Exception e) {
+        log.debug("Unable to unmap a segment of " + file + "; leaving it to the garbage collector.",
+            e);
+      }
+    }
+  }
+
+  /**
+   * Java has no public API to unmap a buffer. From Java 9, <code>sun.misc.Unsafe</code> can; before
+   * that, the buffer's own cleaner can.
+   * 
+   * @return An unmapper, or null if neither is available.
+   */
+  private static Unmapper newUnmapper() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      final Object unsafe = theUnsafe.get(null);
+      return new Unmapper() {
+        @Override
+        void unmap(MappedByteBuffer buffer) throws Exception {
+          invokeCleaner.invoke(unsafe, buffer);
+        }
+      };
+    } catch (Exception e) {
+      // Before Java 9.
+    }
+    try {
+      final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return new Unmapper() {
+        @Override
+        void unmap(MappedByteBuffer buffer) throws Exception {
+          Object bufferCleaner = cleaner.invoke(buffer);
+          if (bufferCleaner != null) {
+            clean.invoke(bufferCleaner);
+          }
+        }
+      };
+    } catch (Exception e) {
+      log.info("Unable to unmap files in this JVM; mappings are released by garbage collection.");
+      return null;
+    }
+  }
+
+  private abstract static class Unmapper {
+    abstract void unmap(MappedByteBuffer buffer) throws Exception;
+  }
+
+}
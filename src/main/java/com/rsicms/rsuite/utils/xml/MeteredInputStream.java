@@ -0,0 +1,65 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream, for {@link XmlMetricsListener}s.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+  private long count;
+  private long mark = -1;
+
+  MeteredInputStream(InputStream in) {
+    super(in);
+  }
+
+  /**
+   * @return The number of bytes read so far.
+   */
+  long getCount() {
+    return count;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b != -1) {
+      count++;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = in.read(b, off, len);
+    if (n > 0) {
+      count += n;
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = in.skip(n);
+    count += skipped;
+    return skipped;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    in.mark(readlimit);
+    mark = count;
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    in.reset();
+    if (mark >= 0) {
+      count = mark;
+    }
+  }
+
+}
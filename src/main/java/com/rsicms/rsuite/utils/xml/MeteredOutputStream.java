@@ -0,0 +1,57 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a stream, and the time spent writing them, for
+ * {@link XmlMetricsListener}s. Serializers write in blocks, so timing each write is cheap.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+  private long count;
+  private long writeNanos;
+
+  MeteredOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  long getCount() {
+    return count;
+  }
+
+  /**
+   * @return The time spent writing and flushing so far, in nanoseconds.
+   */
+  long getWriteNanos() {
+    return writeNanos;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    long start = System.nanoTime();
+    out.write(b);
+    writeNanos += System.nanoTime() - start;
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    out.write(b, off, len);
+    writeNanos += System.nanoTime() - start;
+    count += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    out.flush();
+    writeNanos += System.nanoTime() - start;
+  }
+
+}
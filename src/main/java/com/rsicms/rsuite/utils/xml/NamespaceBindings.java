@@ -0,0 +1,130 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+
+import com.reallysi.rsuite.api.xml.Namespace;
+
+/**
+ * An immutable <code>NamespaceContext</code> of prefix bindings. Instances with the same bindings
+ * are equal, which allows them to be used as cache keys, such as by {@link XPathExpressionCache}.
+ */
+public class NamespaceBindings implements NamespaceContext {
+
+  /**
+   * Bindings without any prefixes.
+   */
+  public static final NamespaceBindings EMPTY =
+      new NamespaceBindings(Collections.<String, String>emptyMap());
+
+  private final Map<String, String> uris;
+  private final int hashCode;
+
+  /**
+   * Construct bindings from RSuite namespaces.
+   * 
+   * @param namespaces Null entries are ignored.
+   */
+  public NamespaceBindings(Namespace... namespaces) {
+    Map<String, String> map = new HashMap<String, String>();
+    if (namespaces != null) {
+      for (Namespace namespace : namespaces) {
+        if (namespace != null) {
+          map.put(namespace.getPrefix() == null ? XMLConstants.DEFAULT_NS_PREFIX
+              : namespace.getPrefix(), namespace.getUri());
+        }
+      }
+    }
+    this.uris = Collections.unmodifiableMap(map);
+    this.hashCode = map.hashCode();
+  }
+
+  /**
+   * Construct bindings from a map of prefixes to namespace URIs.
+   * 
+   * @param prefixToUri
+   */
+  public NamespaceBindings(Map<String, String> prefixToUri) {
+    Map<String, String> map = new HashMap<String, String>(prefixToUri);
+    this.uris = Collections.unmodifiableMap(map);
+    this.hashCode = map.hashCode();
+  }
+
+  /**
+   * @return The bound prefixes, mapped to their namespace URIs.
+   */
+  public Map<String, String> getBindings() {
+    return uris;
+  }
+
+  @Override
+  public String getNamespaceURI(String prefix) {
+    if (prefix == null) {
+      throw new IllegalArgumentException("prefix may not be null");
+    }
+    if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+      return XMLConstants.XML_NS_URI;
+    }
+    if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+      return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+    }
+    String uri = uris.get(prefix);
+    return uri == null ? XMLConstants.NULL_NS_URI : uri;
+  }
+
+  @Override
+  public String getPrefix(String namespaceURI) {
+    Iterator<String> prefixes = getPrefixes(namespaceURI);
+    return prefixes.hasNext() ? prefixes.next() : null;
+  }
+
+  @Override
+  public Iterator<String> getPrefixes(String namespaceURI) {
+    if (namespaceURI == null) {
+      throw new IllegalArgumentException("namespaceURI may not be null");
+    }
+    if (XMLConstants.XML_NS_URI.equals(namespaceURI)) {
+      return Collections.singletonList(XMLConstants.XML_NS_PREFIX).iterator();
+    }
+    if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)) {
+      return Collections.singletonList(XMLConstants.XMLNS_ATTRIBUTE).iterator();
+    }
+    List<String> prefixes = new ArrayList<String>(1);
+    for (Map.Entry<String, String> entry : uris.entrySet()) {
+      if (namespaceURI.equals(entry.getValue())) {
+        prefixes.add(entry.getKey());
+      }
+    }
+    return Collections.unmodifiableList(prefixes).iterator();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof NamespaceBindings)) {
+      return false;
+    }
+    NamespaceBindings other = (NamespaceBindings) obj;
+    return hashCode == other.hashCode && uris.equals(other.uris);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return uris.toString();
+  }
+
+}
@@ -0,0 +1,180 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counters of the documents parsed in one mode, such as eager or deferred DOM construction. Each
+ * parse records its elapsed time and, where the JVM can report it, the bytes the parsing thread
+ * allocated.
+ * <p>
+ * Only the parse is measured. A deferred document creates its nodes as they are first accessed,
+ * after it is returned, so its time and allocation here are those of a document that is never
+ * read. Comparing the modes on a workload that reads most of each document requires measuring
+ * around that reading as well.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ParseStatistics {
+
+  private static Log log = LogFactory.getLog(ParseStatistics.class);
+
+  /**
+   * <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)</code>, or null when the
+   * JVM does not provide it.
+   */
+  private static final Method getThreadAllocatedBytes = findGetThreadAllocatedBytes();
+
+  private final AtomicLong parseCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+  private final AtomicLong inputBytes = new AtomicLong();
+
+  /**
+   * Record a parse that completed.
+   * 
+   * @param elapsedNanos The time the parse took.
+   * @param allocated The bytes the parsing thread allocated, per
+   *        {@link #currentThreadAllocatedBytes()}, or -1 when not known.
+   * @param inputLength The length of the input in bytes, or -1 when not known.
+   */
+  public void record(long elapsedNanos, long allocated, long inputLength) {
+    parseCount.incrementAndGet();
+    totalNanos.addAndGet(elapsedNanos);
+    long max = maxNanos.get();
+    while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+      max = maxNanos.get();
+    }
+    if (allocated > 0) {
+      allocatedBytes.addAndGet(allocated);
+    }
+    if (inputLength > 0) {
+      inputBytes.addAndGet(inputLength);
+    }
+  }
+
+  /**
+   * Record a parse that failed. Its time and allocation are not counted.
+   */
+  public void recordFailure() {
+    failureCount.incrementAndGet();
+  }
+
+  /**
+   * Clear all counters.
+   */
+  public void reset() {
+    parseCount.set(0);
+    failureCount.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+    allocatedBytes.set(0);
+    inputBytes.set(0);
+  }
+
+  /**
+   * @return The number of documents parsed.
+   */
+  public long getParseCount() {
+    return parseCount.get();
+  }
+
+  /**
+   * @return The number of parses that failed.
+   */
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  /**
+   * @return The total time spent parsing, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  /**
+   * @return The longest time spent parsing one document, in nanoseconds.
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * @return The average time spent parsing one document, in nanoseconds.
+   */
+  public long getAverageNanos() {
+    long count = parseCount.get();
+    return count == 0 ? 0 : totalNanos.get() / count;
+  }
+
+  /**
+   * @return The total bytes allocated while parsing, or 0 if the JVM cannot report allocation.
+   *         Allocation by a deferred document after it is returned, as its nodes are expanded, is
+   *         not included.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * @return The total length of the inputs whose length was known, in bytes.
+   */
+  public long getInputBytes() {
+    return inputBytes.get();
+  }
+
+  /**
+   * @return True if the JVM can report the bytes allocated by a thread.
+   */
+  public static boolean isAllocationCountingSupported() {
+    return getThreadAllocatedBytes != null;
+  }
+
+  /**
+   * @return The bytes allocated by the current thread so far, or -1 when the JVM cannot report it.
+   */
+  public static long currentThreadAllocatedBytes() {
+    if (getThreadAllocatedBytes == null) {
+      return -1;
+    }
+    try {
+      return ((Long) getThreadAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(),
+          Thread.currentThread().getId())).longValue();
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "parses=" + getParseCount() + ", failures=" + getFailureCount() + ", totalMillis="
+        + getTotalNanos() / 1000000 + ", averageMillis=" + getAverageNanos() / 1000000
+        + ", maxMillis=" + getMaxNanos() / 1000000 + ", allocatedBytes=" + getAllocatedBytes()
+        + ", inputBytes=" + getInputBytes();
+  }
+
+  private static Method findGetThreadAllocatedBytes() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+      if (!sunBean.isInstance(bean)) {
+        return null;
+      }
+      Method method = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+      method.invoke(bean, Thread.currentThread().getId());
+      return method;
+    } catch (Exception e) {
+      log.debug("Thread allocation counting is not available", e);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import org.w3c.dom.Node;
+
+/**
+ * An interning table of <code>QName</code>s, so that equal names share one instance. Looking up a
+ * name already in the table does not allocate, and names from the table may be compared by
+ * identity, which <code>QName.equals()</code> checks first. This makes name tests in loops over
+ * many nodes, such as validation-style walks, cheap.
+ * <p>
+ * The table holds up to a maximum number of names, which are retained until {@link #clear()}.
+ * Once full, names not in the table are returned as new instances, which still compare equal to
+ * pooled ones. Documents use a small vocabulary, so a table that fills up usually means names are
+ * being generated; the overflow count reports this.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class QNamePool {
+
+  /**
+   * The default maximum number of names held by a pool.
+   */
+  public static final int DEFAULT_MAX_SIZE = 16384;
+
+  private static final QNamePool DEFAULT_INSTANCE = new QNamePool(DEFAULT_MAX_SIZE);
+
+  private final int maxSize;
+
+  /**
+   * Names by namespace URI, then local name. Two levels avoid allocating a composite key.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<String, QName>> names =
+      new ConcurrentHashMap<String, ConcurrentMap<String, QName>>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  // Hits are not counted, as they are the hot path of every element name test, on every thread.
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong overflowCount = new AtomicLong();
+
+  /**
+   * Get a pool that may be shared across the library, by callers that do not need their own.
+   * 
+   * @return The default pool.
+   */
+  public static QNamePool getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a pool.
+   * 
+   * @param maxSize The maximum number of names to hold.
+   */
+  public QNamePool(int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be at least 1");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the pooled instance of a name.
+   * 
+   * @param namespaceUri Null or the empty string for no namespace.
+   * @param localName
+   * @return The pooled name, or a new instance when the pool is full.
+   */
+  public QName intern(String namespaceUri, String localName) {
+    if (localName == null) {
+      throw new IllegalArgumentException("localName may not be null");
+    }
+    if (namespaceUri == null) {
+      namespaceUri = XMLConstants.NULL_NS_URI;
+    }
+    ConcurrentMap<String, QName> localNames = names.get(namespaceUri);
+    if (localNames != null) {
+      QName name = localNames.get(localName);
+      if (name != null) {
+        return name;
+      }
+    }
+    missCount.incrementAndGet();
+    return add(namespaceUri, localName, null);
+  }
+
+  /**
+   * Get the pooled instance of a name. The prefix of the given name is not retained unless it is
+   * the first instance of that name pooled.
+   * 
+   * @param name
+   * @return The pooled name, or the given name when the pool is full.
+   */
+  public QName intern(QName name) {
+    if (name == null) {
+      throw new IllegalArgumentException("name may not be null");
+    }
+    ConcurrentMap<String, QName> localNames = names.get(name.getNamespaceURI());
+    if (localNames != null) {
+      QName pooled = localNames.get(name.getLocalPart());
+      if (pooled != null) {
+        return pooled;
+      }
+    }
+    missCount.incrementAndGet();
+    return add(name.getNamespaceURI(), name.getLocalPart(), name);
+  }
+
+  /**
+   * Get the pooled name of an element or attribute. Nodes created without namespace support are
+   * named by their node name, in no namespace.
+   * 
+   * @param node
+   * @return The pooled name, or a new instance when the pool is full.
+   */
+  public QName getQName(Node node) {
+    String localName = node.getLocalName();
+    if (localName == null) {
+      return intern(XMLConstants.NULL_NS_URI, node.getNodeName());
+    }
+    return intern(node.getNamespaceURI(), localName);
+  }
+
+  /**
+   * Find out whether a node is an element with the given name.
+   * 
+   * @param node Null may be sent in.
+   * @param name Preferably from this pool, in which case the names are compared by identity.
+   * @return True if the node is an element with the given name.
+   */
+  public boolean isElement(Node node, QName name) {
+    if (node == null || node.getNodeType() != Node.ELEMENT_NODE) {
+      return false;
+    }
+    return getQName(node).equals(name);
+  }
+
+  /**
+   * Find out whether a node is an element with one of the given names.
+   * 
+   * @param node Null may be sent in.
+   * @param names Preferably a hash-based set of names from this pool, per
+   *        {@link #intern(QName)}.
+   * @return True if the node is an element with one of the given names.
+   */
+  public boolean isElement(Node node, Set<QName> names) {
+    if (node == null || node.getNodeType() != Node.ELEMENT_NODE) {
+      return false;
+    }
+    return names.contains(getQName(node));
+  }
+
+  /**
+   * Remove all names from the pool. Names already returned remain equal to those pooled later, but
+   * are no longer identical to them.
+   */
+  public void clear() {
+    names.clear();
+    size.set(0);
+  }
+
+  /**
+   * @return The maximum number of names held.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The number of names held.
+   */
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * @return The number of lookups of names not yet held.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of names not held because the pool was full.
+   */
+  public long getOverflowCount() {
+    return overflowCount.get();
+  }
+
+  private QName add(String namespaceUri, String localName, QName name) {
+    if (name == null) {
+      name = new QName(namespaceUri, localName);
+    }
+    if (size.get() >= maxSize) {
+      overflowCount.incrementAndGet();
+      return name;
+    }
+    ConcurrentMap<String, QName> localNames = names.get(namespaceUri);
+    if (localNames == null) {
+      localNames = new ConcurrentHashMap<String, QName>();
+      ConcurrentMap<String, QName> existing = names.putIfAbsent(namespaceUri, localNames);
+      if (existing != null) {
+        localNames = existing;
+      }
+    }
+    QName existing = localNames.putIfAbsent(localName, name);
+    if (existing != null) {
+      return existing;
+    }
+    size.incrementAndGet();
+    return name;
+  }
+
+}
@@ -0,0 +1,381 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An <code>OutputStream</code> that buffers in memory until a configurable threshold is reached,
+ * then spills to a temporary file. Use {@link #toInputStream()} to read back what was written.
+ * <p>
+ * In memory, the content is held in fixed-size chunks drawn from a small shared pool, so the
+ * buffer never grows by copying and chunks are reused once the returned stream is closed. Spilled
+ * content is read back through a {@link MappedFileInputStream}, which deletes the temporary file
+ * when closed. The heap used per instance is therefore bounded by the threshold, regardless of how
+ * much is written.
+ * <p>
+ * Callers must either hand the content off via {@link #toInputStream()} or call
+ * {@link #dispose()}; doing both is fine, making <code>dispose()</code> suitable for a finally
+ * block.
+ */
+public class SpillableOutputStream extends OutputStream {
+
+  private static Log log = LogFactory.getLog(SpillableOutputStream.class);
+
+  /**
+   * The default number of bytes held in memory before spilling to a temporary file.
+   */
+  public static final int DEFAULT_SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+  static final int CHUNK_SIZE = 32 * 1024;
+
+  /**
+   * Maximum number of idle chunks retained by the shared pool.
+   */
+  private static final int MAX_POOLED_CHUNKS = 256;
+
+  private static final Queue<byte[]> chunkPool = new ConcurrentLinkedQueue<byte[]>();
+  private static final AtomicInteger pooledChunkCount = new AtomicInteger();
+
+  private static final String TEMP_FILE_PREFIX = "rsuite-xml-";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final int spillThreshold;
+  private final File tempDirectory;
+
+  private List<byte[]> chunks = new ArrayList<byte[]>();
+  private int chunkPosition = CHUNK_SIZE;
+  private long size;
+
+  private File spillFile;
+  private OutputStream spillStream;
+
+  private boolean closed;
+  private boolean handedOff;
+
+  /**
+   * Construct an instance that spills to the default temporary directory once the default
+   * threshold is exceeded.
+   */
+  public SpillableOutputStream() {
+    this(DEFAULT_SPILL_THRESHOLD);
+  }
+
+  /**
+   * Construct an instance that spills to the default temporary directory.
+   * 
+   * @param spillThreshold The number of bytes that may be held in memory. Zero spills immediately.
+   */
+  public SpillableOutputStream(int spillThreshold) {
+    this(spillThreshold, null);
+  }
+
+  /**
+   * Construct an instance.
+   * 
+   * @param spillThreshold The number of bytes that may be held in memory. Zero spills immediately.
+   * @param tempDirectory Directory to spill to. Null may be sent in to use the default temporary
+   *        directory.
+   */
+  public SpillableOutputStream(int spillThreshold, File tempDirectory) {
+    if (spillThreshold < 0) {
+      throw new IllegalArgumentException("spillThreshold may not be negative");
+    }
+    this.spillThreshold = spillThreshold;
+    this.tempDirectory = tempDirectory;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkWritable();
+    if (spillStream == null && size + 1 > spillThreshold) {
+      spill();
+    }
+    if (spillStream != null) {
+      spillStream.write(b);
+    } else {
+      if (chunkPosition == CHUNK_SIZE) {
+        addChunk();
+      }
+      chunks.get(chunks.size() - 1)[chunkPosition++] = (byte) b;
+    }
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkWritable();
+    if (spillStream == null && size + len > spillThreshold) {
+      spill();
+    }
+    if (spillStream != null) {
+      spillStream.write(b, off, len);
+    } else {
+      int remaining = len;
+      while (remaining > 0) {
+        if (chunkPosition == CHUNK_SIZE) {
+          addChunk();
+        }
+        int count = Math.min(remaining, CHUNK_SIZE - chunkPosition);
+        System.arraycopy(b, off, chunks.get(chunks.size() - 1), chunkPosition, count);
+        chunkPosition += count;
+        off += count;
+        remaining -= count;
+      }
+    }
+    size += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (spillStream != null) {
+      spillStream.flush();
+    }
+  }
+
+  /**
+   * Finish writing. The content remains available to {@link #toInputStream()}.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (spillStream != null) {
+      spillStream.close();
+    }
+  }
+
+  /**
+   * @return The number of bytes written.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return True if the content has been spilled to a temporary file.
+   */
+  public boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  /**
+   * @return The number of bytes that may be held in memory before spilling.
+   */
+  public int getSpillThreshold() {
+    return spillThreshold;
+  }
+
+  /**
+   * Close this stream, and get a stream of what was written to it. May only be called once. The
+   * caller is responsible for closing the returned stream, which releases the memory or temporary
+   * file backing it.
+   * 
+   * @return A stream of the bytes written.
+   * @throws IOException
+   */
+  public InputStream toInputStream() throws IOException {
+    if (handedOff) {
+      throw new IllegalStateException("The content has already been handed off or disposed of.");
+    }
+    close();
+    handedOff = true;
+    if (spillFile != null) {
+      try {
+        return new MappedFileInputStream(spillFile, true);
+      } catch (IOException e) {
+        spillFile.delete();
+        throw e;
+      }
+    }
+    InputStream inputStream = new ChunkInputStream(chunks, size);
+    chunks = null;
+    return inputStream;
+  }
+
+  /**
+   * Release the memory or temporary file held by this stream, unless already handed off via
+   * {@link #toInputStream()}.
+   */
+  public void dispose() {
+    if (handedOff) {
+      return;
+    }
+    handedOff = true;
+    closed = true;
+    if (spillStream != null) {
+      IOUtils.closeQuietly(spillStream);
+    }
+    if (spillFile != null && !spillFile.delete() && spillFile.exists()) {
+      spillFile.deleteOnExit();
+    }
+    releaseChunks(chunks);
+    chunks = null;
+  }
+
+  private void checkWritable() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void addChunk() {
+    byte[] chunk = chunkPool.poll();
+    if (chunk != null) {
+      pooledChunkCount.decrementAndGet();
+    } else {
+      chunk = new byte[CHUNK_SIZE];
+    }
+    chunks.add(chunk);
+    chunkPosition = 0;
+  }
+
+  private void spill() throws IOException {
+    spillFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, tempDirectory);
+    if (log.isDebugEnabled()) {
+      log.debug("Spilling output over " + spillThreshold + " bytes to " + spillFile);
+    }
+    try {
+      spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), CHUNK_SIZE);
+      long remaining = size;
+      for (byte[] chunk : chunks) {
+        int count = (int) Math.min(CHUNK_SIZE, remaining);
+        spillStream.write(chunk, 0, count);
+        remaining -= count;
+      }
+    } catch (IOException e) {
+      dispose();
+      throw e;
+    }
+    releaseChunks(chunks);
+    chunks.clear();
+  }
+
+  private static void releaseChunks(List<byte[]> chunks) {
+    if (chunks == null) {
+      return;
+    }
+    for (byte[] chunk : chunks) {
+      if (pooledChunkCount.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+        chunkPool.offer(chunk);
+      } else {
+        pooledChunkCount.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Reads the in-memory chunks, and returns them to the pool upon close.
+   */
+  private static class ChunkInputStream extends InputStream {
+
+    private List<byte[]> chunks;
+    private final long size;
+    private long position;
+    private long mark;
+
+    private ChunkInputStream(List<byte[]> chunks, long size) {
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkOpen();
+      if (position >= size) {
+        return -1;
+      }
+      int b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)] & 0xFF;
+      position++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      checkOpen();
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= size) {
+        return -1;
+      }
+      int total = 0;
+      while (len > 0 && position < size) {
+        int offsetInChunk = (int) (position % CHUNK_SIZE);
+        int count = (int) Math.min(Math.min(len, CHUNK_SIZE - offsetInChunk), size - position);
+        System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), offsetInChunk, b, off, count);
+        position += count;
+        off += count;
+        len -= count;
+        total += count;
+      }
+      return total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      checkOpen();
+      if (n <= 0) {
+        return 0;
+      }
+      long skipped = Math.min(n, size - position);
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      checkOpen();
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      checkOpen();
+      position = mark;
+    }
+
+    @Override
+    public void close() {
+      releaseChunks(chunks);
+      chunks = null;
+    }
+
+    private void checkOpen() throws IOException {
+      if (chunks == null) {
+        throw new IOException("Stream closed");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import com.reallysi.rsuite.service.XmlApiManager;
+
+/**
+ * One record split from a larger document by an {@link XmlSplitter}: a standalone UTF-8 XML
+ * document whose root element declares every namespace that was in scope for it.
+ */
+public class SplitRecord {
+
+  private final int index;
+  private final QName name;
+  private final byte[] bytes;
+
+  SplitRecord(int index, QName name, byte[] bytes) {
+    this.index = index;
+    this.name = name;
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return The position of this record in the input, starting at 0.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return The name of the record's root element.
+   */
+  public QName getName() {
+    return name;
+  }
+
+  /**
+   * @return The record, serialized as UTF-8. The array is not copied, and may not be modified.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return A new stream of the record's bytes.
+   */
+  public InputStream getInputStream() {
+    return new ByteArrayInputStream(bytes);
+  }
+
+  /**
+   * @return A new source of the record, such as for the iTransform methods of
+   *         {@link TransformUtils} that accept a <code>Source</code>. Entities were expanded when
+   *         the record was split, so no entity resolver is needed.
+   */
+  public Source getSource() {
+    return new StreamSource(getInputStream());
+  }
+
+  /**
+   * Parse the record into a new <code>Document</code>, using a builder drawn from the given pool.
+   * 
+   * @param xmlApiManager
+   * @param documentBuilderPool See {@link DocumentBuilderPool#getDefault()}.
+   * @return The record as a document.
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Document getDocument(XmlApiManager xmlApiManager,
+      DocumentBuilderPool documentBuilderPool) throws SAXException, IOException {
+    DocumentBuilder builder = documentBuilderPool.lease(xmlApiManager);
+    try {
+      return builder.parse(getInputStream());
+    } finally {
+      documentBuilderPool.release(xmlApiManager, builder);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "record " + index + " (" + name + ", " + bytes.length + " bytes)";
+  }
+
+}
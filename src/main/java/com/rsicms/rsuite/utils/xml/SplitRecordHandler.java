@@ -0,0 +1,17 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * Processes the records an {@link XmlSplitter} splits from a document.
+ */
+public interface SplitRecordHandler {
+
+  /**
+   * Process one record. When the splitter runs handlers in parallel, this is called from several
+   * threads at once.
+   * 
+   * @param record
+   * @throws Exception Ends the split, which then fails with this exception as its cause.
+   */
+  void handleRecord(SplitRecord record) throws Exception;
+
+}
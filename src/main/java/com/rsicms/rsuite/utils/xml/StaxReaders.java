@@ -0,0 +1,104 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * The StAX input factory shared by the streaming classes of this package. It is namespace aware
+ * and coalescing, and replaces entity references. External entities are resolved with the SAX
+ * entity resolver bound to the current thread, if any, as the factory's own resolver may not be
+ * changed once the factory is shared.
+ */
+final class StaxReaders {
+
+  private static final XMLInputFactory inputFactory = newInputFactory();
+
+  private static final ThreadLocal<EntityResolver> currentEntityResolver =
+      new ThreadLocal<EntityResolver>();
+
+  private StaxReaders() {
+  }
+
+  /**
+   * Create a reader. Bind the entity resolver first, and keep it bound while reading.
+   * 
+   * @param inputStream
+   * @return The reader.
+   * @throws XMLStreamException
+   */
+  static XMLStreamReader createXMLStreamReader(InputStream inputStream)
+      throws XMLStreamException {
+    return inputFactory.createXMLStreamReader(inputStream);
+  }
+
+  /**
+   * Bind an entity resolver to the current thread.
+   * 
+   * @param entityResolver Null may be sent in, in which case entities are resolved by system ID.
+   * @return The resolver previously bound, to send into {@link #restoreEntityResolver}.
+   */
+  static EntityResolver bindEntityResolver(EntityResolver entityResolver) {
+    EntityResolver previous = currentEntityResolver.get();
+    currentEntityResolver.set(entityResolver);
+    return previous;
+  }
+
+  /**
+   * Restore the entity resolver that was bound to the current thread.
+   * 
+   * @param previous The value {@link #bindEntityResolver} returned.
+   */
+  static void restoreEntityResolver(EntityResolver previous) {
+    if (previous == null) {
+      currentEntityResolver.remove();
+    } else {
+      currentEntityResolver.set(previous);
+    }
+  }
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+    factory.setXMLResolver(new XMLResolver() {
+      @Override
+      public Object resolveEntity(String publicId, String systemId, String baseUri,
+          String namespace) throws XMLStreamException {
+        EntityResolver entityResolver = currentEntityResolver.get();
+        if (entityResolver == null) {
+          // Let the parser resolve it.
+          return null;
+        }
+        try {
+          InputSource inputSource = entityResolver.resolveEntity(publicId, systemId);
+          if (inputSource == null) {
+            return null;
+          }
+          if (inputSource.getByteStream() != null) {
+            return inputSource.getByteStream();
+          }
+          String resolvedSystemId =
+              inputSource.getSystemId() != null ? inputSource.getSystemId() : systemId;
+          return resolvedSystemId == null ? null : new URL(resolvedSystemId).openStream();
+        } catch (SAXException e) {
+          throw new XMLStreamException("Unable to resolve entity " + systemId, e);
+        } catch (IOException e) {
+          throw new XMLStreamException("Unable to resolve entity " + systemId, e);
+        }
+      }
+    });
+    return factory;
+  }
+
+}
@@ -0,0 +1,605 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.EntityResolver;
+
+/**
+ * A forward-only subset of XPath, evaluated while streaming through a document with StAX, without
+ * building a DOM. Evaluation stops as soon as the requested number of matches is found, so a value
+ * near the start of a large document is found without reading the rest of it.
+ * <p>
+ * The supported subset is a location path of steps separated by <code>/</code> (child) or
+ * <code>//</code> (descendant), optionally starting with either. Each step is one of:
+ * <ul>
+ * <li>An element name test (<code>name</code>, <code>prefix:name</code>, <code>*</code> or
+ * <code>prefix:*</code>), followed by any number of attribute predicates, each of the form
+ * <code>[@name]</code> or <code>[@name='value']</code>.</li>
+ * <li>As the last step only, an attribute name test (<code>@name</code>, <code>@*</code>, etc.)
+ * or <code>text()</code>.</li>
+ * </ul>
+ * The axis names <code>child::</code>, <code>descendant::</code> and <code>attribute::</code> may
+ * also be used. As in XPath 1.0, an unprefixed name test matches names in no namespace. Each match
+ * is returned as its string value: an element's text content, an attribute's value, or the
+ * content of a text node. Paths are evaluated from the document root, whether or not they start
+ * with <code>/</code>.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+public class StreamingXPath {
+
+  static final int AXIS_CHILD = 0;
+  static final int AXIS_DESCENDANT = 1;
+
+  static final int KIND_ELEMENT = 0;
+  static final int KIND_ATTRIBUTE = 1;
+  static final int KIND_TEXT = 2;
+
+  /**
+   * The matching state of each step is one bit of a <code>long</code>, with one more for a
+   * complete match.
+   */
+  static final int MAX_STEPS = 62;
+
+  private final String expression;
+  private final Step[] steps;
+  private final int resultKind;
+  private final boolean absolute;
+
+  private StreamingXPath(String expression, Step[] steps, int resultKind, boolean absolute) {
+    this.expression = expression;
+    this.steps = steps;
+    this.resultKind = resultKind;
+    this.absolute = absolute;
+  }
+
+  /**
+   * Compile an expression.
+   * 
+   * @param expression
+   * @param namespaceContext Resolves the prefixes used in the expression. Null may be sent in when
+   *        the expression does not use prefixes.
+   * @return The compiled expression.
+   * @throws XPathExpressionException Thrown if the expression is not within the supported subset,
+   *         or uses an unbound prefix.
+   */
+  public static StreamingXPath compile(String expression, NamespaceContext namespaceContext)
+      throws XPathExpressionException {
+    if (expression == null) {
+      throw new IllegalArgumentException("expression may not be null");
+    }
+    return new Parser(expression, namespaceContext).parse();
+  }
+
+  /**
+   * Evaluate against the given stream, returning the first match.
+   * 
+   * @param inputStream The stream is not closed.
+   * @return The string value of the first match, or null if there is none.
+   * @throws XMLStreamException
+   */
+  public String evaluateFirst(InputStream inputStream) throws XMLStreamException {
+    List<String> matches = evaluate(inputStream, null, 1);
+    return matches.isEmpty() ? null : matches.get(0);
+  }
+
+  /**
+   * Evaluate against the given stream, returning all matches.
+   * 
+   * @param inputStream The stream is not closed.
+   * @return The string values of the matches, in document order.
+   * @throws XMLStreamException
+   */
+  public List<String> evaluate(InputStream inputStream) throws XMLStreamException {
+    return evaluate(inputStream, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Evaluate against the given stream, stopping once the given number of matches is found.
+   * 
+   * @param inputStream The stream is not closed.
+   * @param entityResolver Resolves the DTD and other external entities, such as
+   *        <code>XmlApiManager#getRSuiteAwareEntityResolver()</code>. Null may be sent in, in which
+   *        case they are resolved by system ID.
+   * @param maxMatches The maximum number of matches to return.
+   * @return The string values of the matches, in document order.
+   * @throws XMLStreamException
+   */
+  public List<String> evaluate(InputStream inputStream, EntityResolver entityResolver,
+      int maxMatches) throws XMLStreamException {
+    EntityResolver previous = StaxReaders.bindEntityResolver(entityResolver);
+    XMLStreamReader reader = null;
+    try {
+      reader = StaxReaders.createXMLStreamReader(inputStream);
+      return evaluate(reader, maxMatches);
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+      StaxReaders.restoreEntityResolver(previous);
+    }
+  }
+
+  /**
+   * Evaluate against the given reader, from its current position, stopping once the given number
+   * of matches is found. The reader should be namespace aware and coalescing. It is left
+   * positioned after the last event read, and is not closed.
+   * 
+   * @param reader
+   * @param maxMatches The maximum number of matches to return.
+   * @return The string values of the matches, in document order.
+   * @throws XMLStreamException
+   */
+  public List<String> evaluate(XMLStreamReader reader, int maxMatches)
+      throws XMLStreamException {
+    List<String> matches = new ArrayList<String>();
+    if (maxMatches < 1) {
+      return matches;
+    }
+    StaxAttributes attributes = new StaxAttributes(reader);
+    long[] masks = new long[32];
+    int depth = 0;
+    masks[0] = initialMask();
+    // Element matches whose string values are still being read, for KIND_ELEMENT.
+    List<Capture> captures = new ArrayList<Capture>(2);
+    int completed = 0;
+
+    while (reader.hasNext()) {
+      int event = reader.next();
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT: {
+          long mask = elementMask(masks[depth], reader.getNamespaceURI(), reader.getLocalName(),
+              attributes);
+          if (++depth == masks.length) {
+            long[] grown = new long[depth * 2];
+            System.arraycopy(masks, 0, grown, 0, depth);
+            masks = grown;
+          }
+          masks[depth] = mask;
+          if (resultKind == KIND_ELEMENT) {
+            if (isMatch(mask)) {
+              captures.add(new Capture(depth, matches.size()));
+              matches.add(null);
+            }
+          } else if (resultKind == KIND_ATTRIBUTE && isContext(mask)) {
+            for (int i = 0; i < attributes.getCount(); i++) {
+              if (matchesAttribute(attributes, i)) {
+                matches.add(attributes.getValue(i));
+                if (++completed >= maxMatches) {
+                  return matches;
+                }
+              }
+            }
+          }
+          if (depth == 1 && mask == 0 && captures.isEmpty()) {
+            // Nothing within the document element can match.
+            return matches;
+          }
+          break;
+        }
+        case XMLStreamConstants.END_ELEMENT:
+          if (!captures.isEmpty()) {
+            Capture last = captures.get(captures.size() - 1);
+            if (last.depth == depth) {
+              captures.remove(captures.size() - 1);
+              matches.set(last.index, last.text.toString());
+              if (last.index < maxMatches && ++completed >= maxMatches) {
+                return new ArrayList<String>(matches.subList(0, maxMatches));
+              }
+            }
+          }
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (depth == 0) {
+            break;
+          }
+          if (resultKind == KIND_TEXT) {
+            if (isContext(masks[depth])) {
+              matches.add(reader.getText());
+              if (++completed >= maxMatches) {
+                return matches;
+              }
+            }
+          } else {
+            for (int i = 0; i < captures.size(); i++) {
+              captures.get(i).text.append(reader.getTextCharacters(), reader.getTextStart(),
+                  reader.getTextLength());
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * @return The expression this instance was compiled from.
+   */
+  public String getExpression() {
+    return expression;
+  }
+
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+  /*
+   * The matching engine, shared with evaluators that walk a DOM. Bit i of a mask is set when the
+   * first i steps have matched on the path to the current element, so that step i is to be tried
+   * next; bit n (for n steps) is set when an element matches the last step.
+   */
+
+  int getResultKind() {
+    return resultKind;
+  }
+
+  /**
+   * @return True if the expression starts with <code>/</code> or <code>//</code>, rather than
+   *         being relative to a context node.
+   */
+  boolean isAbsolute() {
+    return absolute;
+  }
+
+  long initialMask() {
+    return 1L;
+  }
+
+  /**
+   * Compute the mask of an element, given the mask of its parent.
+   */
+  long elementMask(long parentMask, String namespaceUri, String localName,
+      AttributeAccessor attributes) {
+    long mask = 0;
+    int count = steps.length;
+    for (int i = 0; i < count; i++) {
+      if ((parentMask & (1L << i)) == 0) {
+        continue;
+      }
+      Step step = steps[i];
+      if (step.axis == AXIS_DESCENDANT) {
+        mask |= 1L << i;
+      }
+      if (step.kind == KIND_ELEMENT && step.matchesName(namespaceUri, localName)
+          && step.matchesPredicates(attributes)) {
+        mask |= 1L << (i + 1);
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * @return True if an element with the given mask matches, for an expression whose last step is
+   *         an element step.
+   */
+  boolean isMatch(long mask) {
+    return (mask & (1L << steps.length)) != 0;
+  }
+
+  /**
+   * @return True if an element with the given mask is the context of the last step, for an
+   *         expression whose last step is an attribute or text step.
+   */
+  boolean isContext(long mask) {
+    return (mask & (1L << (steps.length - 1))) != 0;
+  }
+
+  /**
+   * @return True if the given attribute matches the last step, for an expression whose last step
+   *         is an attribute step.
+   */
+  boolean matchesAttribute(AttributeAccessor attributes, int index) {
+    return steps[steps.length - 1].matchesName(attributes.getNamespaceURI(index),
+        attributes.getLocalName(index));
+  }
+
+  /**
+   * Indexed access to the attributes of the current element, excluding namespace declarations.
+   */
+  interface AttributeAccessor {
+    int getCount();
+
+    String getNamespaceURI(int index);
+
+    String getLocalName(int index);
+
+    String getValue(int index);
+  }
+
+  private static class StaxAttributes implements AttributeAccessor {
+    private final XMLStreamReader reader;
+
+    private StaxAttributes(XMLStreamReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public int getCount() {
+      return reader.getAttributeCount();
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+      return reader.getAttributeNamespace(index);
+    }
+
+    @Override
+    public String getLocalName(int index) {
+      return reader.getAttributeLocalName(index);
+    }
+
+    @Override
+    public String getValue(int index) {
+      return reader.getAttributeValue(index);
+    }
+  }
+
+  private static class Capture {
+    private final int depth;
+    private final int index;
+    private final StringBuilder text = new StringBuilder();
+
+    private Capture(int depth, int index) {
+      this.depth = depth;
+      this.index = index;
+    }
+  }
+
+  private static class Step {
+    private final int axis;
+    private final int kind;
+    // Null matches any.
+    private final String namespaceUri;
+    private final String localName;
+    private final Predicate[] predicates;
+
+    private Step(int axis, int kind, String namespaceUri, String localName,
+        Predicate[] predicates) {
+      this.axis = axis;
+      this.kind = kind;
+      this.namespaceUri = namespaceUri;
+      this.localName = localName;
+      this.predicates = predicates;
+    }
+
+    private boolean matchesName(String nsUri, String name) {
+      return matchesName(namespaceUri, localName, nsUri, name);
+    }
+
+    private static boolean matchesName(String testNamespaceUri, String testLocalName,
+        String nsUri, String name) {
+      if (testLocalName != null && !testLocalName.equals(name)) {
+        return false;
+      }
+      if (testNamespaceUri == null) {
+        return true;
+      }
+      return testNamespaceUri.equals(nsUri == null ? XMLConstants.NULL_NS_URI : nsUri);
+    }
+
+    private boolean matchesPredicates(AttributeAccessor attributes) {
+      for (Predicate predicate : predicates) {
+        if (!predicate.matches(attributes)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class Predicate {
+    private final String namespaceUri;
+    private final String localName;
+    // Null tests for the attribute's presence.
+    private final String value;
+
+    private Predicate(String namespaceUri, String localName, String value) {
+      this.namespaceUri = namespaceUri;
+      this.localName = localName;
+      this.value = value;
+    }
+
+    private boolean matches(AttributeAccessor attributes) {
+      int count = attributes.getCount();
+      for (int i = 0; i < count; i++) {
+        if (Step.matchesName(namespaceUri, localName, attributes.getNamespaceURI(i),
+            attributes.getLocalName(i))
+            && (value == null || value.equals(attributes.getValue(i)))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Parses the supported subset.
+   */
+  private static class Parser {
+    private final String expression;
+    private final NamespaceContext namespaceContext;
+    private int pos;
+
+    private Parser(String expression, NamespaceContext namespaceContext) {
+      this.expression = expression;
+      this.namespaceContext = namespaceContext;
+    }
+
+    private StreamingXPath parse() throws XPathExpressionException {
+      List<Step> steps = new ArrayList<Step>();
+      int resultKind = KIND_ELEMENT;
+      skipWhitespace();
+      int axis = AXIS_CHILD;
+      boolean absolute = true;
+      if (consume("//")) {
+        axis = AXIS_DESCENDANT;
+      } else if (!consume("/")) {
+        absolute = false;
+      }
+      while (true) {
+        skipWhitespace();
+        if (resultKind != KIND_ELEMENT) {
+          throw error("Attribute and text() steps must be last");
+        }
+        int kind = KIND_ELEMENT;
+        if (consume("child::")) {
+          // The default.
+        } else if (consume("descendant::")) {
+          if (axis == AXIS_DESCENDANT) {
+            throw error("descendant:: may not follow //");
+          }
+          axis = AXIS_DESCENDANT;
+        } else if (consume("attribute::") || consume("@")) {
+          kind = KIND_ATTRIBUTE;
+        }
+
+        if (kind == KIND_ELEMENT && consume("text()")) {
+          steps.add(new Step(axis, KIND_TEXT, null, null, new Predicate[0]));
+          resultKind = KIND_TEXT;
+        } else {
+          String[] name = parseNameTest(kind == KIND_ATTRIBUTE);
+          List<Predicate> predicates = new ArrayList<Predicate>(0);
+          skipWhitespace();
+          while (kind == KIND_ELEMENT && consume("[")) {
+            predicates.add(parsePredicate());
+            skipWhitespace();
+          }
+          steps.add(new Step(axis, kind, name[0], name[1],
+              predicates.toArray(new Predicate[predicates.size()])));
+          resultKind = kind;
+        }
+
+        skipWhitespace();
+        if (pos == expression.length()) {
+          break;
+        }
+        if (consume("//")) {
+          axis = AXIS_DESCENDANT;
+        } else if (consume("/")) {
+          axis = AXIS_CHILD;
+        } else {
+          throw error("Unsupported syntax");
+        }
+      }
+      if (steps.size() > MAX_STEPS) {
+        throw error("Too many steps");
+      }
+      return new StreamingXPath(expression, steps.toArray(new Step[steps.size()]), resultKind,
+          absolute);
+    }
+
+    private Predicate parsePredicate() throws XPathExpressionException {
+      skipWhitespace();
+      if (!consume("@") && !consume("attribute::")) {
+        throw error("Only attribute predicates are supported");
+      }
+      String[] name = parseNameTest(true);
+      skipWhitespace();
+      String value = null;
+      if (consume("=")) {
+        skipWhitespace();
+        value = parseLiteral();
+        skipWhitespace();
+      }
+      if (!consume("]")) {
+        throw error("Expected ]");
+      }
+      return new Predicate(name[0], name[1], value);
+    }
+
+    /**
+     * @return The namespace URI (null for any) and local name (null for any).
+     */
+    private String[] parseNameTest(boolean isAttribute) throws XPathExpressionException {
+      if (consume("*")) {
+        return new String[] {null, null};
+      }
+      String first = parseNCName();
+      if (!consume(":")) {
+        // Unprefixed names are in no namespace, including for elements.
+        return new String[] {XMLConstants.NULL_NS_URI, first};
+      }
+      String uri = namespaceContext == null ? null : namespaceContext.getNamespaceURI(first);
+      if (uri == null || uri.length() == 0) {
+        throw error("Unbound prefix " + first);
+      }
+      if (consume("*")) {
+        return new String[] {uri, null};
+      }
+      return new String[] {uri, parseNCName()};
+    }
+
+    private String parseNCName() throws XPathExpressionException {
+      int start = pos;
+      while (pos < expression.length()) {
+        char c = expression.charAt(pos);
+        if (Character.isLetter(c) || c == '_'
+            || (pos > start && (Character.isDigit(c) || c == '-' || c == '.'))) {
+          pos++;
+        } else {
+          break;
+        }
+      }
+      if (pos == start) {
+        throw error("Expected a name");
+      }
+      String name = expression.substring(start, pos);
+      if (expression.startsWith("(", pos) || expression.startsWith("::", pos)) {
+        throw error("Unsupported function or axis " + name);
+      }
+      return name;
+    }
+
+    private String parseLiteral() throws XPathExpressionException {
+      if (pos >= expression.length()) {
+        throw error("Expected a string literal");
+      }
+      char quote = expression.charAt(pos);
+      if (quote != '\'' && quote != '"') {
+        throw error("Expected a string literal");
+      }
+      int end = expression.indexOf(quote, pos + 1);
+      if (end < 0) {
+        throw error("Unterminated string literal");
+      }
+      String literal = expression.substring(pos + 1, end);
+      pos = end + 1;
+      return literal;
+    }
+
+    private boolean consume(String token) {
+      if (expression.startsWith(token, pos)) {
+        pos += token.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void skipWhitespace() {
+      while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private XPathExpressionException error(String message) {
+      return new XPathExpressionException(
+          message + " at position " + pos + " of streaming XPath " + expression);
+    }
+  }
+
+}
@@ -0,0 +1,521 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded cache of compiled stylesheets (<code>Templates</code>). Compiling an XSL is typically
+ * the most expensive part of a transform; a <code>Templates</code> instance is thread-safe and may
+ * be used to create any number of <code>Transformer</code>s.
+ * <p>
+ * Stylesheets are keyed by URI, or by a hash of their content when provided as bytes. The least
+ * recently used entry is evicted once the configured number of entries is exceeded. Stylesheets
+ * identified by a <code>file:</code> URI are recompiled when the file's last modified time or
+ * length changes. Changes to modules brought in by <code>xsl:include</code> or
+ * <code>xsl:import</code> are not detected; use {@link #invalidate(URI)} or
+ * {@link #invalidateAll()} for those. Concurrent requests for a stylesheet that is not cached share
+ * one compilation.
+ * <p>
+ * Stylesheets removed for any of those reasons are also evicted from the {@link TransformerPool}s
+ * of the {@link TransformUtils} instances using this cache, such that their idle transformers do
+ * not keep them in memory.
+ */
+public class TemplatesCache {
+
+  private static Log log = LogFactory.getLog(TemplatesCache.class);
+
+  /**
+   * The default maximum number of compiled stylesheets retained by a cache.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+
+  private static final String CONTENT_KEY_PREFIX = "sha1:";
+
+  private static final TemplatesCache DEFAULT_INSTANCE = new TemplatesCache(DEFAULT_MAX_ENTRIES);
+
+  private final TransformerFactory transformerFactory;
+  private final int maxEntries;
+  private final Map<String, CachedTemplates> entries;
+  // The compilations in progress, by key, which concurrent misses on the same key wait for rather
+  // than compiling the stylesheet again.
+  private final ConcurrentMap<String, FutureTask<Templates>> compiling =
+      new ConcurrentHashMap<String, FutureTask<Templates>>();
+  // Guarded by itself. Held weakly so that this cache does not keep discarded pools alive.
+  private final Set<TransformerPool> pools =
+      Collections.newSetFromMap(new WeakHashMap<TransformerPool, Boolean>());
+  // Guarded by itself. The system ID each stylesheet was compiled with, for naming it in metrics.
+  // Held weakly so that this cache does not keep removed stylesheets alive.
+  private final Map<Templates, String> systemIds = new WeakHashMap<Templates, String>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  /**
+   * Get the cache shared by instances of {@link TransformUtils} that were not given their own.
+   * 
+   * @return The default cache.
+   */
+  public static TemplatesCache getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a cache that compiles stylesheets with the JAXP default
+   * <code>TransformerFactory</code>.
+   * 
+   * @param maxEntries The maximum number of compiled stylesheets to retain.
+   */
+  public TemplatesCache(int maxEntries) {
+    this(TransformerFactory.newInstance(), maxEntries);
+  }
+
+  /**
+   * Construct a cache that compiles stylesheets with the given factory.
+   * 
+   * @param transformerFactory The factory to compile stylesheets with. Access to it is
+   *        synchronized by this cache.
+   * @param maxEntries The maximum number of compiled stylesheets to retain.
+   */
+  public TemplatesCache(TransformerFactory transformerFactory, final int maxEntries) {
+    if (transformerFactory == null) {
+      throw new IllegalArgumentException("transformerFactory may not be null");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    this.transformerFactory = transformerFactory;
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, CachedTemplates>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedTemplates> eldest) {
+        if (size() > TemplatesCache.this.maxEntries) {
+          evictionCount.incrementAndGet();
+          removed(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get the compiled stylesheet identified by the given URI, compiling it if it is not cached or
+   * has changed on disk.
+   * 
+   * @param stylesheetUri Absolute URI of the stylesheet.
+   * @return The compiled stylesheet.
+   * @throws TransformerConfigurationException Thrown if the stylesheet cannot be compiled.
+   */
+  public Templates getTemplates(URI stylesheetUri) throws TransformerConfigurationException {
+    if (stylesheetUri == null) {
+      throw new IllegalArgumentException("stylesheetUri may not be null");
+    }
+    File file = null;
+    if ("file".equalsIgnoreCase(stylesheetUri.getScheme())) {
+      file = new File(stylesheetUri);
+    }
+    String key = stylesheetUri.toString();
+
+    CachedTemplates entry = lookup(key, file);
+    if (entry != null) {
+      return entry.templates;
+    }
+
+    Source source = file != null ? new StreamSource(file) : new StreamSource(key);
+    return compileAndStore(key, file, source);
+  }
+
+  /**
+   * Get the compiled stylesheet in the given file.
+   * 
+   * @param stylesheetFile The stylesheet file.
+   * @return The compiled stylesheet.
+   * @throws TransformerConfigurationException Thrown if the stylesheet cannot be compiled.
+   */
+  public Templates getTemplates(File stylesheetFile) throws TransformerConfigurationException {
+    if (stylesheetFile == null) {
+      throw new IllegalArgumentException("stylesheetFile may not be null");
+    }
+    return getTemplates(stylesheetFile.getAbsoluteFile().toURI());
+  }
+
+  /**
+   * Get the compiled version of the given stylesheet content, keyed by a hash of the content.
+   * 
+   * @param stylesheet The stylesheet's bytes.
+   * @param systemId Optional system ID used to resolve relative references within the stylesheet.
+   *        Null may be sent in.
+   * @return The compiled stylesheet.
+   * @throws TransformerConfigurationException Thrown if the stylesheet cannot be compiled.
+   */
+  public Templates getTemplates(byte[] stylesheet, String systemId)
+      throws TransformerConfigurationException {
+    if (stylesheet == null) {
+      throw new IllegalArgumentException("stylesheet may not be null");
+    }
+    String key = getContentKey(stylesheet, systemId);
+
+    CachedTemplates entry = lookup(key, null);
+    if (entry != null) {
+      return entry.templates;
+    }
+
+    StreamSource source = new StreamSource(new ByteArrayInputStream(stylesheet));
+    if (systemId != null) {
+      source.setSystemId(systemId);
+    }
+    return compileAndStore(key, null, source);
+  }
+
+  /**
+   * Create a SAX handler that applies the given compiled stylesheet to the events it receives, for
+   * chaining stylesheets without serializing between them.
+   * 
+   * @param templates A stylesheet compiled by this cache's factory.
+   * @return A new handler.
+   * @throws TransformerConfigurationException Thrown if the factory does not support SAX.
+   * @throws IllegalArgumentException Thrown if the stylesheet was compiled by an implementation
+   *         other than that of this cache's factory.
+   */
+  TransformerHandler newTransformerHandler(Templates templates)
+      throws TransformerConfigurationException {
+    if (!transformerFactory.getFeature(SAXTransformerFactory.FEATURE)) {
+      throw new TransformerConfigurationException(
+          transformerFactory.getClass().getName() + " does not support SAX transformer handlers");
+    }
+    try {
+      synchronized (transformerFactory) {
+        return ((SAXTransformerFactory) transformerFactory).newTransformerHandler(templates);
+      }
+    } catch (ClassCastException e) {
+      // Factories cast the Templates, or the Transformer it creates, to their own implementation.
+      throw new IllegalArgumentException("Templates " + templates.getClass().getName()
+          + " was not compiled by " + transformerFactory.getClass().getName()
+          + "; compile it with the TemplatesCache of the TransformUtils running the pipeline", e);
+    }
+  }
+
+  /**
+   * @param templates
+   * @return The system ID the given stylesheet was compiled with, or null if it was not compiled
+   *         by this cache or was compiled from bytes without a system ID.
+   */
+  String getSystemId(Templates templates) {
+    synchronized (systemIds) {
+      return systemIds.get(templates);
+    }
+  }
+
+  /**
+   * Remove the stylesheet identified by the given URI from the cache.
+   * 
+   * @param stylesheetUri
+   * @return True if the stylesheet was cached.
+   */
+  public boolean invalidate(URI stylesheetUri) {
+    if (stylesheetUri == null) {
+      return false;
+    }
+    CachedTemplates entry;
+    synchronized (entries) {
+      entry = entries.remove(stylesheetUri.toString());
+    }
+    if (entry == null) {
+      return false;
+    }
+    invalidationCount.incrementAndGet();
+    removed(entry);
+    return true;
+  }
+
+  /**
+   * Remove all stylesheets from the cache.
+   */
+  public void invalidateAll() {
+    List<CachedTemplates> removed;
+    synchronized (entries) {
+      removed = new ArrayList<CachedTemplates>(entries.values());
+      entries.clear();
+    }
+    invalidationCount.addAndGet(removed.size());
+    for (CachedTemplates entry : removed) {
+      removed(entry);
+    }
+  }
+
+  /**
+   * Remove stylesheets identified by a <code>file:</code> URI whose file has changed since it was
+   * compiled. This is also done lazily upon lookup; calling this method only releases memory
+   * sooner.
+   * 
+   * @return The number of stylesheets removed.
+   */
+  public int purgeModified() {
+    List<CachedTemplates> purged = new ArrayList<CachedTemplates>();
+    synchronized (entries) {
+      Iterator<CachedTemplates> it = entries.values().iterator();
+      while (it.hasNext()) {
+        CachedTemplates entry = it.next();
+        if (entry.isModified()) {
+          it.remove();
+          purged.add(entry);
+        }
+      }
+    }
+    invalidationCount.addAndGet(purged.size());
+    for (CachedTemplates entry : purged) {
+      removed(entry);
+    }
+    return purged.size();
+  }
+
+  /**
+   * @return The number of compiled stylesheets currently cached.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return The maximum number of compiled stylesheets this cache retains.
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return The number of lookups satisfied by the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of lookups that required compiling the stylesheet.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of entries evicted to stay within the maximum number of entries.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * @return The number of entries removed because they were changed or explicitly invalidated.
+   */
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  private CachedTemplates lookup(String key, File file) {
+    CachedTemplates entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    // The file is checked outside the lock, so that lookups of other stylesheets do not wait on
+    // the file system.
+    if (entry != null && (file == null || !entry.isModified())) {
+      hitCount.incrementAndGet();
+      return entry;
+    }
+    if (entry != null) {
+      boolean modified = false;
+      synchronized (entries) {
+        // Another thread may have already replaced the entry.
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+          modified = true;
+        }
+      }
+      if (modified) {
+        invalidationCount.incrementAndGet();
+        removed(entry);
+        if (log.isDebugEnabled()) {
+          log.debug("Stylesheet changed on disk; recompiling " + key);
+        }
+      }
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  private Templates compileAndStore(final String key, final File file, final Source source)
+      throws TransformerConfigurationException {
+    FutureTask<Templates> task = new FutureTask<Templates>(new Callable<Templates>() {
+      @Override
+      public Templates call() throws TransformerConfigurationException {
+        return compile(key, file, source);
+      }
+    });
+    FutureTask<Templates> existing = compiling.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        compiling.remove(key, task);
+      }
+    } else {
+      task = existing;
+    }
+    return await(task);
+  }
+
+  /**
+   * Wait for a compilation, which like the factory's lock is not interruptible.
+   */
+  private static Templates await(FutureTask<Templates> task)
+      throws TransformerConfigurationException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof TransformerConfigurationException) {
+            throw (TransformerConfigurationException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new TransformerConfigurationException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private Templates compile(String key, File file, Source source)
+      throws TransformerConfigurationException {
+    // Capture the file's state before compiling so a change made during compilation is seen as a
+    // change upon the next lookup.
+    long lastModified = file != null ? file.lastModified() : 0L;
+    long length = file != null ? file.length() : 0L;
+
+    Templates templates;
+    // Concurrent misses on the same key share this compilation. Factories are not thread-safe,
+    // but the map's lock is not held while compiling, so lookups of cached stylesheets proceed.
+    synchronized (transformerFactory) {
+      templates = transformerFactory.newTemplates(source);
+    }
+    if (source.getSystemId() != null) {
+      synchronized (systemIds) {
+        systemIds.put(templates, source.getSystemId());
+      }
+    }
+
+    CachedTemplates replaced;
+    synchronized (entries) {
+      replaced = entries.put(key, new CachedTemplates(templates, file, lastModified, length));
+    }
+    if (replaced != null) {
+      removed(replaced);
+    }
+    return templates;
+  }
+
+  /**
+   * Have the stylesheets this cache removes evicted from the given pool as well.
+   * 
+   * @param pool
+   */
+  void addPool(TransformerPool pool) {
+    synchronized (pools) {
+      pools.add(pool);
+    }
+  }
+
+  private void removed(CachedTemplates entry) {
+    List<TransformerPool> targets;
+    synchronized (pools) {
+      targets = new ArrayList<TransformerPool>(pools);
+    }
+    for (TransformerPool pool : targets) {
+      pool.evict(entry.templates);
+    }
+  }
+
+  private static String getContentKey(byte[] content, String systemId) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(content);
+      StringBuilder sb = new StringBuilder(CONTENT_KEY_PREFIX.length() + hash.length * 2 + 1);
+      sb.append(CONTENT_KEY_PREFIX);
+      for (byte b : hash) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      // The system ID influences how relative includes resolve, and thus the compiled result.
+      if (systemId != null) {
+        sb.append('@').append(systemId);
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  private static class CachedTemplates {
+    private final Templates templates;
+    private final File file;
+    private final long lastModified;
+    private final long length;
+
+    private CachedTemplates(Templates templates, File file, long lastModified, long length) {
+      this.templates = templates;
+      this.file = file;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    private boolean isModified() {
+      return file != null && (file.lastModified() != lastModified || file.length() != length);
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The pending result of an asynchronous transform. See {@link AsyncTransform}.
+ * <p>
+ * Listeners may be added to be notified once the transform completes, fails or is cancelled, so
+ * that a caller need not block a thread in {@link #get()}. Cancelling with
+ * <code>mayInterruptIfRunning</code> set to true interrupts the transform. A result that is
+ * produced after the transform was cancelled is closed, rather than leaked.
+ * 
+ * @param <V> The type of result.
+ */
+public class TransformFuture<V> extends FutureTask<V> {
+
+  private static Log log = LogFactory.getLog(TransformFuture.class);
+
+  // Guarded by this; null once the listeners have run.
+  private List<Runnable> listeners = new ArrayList<Runnable>(2);
+
+  TransformFuture(Callable<V> callable) {
+    super(callable);
+  }
+
+  /**
+   * Run the given listener once this transform is done, or right away if it already is.
+   * 
+   * @param listener
+   * @param executor Where to run the listener. To run it on the thread that completes the
+   *        transform, send in an executor that runs tasks directly.
+   */
+  public void addListener(final Runnable listener, final Executor executor) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(listener);
+      }
+    };
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(task);
+        return;
+      }
+    }
+    runListener(task);
+  }
+
+  @Override
+  protected void set(V v) {
+    super.set(v);
+    if (isCancelled() && v instanceof Closeable) {
+      try {
+        ((Closeable) v).close();
+      } catch (IOException e) {
+        log.debug("Unable to close the result of a cancelled transform", e);
+      }
+    }
+  }
+
+  @Override
+  protected void done() {
+    List<Runnable> toRun;
+    synchronized (this) {
+      toRun = listeners;
+      listeners = null;
+    }
+    for (Runnable listener : toRun) {
+      runListener(listener);
+    }
+  }
+
+  private static void runListener(Runnable listener) {
+    try {
+      listener.run();
+    } catch (RuntimeException e) {
+      log.warn("Transform listener failed", e);
+    }
+  }
+
+}
@@ -0,0 +1,303 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * The measurements of one transform by {@link TransformUtils}, passed to
+ * {@link XmlMetricsListener#transformed(TransformMetrics)}. The time of the transform is divided
+ * into {@link TransformPhase}s.
+ * <p>
+ * When the listener's {@link XmlMetricsListener#isParseTimed()} is true, parsing is timed from the
+ * start of the input to its last event, which for processors that build a tree of the input before
+ * applying the stylesheet, as Saxon and Xalan do, separates it from the transform. The output
+ * phase is the time spent writing to, and then reading back from, the library's output buffer, or
+ * writing to the caller's stream or channel.
+ * <p>
+ * Instances are only used by the thread that performed the transform.
+ */
+public final class TransformMetrics {
+
+  private static Log log = LogFactory.getLog(TransformMetrics.class);
+
+  /**
+   * The name reported for transforms with a transformer supplied by the caller, or a compiled
+   * stylesheet whose system ID is not known, such as one not compiled by a {@link TemplatesCache}.
+   */
+  public static final String SUPPLIED_TRANSFORMER = "(supplied transformer)";
+
+  /**
+   * The transform this thread is measuring. Public methods of {@link TransformUtils} call each
+   * other, and the outermost reports.
+   */
+  private static final ThreadLocal<TransformMetrics> current = new ThreadLocal<TransformMetrics>();
+
+  private final XmlMetricsListener listener;
+  private final boolean parseTimed;
+  private final long startNanos = System.nanoTime();
+  private int depth;
+
+  private String stylesheet = SUPPLIED_TRANSFORMER;
+  private long templatesNanos;
+  private long entityResolutionNanos;
+  private long parseStartNanos = -1;
+  private long parseWallNanos;
+  private long transformCallNanos;
+  private long outputWriteNanos;
+  private long outputBufferNanos;
+  private long totalNanos;
+  private long inputBytes = -1;
+  private long outputBytes = -1;
+  private boolean failed;
+  private MeteredInputStream meteredInput;
+  private MeteredOutputStream meteredOutput;
+
+  private TransformMetrics(XmlMetricsListener listener) {
+    this.listener = listener;
+    this.parseTimed = listener.isParseTimed();
+  }
+
+  /**
+   * @return The URI or system ID of the stylesheet applied, or {@link #SUPPLIED_TRANSFORMER}.
+   */
+  public String getStylesheet() {
+    return stylesheet;
+  }
+
+  /**
+   * @param phase
+   * @return The time spent in the given phase, in nanoseconds.
+   */
+  public long getNanos(TransformPhase phase) {
+    switch (phase) {
+      case TEMPLATES:
+        return templatesNanos;
+      case ENTITY_RESOLUTION:
+        return entityResolutionNanos;
+      case PARSE:
+        return Math.max(0, parseWallNanos - entityResolutionNanos);
+      case TRANSFORM:
+        return Math.max(0, transformCallNanos - parseWallNanos - outputWriteNanos);
+      case OUTPUT:
+        return outputWriteNanos + outputBufferNanos;
+      default:
+        throw new IllegalArgumentException("Unknown phase: " + phase);
+    }
+  }
+
+  /**
+   * @return The time the transform took, from the call to the library to its return, in
+   *         nanoseconds.
+   */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * @return The length of the input, or -1 when not known, such as for a <code>Document</code>.
+   */
+  public long getInputBytes() {
+    return inputBytes;
+  }
+
+  /**
+   * @return The length of the output, or -1 when not known, such as for a caller's
+   *         <code>Result</code>.
+   */
+  public long getOutputBytes() {
+    return outputBytes;
+  }
+
+  /**
+   * @return True if the transform failed.
+   */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(stylesheet);
+    for (TransformPhase phase : TransformPhase.values()) {
+      sb.append(", ").append(phase).append('=').append(getNanos(phase));
+    }
+    return sb.append(", total=").append(totalNanos).append(", inputBytes=").append(inputBytes)
+        .append(", outputBytes=").append(outputBytes).append(failed ? ", failed" : "").toString();
+  }
+
+  /**
+   * Start measuring a transform, or join the one this thread is already measuring. Each call must
+   * be paired with {@link #end(TransformMetrics, boolean)}.
+   * 
+   * @param listener
+   * @return The measurements, or null when the listener is {@link XmlMetricsListener#NONE}.
+   */
+  static TransformMetrics begin(XmlMetricsListener listener) {
+    if (listener == XmlMetricsListener.NONE) {
+      return null;
+    }
+    TransformMetrics metrics = current.get();
+    if (metrics == null) {
+      metrics = new TransformMetrics(listener);
+      current.set(metrics);
+    }
+    metrics.depth++;
+    return metrics;
+  }
+
+  /**
+   * Stop measuring, reporting to the listener when this ends the outermost call.
+   * 
+   * @param metrics Null may be sent in.
+   * @param completed False if the call is ending with an exception.
+   */
+  static void end(TransformMetrics metrics, boolean completed) {
+    if (metrics == null) {
+      return;
+    }
+    if (!completed) {
+      metrics.failed = true;
+    }
+    if (--metrics.depth == 0) {
+      current.remove();
+      metrics.totalNanos = System.nanoTime() - metrics.startNanos;
+      if (metrics.meteredInput != null) {
+        metrics.inputBytes = metrics.meteredInput.getCount();
+      }
+      if (metrics.meteredOutput != null) {
+        metrics.outputBytes = metrics.meteredOutput.getCount();
+        metrics.outputWriteNanos = metrics.meteredOutput.getWriteNanos();
+      }
+      try {
+        metrics.listener.transformed(metrics);
+      } catch (RuntimeException e) {
+        log.warn("Metrics listener failed", e);
+      }
+    }
+  }
+
+  void setStylesheet(String stylesheet) {
+    this.stylesheet = stylesheet;
+  }
+
+  void addTemplatesNanos(long nanos) {
+    templatesNanos += nanos;
+  }
+
+  void addTransformCallNanos(long nanos) {
+    transformCallNanos += nanos;
+  }
+
+  void addOutputBufferNanos(long nanos) {
+    outputBufferNanos += nanos;
+  }
+
+  /**
+   * Wrap a reader so that its parse and entity resolution are timed, if the listener times parses.
+   * 
+   * @param metrics Null may be sent in, in which case the reader is returned as is, as it is when
+   *        the listener does not time parses.
+   * @param reader
+   * @param entityResolver The resolver the reader was to use. Null may be sent in.
+   * @return A reader to use in place of the given one.
+   */
+  static XMLReader meter(TransformMetrics metrics, XMLReader reader,
+      EntityResolver entityResolver) {
+    if (metrics == null || !metrics.parseTimed) {
+      return reader;
+    }
+    ParseTimer timer = metrics.new ParseTimer(reader);
+    if (entityResolver != null) {
+      timer.setEntityResolver(metrics.new TimingEntityResolver(entityResolver));
+    }
+    return timer;
+  }
+
+  /**
+   * Wrap the transform's input so that its length is counted.
+   * 
+   * @param metrics Null may be sent in, in which case the stream is returned as is.
+   * @param inputStream
+   * @return A stream to use in place of the given one.
+   */
+  static InputStream meter(TransformMetrics metrics, InputStream inputStream) {
+    if (metrics == null) {
+      return inputStream;
+    }
+    metrics.meteredInput = new MeteredInputStream(inputStream);
+    return metrics.meteredInput;
+  }
+
+  /**
+   * Wrap the transform's output so that its length, and the time spent writing it, are counted.
+   * 
+   * @param metrics Null may be sent in, in which case the stream is returned as is.
+   * @param outputStream
+   * @return A stream to use in place of the given one.
+   */
+  static OutputStream meter(TransformMetrics metrics, OutputStream outputStream) {
+    if (metrics == null) {
+      return outputStream;
+    }
+    metrics.meteredOutput = new MeteredOutputStream(outputStream);
+    return metrics.meteredOutput;
+  }
+
+  /**
+   * Times a parse from its start to the end of the document.
+   */
+  private class ParseTimer extends XMLFilterImpl {
+
+    ParseTimer(XMLReader parent) {
+      super(parent);
+    }
+
+    @Override
+    public void parse(InputSource input) throws SAXException, IOException {
+      parseStartNanos = System.nanoTime();
+      super.parse(input);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+      if (parseStartNanos >= 0) {
+        parseWallNanos += System.nanoTime() - parseStartNanos;
+        parseStartNanos = -1;
+      }
+      super.endDocument();
+    }
+  }
+
+  /**
+   * Times the resolution of entities.
+   */
+  private class TimingEntityResolver implements EntityResolver {
+
+    private final EntityResolver delegate;
+
+    TimingEntityResolver(EntityResolver delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) throws SAXException,
+        IOException {
+      long start = System.nanoTime();
+      try {
+        return delegate.resolveEntity(publicId, systemId);
+      } finally {
+        entityResolutionNanos += System.nanoTime() - start;
+      }
+    }
+  }
+
+}
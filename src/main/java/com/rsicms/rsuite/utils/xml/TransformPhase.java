@@ -0,0 +1,37 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * The phases a transform's time is divided into by {@link TransformMetrics}.
+ */
+public enum TransformPhase {
+
+  /**
+   * Getting the compiled stylesheet and a transformer for it, including compiling the stylesheet
+   * when it is not cached.
+   */
+  TEMPLATES,
+
+  /**
+   * Resolving the input's external entities, such as its DTD. Only measured when parsing is, per
+   * {@link XmlMetricsListener#isParseTimed()}.
+   */
+  ENTITY_RESOLUTION,
+
+  /**
+   * Parsing the input, excluding entity resolution. Only measured for inputs the library parses,
+   * such as streams, managed objects, and uploaded files, when the listener's
+   * {@link XmlMetricsListener#isParseTimed()} is true.
+   */
+  PARSE,
+
+  /**
+   * Applying the stylesheet: the time the transformer takes, excluding parsing and output.
+   */
+  TRANSFORM,
+
+  /**
+   * Writing and buffering the result.
+   */
+  OUTPUT
+
+}
@@ -0,0 +1,645 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A cache of transform results, keyed by the stylesheet, a SHA-256 digest of the input's content,
+ * and the normalized XSLT parameters. Repeated transforms of unchanged content, such as previews
+ * and exports of the same MO, are then served without parsing or transforming.
+ * <p>
+ * Results are retained in memory up to a total number of bytes, evicting the least recently used
+ * first; results larger than a quarter of that total are not retained in memory. A directory may
+ * also be given, in which case every result up to the disk tier's own limit is written there as
+ * well, serving results evicted from memory or too large for it, and surviving restarts.
+ * <p>
+ * Parameters named by {@link #getVolatileParameters()}, by default
+ * <code>rsuite.sessionkey</code>, are left out of the key, as they change from session to session
+ * without changing the result. Parameter values must be strings, numbers, booleans, characters,
+ * URIs, or collections of them; transforms with other values, such as nodes, are not cached.
+ * <p>
+ * A <code>file:</code> stylesheet is identified by its URI, modification time, and length, so
+ * editing it stops its previous results from being served. Modules it includes or imports are not
+ * checked, nor are stylesheets at other URIs; call {@link #clear()} after redeploying them.
+ * Results that depend on anything else, such as the current time or the repository, should not be
+ * cached.
+ * <p>
+ * Enable with {@link TransformUtils#setResultCache(TransformResultCache)}.
+ */
+public class TransformResultCache {
+
+  private static Log log = LogFactory.getLog(TransformResultCache.class);
+
+  /**
+   * The parameters left out of the key by default.
+   */
+  public static final Set<String> DEFAULT_VOLATILE_PARAMETERS =
+      Collections.unmodifiableSet(new HashSet<String>(
+          Arrays.asList(TransformUtils.PARAM_NAME_RSUITE_SESSION_KEY)));
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  private static final String FILE_SUFFIX = ".result";
+  private static final String TEMP_FILE_PREFIX = "rsuite-xml-";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final Map<String, byte[]> results = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+  private long totalBytes;
+
+  private final File directory;
+  private final long maxDiskBytes;
+  private final Map<String, Long> diskResults = new LinkedHashMap<String, Long>(64, 0.75f, true);
+  private long totalDiskBytes;
+
+  private volatile Set<String> volatileParameters = DEFAULT_VOLATILE_PARAMETERS;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong diskHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final AtomicLong diskEvictionCount = new AtomicLong();
+
+  /**
+   * Construct a cache that retains results in memory only.
+   * 
+   * @param maxBytes The maximum number of bytes to retain in memory, across all results.
+   */
+  public TransformResultCache(long maxBytes) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be at least 1");
+    }
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.max(1, maxBytes / 4);
+    this.directory = null;
+    this.maxDiskBytes = 0;
+  }
+
+  /**
+   * Construct a cache that retains results in memory and in the given directory. Results already
+   * in the directory, such as from before a restart, are served.
+   * 
+   * @param maxBytes The maximum number of bytes to retain in memory, across all results.
+   * @param directory Directory dedicated to this cache, which is created if need be. Null may be
+   *        sent in to retain results in memory only.
+   * @param maxDiskBytes The maximum number of bytes to retain in the directory, across all
+   *        results.
+   * @throws IOException Thrown if the directory cannot be created.
+   */
+  public TransformResultCache(long maxBytes, File directory, long maxDiskBytes)
+      throws IOException {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("maxBytes must be at least 1");
+    }
+    if (directory != null && maxDiskBytes < 1) {
+      throw new IllegalArgumentException("maxDiskBytes must be at least 1");
+    }
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.max(1, maxBytes / 4);
+    this.directory = directory;
+    this.maxDiskBytes = directory == null ? 0 : maxDiskBytes;
+    if (directory != null) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Unable to create " + directory);
+      }
+      loadDirectory();
+    }
+  }
+
+  /**
+   * @return The names of the parameters left out of the key.
+   */
+  public Set<String> getVolatileParameters() {
+    return volatileParameters;
+  }
+
+  /**
+   * Set the names of the parameters left out of the key, such as those that identify the session
+   * or request without affecting the result. The default is
+   * {@link #DEFAULT_VOLATILE_PARAMETERS}.
+   * 
+   * @param volatileParameters
+   */
+  public void setVolatileParameters(Set<String> volatileParameters) {
+    if (volatileParameters == null) {
+      throw new IllegalArgumentException("volatileParameters may not be null");
+    }
+    this.volatileParameters =
+        Collections.unmodifiableSet(new HashSet<String>(volatileParameters));
+  }
+
+  /**
+   * Get a digest to feed the input's content to, for {@link #getKey(URI, byte[], Map)}.
+   * 
+   * @return A new SHA-256 digest.
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to provide SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param xslParams The parameters passed to the stylesheet. Null may be sent in.
+   * @return True if the parameters can be part of a key, so that the transform may be cached.
+   */
+  public boolean isCacheable(Map<String, Object> xslParams) {
+    if (xslParams != null) {
+      Set<String> excluded = volatileParameters;
+      for (Map.Entry<String, Object> entry : xslParams.entrySet()) {
+        if (!excluded.contains(entry.getKey()) && !isKeyable(entry.getValue())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the key of a transform.
+   * 
+   * @param stylesheetUri Absolute URI of the stylesheet.
+   * @param inputDigest The digest of the input's content, from {@link #newDigest()}.
+   * @param xslParams The parameters passed to the stylesheet, including any standard RSuite
+   *        parameters. Null may be sent in.
+   * @return The key, or null if a parameter value is of a type that cannot be part of a key.
+   */
+  public String getKey(URI stylesheetUri, byte[] inputDigest, Map<String, Object> xslParams) {
+    if (stylesheetUri == null) {
+      throw new IllegalArgumentException("stylesheetUri may not be null");
+    }
+    if (inputDigest == null) {
+      throw new IllegalArgumentException("inputDigest may not be null");
+    }
+    StringBuilder sb = new StringBuilder(stylesheetUri.toString()).append('\n');
+    if ("file".equalsIgnoreCase(stylesheetUri.getScheme())) {
+      File file = new File(stylesheetUri);
+      sb.append(file.lastModified()).append(' ').append(file.length());
+    }
+    sb.append('\n');
+
+    if (xslParams != null) {
+      Set<String> excluded = volatileParameters;
+      // Sort by name, so the order the caller added them in does not matter.
+      for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(xslParams).entrySet()) {
+        if (excluded.contains(entry.getKey())) {
+          continue;
+        }
+        if (!isKeyable(entry.getValue())) {
+          return null;
+        }
+        sb.append(entry.getKey()).append('=');
+        appendValue(sb, entry.getValue());
+        sb.append('\n');
+      }
+    }
+
+    MessageDigest digest = newDigest();
+    digest.update(inputDigest);
+    try {
+      digest.update(sb.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static boolean isKeyable(Object value) {
+    if (value instanceof Collection) {
+      for (Object item : (Collection<?>) value) {
+        if (!isKeyable(item)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return value == null || value instanceof CharSequence || value instanceof Number
+        || value instanceof Boolean || value instanceof Character || value instanceof URI;
+  }
+
+  /**
+   * Append a value to a key, along with its type, as a string and a number of the same text are
+   * different values to a stylesheet.
+   */
+  private static void appendValue(StringBuilder sb, Object value) {
+    if (value == null) {
+      sb.append("null");
+    } else if (value instanceof Collection) {
+      sb.append('[');
+      for (Object item : (Collection<?>) value) {
+        appendValue(sb, item);
+        sb.append(',');
+      }
+      sb.append(']');
+    } else {
+      String text = value.toString();
+      // The length keeps values containing the delimiters from running into each other.
+      sb.append(value.getClass().getName()).append(':').append(text.length()).append(':')
+          .append(text);
+    }
+  }
+
+  /**
+   * Get a cached result.
+   * 
+   * @param key From {@link #getKey(URI, byte[], Map)}.
+   * @return A stream of the result, which the caller is responsible for closing, or null if it is
+   *         not cached.
+   */
+  public InputStream get(String key) {
+    byte[] bytes;
+    synchronized (results) {
+      bytes = results.get(key);
+    }
+    if (bytes != null) {
+      hitCount.incrementAndGet();
+      return new ByteArrayInputStream(bytes);
+    }
+
+    InputStream inputStream = directory == null ? null : getFromDisk(key);
+    if (inputStream != null) {
+      hitCount.incrementAndGet();
+      diskHitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return inputStream;
+  }
+
+  private InputStream getFromDisk(String key) {
+    Long length;
+    synchronized (diskResults) {
+      length = diskResults.get(key);
+    }
+    if (length == null) {
+      return null;
+    }
+    File file = getFile(key);
+    try {
+      if (length <= maxEntryBytes) {
+        // Small enough to bring back into memory.
+        byte[] bytes;
+        InputStream inputStream = new FileInputStream(file);
+        try {
+          bytes = IOUtils.toByteArray(inputStream);
+        } finally {
+          IOUtils.closeQuietly(inputStream);
+        }
+        store(key, bytes);
+        return new ByteArrayInputStream(bytes);
+      }
+      return new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      // Evicted, or removed from outside.
+      removeFromDisk(key);
+      return null;
+    } catch (IOException e) {
+      log.warn("Unable to read cached transform result " + file, e);
+      removeFromDisk(key);
+      return null;
+    }
+  }
+
+  /**
+   * Cache a result. The result is read into memory up to the most this cache retains for one
+   * result; a larger result is written to the directory, or without one, streamed through to the
+   * caller uncached.
+   * 
+   * @param key From {@link #getKey(URI, byte[], Map)}.
+   * @param result The result of the transform. It is closed by this method or by the returned
+   *        stream.
+   * @return A stream of the result, which the caller is responsible for closing.
+   * @throws IOException
+   */
+  public InputStream put(String key, InputStream result) throws IOException {
+    boolean handedOff = false;
+    try {
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      boolean complete = copy(result, head, maxEntryBytes + 1) <= maxEntryBytes;
+      byte[] headBytes = head.toByteArray();
+
+      if (complete) {
+        store(key, headBytes);
+        if (directory != null && headBytes.length <= maxDiskBytes) {
+          IOUtils.closeQuietly(storeOnDisk(key, new ByteArrayInputStream(headBytes)));
+        }
+        return new ByteArrayInputStream(headBytes);
+      }
+
+      InputStream content = new SequenceInputStream(new ByteArrayInputStream(headBytes), result);
+      if (directory == null) {
+        handedOff = true;
+        return content;
+      }
+      return storeOnDisk(key, content);
+    } finally {
+      if (!handedOff) {
+        IOUtils.closeQuietly(result);
+      }
+    }
+  }
+
+  /**
+   * Copy up to the given number of bytes.
+   * 
+   * @return The number of bytes copied.
+   */
+  private static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+    byte[] buffer = new byte[8192];
+    long count = 0;
+    int n;
+    while (count < limit
+        && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - count))) != -1) {
+      out.write(buffer, 0, n);
+      count += n;
+    }
+    return count;
+  }
+
+  private void store(String key, byte[] bytes) {
+    if (bytes.length > maxEntryBytes) {
+      return;
+    }
+    synchronized (results) {
+      byte[] previous = results.put(key, bytes);
+      if (previous != null) {
+        totalBytes -= previous.length;
+      }
+      totalBytes += bytes.length;
+      Iterator<byte[]> it = results.values().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        byte[] eldest = it.next();
+        if (eldest == bytes) {
+          continue;
+        }
+        totalBytes -= eldest.length;
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Write a result to the directory, by way of a temporary file so a partial result is never
+   * served.
+   * 
+   * @return A stream of the result. When the result exceeds the disk tier, or cannot be moved into
+   *         place, it is read from the temporary file, which is deleted when the stream is closed.
+   */
+  private InputStream storeOnDisk(String key, InputStream content) throws IOException {
+    File temp = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, directory);
+    long length;
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      length = IOUtils.copyLarge(content, out);
+      out.close();
+    } catch (IOException e) {
+      IOUtils.closeQuietly(out);
+      temp.delete();
+      throw e;
+    }
+
+    if (length > maxDiskBytes) {
+      if (log.isDebugEnabled()) {
+        log.debug("Not caching a transform result of " + length + " bytes");
+      }
+      return new MappedFileInputStream(temp, true);
+    }
+    File file = getFile(key);
+    synchronized (diskResults) {
+      file.delete();
+      if (!temp.renameTo(file)) {
+        log.warn("Unable to cache a transform result as " + file);
+        return new MappedFileInputStream(temp, true);
+      }
+      Long previous = diskResults.put(key, length);
+      if (previous != null) {
+        totalDiskBytes -= previous;
+      }
+      totalDiskBytes += length;
+      evictFromDisk(key);
+      // Opened while holding the lock, so the file cannot be evicted first.
+      return new FileInputStream(file);
+    }
+  }
+
+  /**
+   * Must be called while synchronized on diskResults.
+   */
+  private void evictFromDisk(String keep) {
+    Iterator<Map.Entry<String, Long>> it = diskResults.entrySet().iterator();
+    while (totalDiskBytes > maxDiskBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      if (eldest.getKey().equals(keep)) {
+        continue;
+      }
+      totalDiskBytes -= eldest.getValue();
+      it.remove();
+      deleteFile(getFile(eldest.getKey()));
+      diskEvictionCount.incrementAndGet();
+    }
+  }
+
+  private void removeFromDisk(String key) {
+    synchronized (diskResults) {
+      Long length = diskResults.remove(key);
+      if (length != null) {
+        totalDiskBytes -= length;
+      }
+    }
+  }
+
+  private static void deleteFile(File file) {
+    // A file still being read cannot be deleted on some platforms.
+    if (!file.delete() && file.exists()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private File getFile(String key) {
+    return new File(directory, key + FILE_SUFFIX);
+  }
+
+  /**
+   * Index the results already in the directory, least recently modified first.
+   */
+  private void loadDirectory() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+    });
+    synchronized (diskResults) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(TEMP_FILE_PREFIX) && name.endsWith(TEMP_FILE_SUFFIX)) {
+          // Left by a process that stopped while writing.
+          file.delete();
+        } else if (name.endsWith(FILE_SUFFIX) && file.isFile()) {
+          diskResults.put(name.substring(0, name.length() - FILE_SUFFIX.length()), file.length());
+          totalDiskBytes += file.length();
+        }
+      }
+      evictFromDisk(null);
+    }
+  }
+
+  /**
+   * Remove all results from the cache, including those in the directory.
+   */
+  public void clear() {
+    synchronized (results) {
+      results.clear();
+      totalBytes = 0;
+    }
+    if (directory != null) {
+      synchronized (diskResults) {
+        for (String key : diskResults.keySet()) {
+          deleteFile(getFile(key));
+        }
+        diskResults.clear();
+        totalDiskBytes = 0;
+      }
+    }
+  }
+
+  /**
+   * @return The number of results cached in memory.
+   */
+  public int size() {
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  /**
+   * @return The number of bytes cached in memory, across all results.
+   */
+  public long getTotalBytes() {
+    synchronized (results) {
+      return totalBytes;
+    }
+  }
+
+  /**
+   * @return The maximum number of bytes retained in memory, across all results.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return The directory results are also retained in, or null if there is none.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return The number of results cached in the directory.
+   */
+  public int getDiskSize() {
+    synchronized (diskResults) {
+      return diskResults.size();
+    }
+  }
+
+  /**
+   * @return The number of bytes cached in the directory, across all results.
+   */
+  public long getTotalDiskBytes() {
+    synchronized (diskResults) {
+      return totalDiskBytes;
+    }
+  }
+
+  /**
+   * @return The maximum number of bytes retained in the directory, or 0 if there is none.
+   */
+  public long getMaxDiskBytes() {
+    return maxDiskBytes;
+  }
+
+  /**
+   * @return The number of results served from the cache, from memory or the directory.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of results served from the directory.
+   */
+  public long getDiskHitCount() {
+    return diskHitCount.get();
+  }
+
+  /**
+   * @return The number of results that were not cached, and had to be produced.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of results evicted from memory to stay within the maximum number of bytes.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * @return The number of results evicted from the directory to stay within its maximum number of
+   *         bytes.
+   */
+  public long getDiskEvictionCount() {
+    return diskEvictionCount.get();
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+}
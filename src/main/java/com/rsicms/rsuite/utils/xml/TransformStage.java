@@ -0,0 +1,80 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Map;
+
+import javax.xml.transform.Templates;
+
+/**
+ * One stylesheet of a pipeline run by the iTransformPipeline methods of {@link TransformUtils},
+ * along with the parameters to pass into it.
+ */
+public class TransformStage {
+
+  private final URI stylesheetUri;
+  private final Templates templates;
+  private final Map<String, Object> xslParams;
+
+  /**
+   * Construct a stage whose stylesheet is obtained from the {@link TemplatesCache} of the
+   * {@link TransformUtils} running the pipeline.
+   * 
+   * @param stylesheetUri Absolute URI of the XSL.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   */
+  public TransformStage(URI stylesheetUri, Map<String, Object> xslParams) {
+    if (stylesheetUri == null) {
+      throw new IllegalArgumentException("stylesheetUri may not be null");
+    }
+    this.stylesheetUri = stylesheetUri;
+    this.templates = null;
+    this.xslParams = xslParams;
+  }
+
+  /**
+   * Construct a stage with an already compiled stylesheet. Stages after the first are run as SAX
+   * handlers created by the factory of the {@link TemplatesCache} of the {@link TransformUtils}
+   * running the pipeline, which only accepts stylesheets compiled by the same implementation, so
+   * obtain the stylesheet from that cache, such as with
+   * {@link TemplatesCache#getTemplates(File)}.
+   * 
+   * @param templates
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in.
+   */
+  public TransformStage(Templates templates, Map<String, Object> xslParams) {
+    if (templates == null) {
+      throw new IllegalArgumentException("templates may not be null");
+    }
+    this.stylesheetUri = null;
+    this.templates = templates;
+    this.xslParams = xslParams;
+  }
+
+  /**
+   * @return The URI of the XSL, or null if constructed with <code>Templates</code>.
+   */
+  public URI getStylesheetUri() {
+    return stylesheetUri;
+  }
+
+  /**
+   * @return The compiled XSL, or null if constructed with a URI.
+   */
+  public Templates getTemplates() {
+    return templates;
+  }
+
+  /**
+   * @return The parameters to pass into the XSL, or null.
+   */
+  public Map<String, Object> getXslParams() {
+    return xslParams;
+  }
+
+  @Override
+  public String toString() {
+    return stylesheetUri != null ? stylesheetUri.toString() : TransformMetrics.SUPPLIED_TRANSFORMER;
+  }
+
+}
@@ -1,27 +1,38 @@
 package com.rsicms.rsuite.utils.xml;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Document;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 import com.reallysi.rsuite.api.ManagedObject;
 import com.reallysi.rsuite.api.RSuiteException;
@@ -40,6 +51,168 @@ public class TransformUtils {
   static final String PARAM_NAME_RSUITE_SESSION_KEY = "rsuite.sessionkey";
   static final String PARAM_NAME_RSUITE_USERNAME = "rsuite.username";
 
+  /**
+   * Size of the buffer placed in front of a <code>WritableByteChannel</code> sink.
+   */
+  private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+  private final TemplatesCache templatesCache;
+  private final TransformerPool transformerPool;
+  private XMLReaderPool xmlReaderPool = XMLReaderPool.getDefault();
+  private EntityCache entityCache;
+  private int spillThreshold = SpillableOutputStream.DEFAULT_SPILL_THRESHOLD;
+  private XmlMetricsListener metricsListener;
+  private TransformResultCache resultCache;
+
+  /**
+   * Construct an instance that uses the shared {@link TemplatesCache#getDefault()} cache and
+   * {@link TransformerPool#getDefault()} pool when given a stylesheet URI.
+   */
+  public TransformUtils() {
+    this(TemplatesCache.getDefault());
+  }
+
+  /**
+   * Construct an instance that uses the specified cache and the shared
+   * {@link TransformerPool#getDefault()} pool when given a stylesheet URI.
+   * 
+   * @param templatesCache
+   */
+  public TransformUtils(TemplatesCache templatesCache) {
+    this(templatesCache, TransformerPool.getDefault());
+  }
+
+  /**
+   * Construct an instance that uses the specified cache and pool when given a stylesheet URI.
+   * 
+   * @param templatesCache
+   * @param transformerPool
+   */
+  public TransformUtils(TemplatesCache templatesCache, TransformerPool transformerPool) {
+    if (templatesCache == null) {
+      throw new IllegalArgumentException("templatesCache may not be null");
+    }
+    if (transformerPool == null) {
+      throw new IllegalArgumentException("transformerPool may not be null");
+    }
+    this.templatesCache = templatesCache;
+    this.transformerPool = transformerPool;
+    templatesCache.addPool(transformerPool);
+  }
+
+  /**
+   * @return The cache of compiled stylesheets used by this instance.
+   */
+  public TemplatesCache getTemplatesCache() {
+    return templatesCache;
+  }
+
+  /**
+   * @return The pool of transformers used by this instance.
+   */
+  public TransformerPool getTransformerPool() {
+    return transformerPool;
+  }
+
+  /**
+   * @return The pool of XML readers used to parse input streams.
+   */
+  public XMLReaderPool getXMLReaderPool() {
+    return xmlReaderPool;
+  }
+
+  /**
+   * Set the pool of XML readers used to parse input streams. The default is
+   * {@link XMLReaderPool#getDefault()}.
+   * 
+   * @param xmlReaderPool
+   */
+  public void setXMLReaderPool(XMLReaderPool xmlReaderPool) {
+    if (xmlReaderPool == null) {
+      throw new IllegalArgumentException("xmlReaderPool may not be null");
+    }
+    this.xmlReaderPool = xmlReaderPool;
+  }
+
+  /**
+   * @return The cache of resolved external entities used when parsing input streams, or null when
+   *         entities are not cached.
+   */
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
+  /**
+   * Set the cache of resolved external entities used when parsing input streams. Entities are not
+   * cached by default; submit {@link EntityCache#getDefault()} to share the library-wide cache.
+   * 
+   * @param entityCache Null may be sent in to stop caching entities.
+   */
+  public void setEntityCache(EntityCache entityCache) {
+    this.entityCache = entityCache;
+  }
+
+  /**
+   * @return The number of bytes of transform output the InputStream-returning iTransform methods
+   *         hold in memory before spilling to a temporary file.
+   */
+  public int getSpillThreshold() {
+    return spillThreshold;
+  }
+
+  /**
+   * Set the number of bytes of transform output the InputStream-returning iTransform methods hold
+   * in memory before spilling to a temporary file. The default is
+   * {@link SpillableOutputStream#DEFAULT_SPILL_THRESHOLD}.
+   * 
+   * @param spillThreshold
+   */
+  public void setSpillThreshold(int spillThreshold) {
+    if (spillThreshold < 0) {
+      throw new IllegalArgumentException("spillThreshold may not be negative");
+    }
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * @return The listener transforms are reported to: the one set on this instance, or else
+   *         {@link XmlMetricsListener#getDefault()}.
+   */
+  public XmlMetricsListener getMetricsListener() {
+    return metricsListener != null ? metricsListener : XmlMetricsListener.getDefault();
+  }
+
+  /**
+   * Set the listener the iTransform methods report their timings and byte counts to.
+   * 
+   * @param metricsListener Null may be sent in to report to
+   *        {@link XmlMetricsListener#getDefault()}.
+   */
+  public void setMetricsListener(XmlMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+  }
+
+  /**
+   * @return The cache of transform results, or null when results are not cached.
+   */
+  public TransformResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Set the cache of transform results. Results are not cached by default. When set, the
+   * InputStream-returning iTransform methods that take a stylesheet URI and a
+   * <code>ManagedObject</code>, <code>FileItem</code>, or <code>InputStream</code> read the input
+   * fully to digest it, then serve the result from the cache when the same stylesheet was last
+   * applied to the same content with the same parameters. See {@link TransformResultCache} for
+   * what is part of the key.
+   * 
+   * @param resultCache Null may be sent in to stop caching results.
+   */
+  public void setResultCache(TransformResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
   /**
    * Apply the specified XSL to the given MO, and return the result's input stream.
    * 
@@ -236,13 +409,23 @@ public class TransformUtils {
       boolean includeStandardRSuiteXslParams, String baseRSuiteUrl)
       throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
 
-    // Do not simply use the likes of StreamSource as it won't include an entity resolver.
-    // #thanksLukasz
-    XMLReader myReader = XMLReaderFactory.createXMLReader();
-    myReader.setEntityResolver(context.getXmlApiManager().getRSuiteAwareEntityResolver());
-
-    return iTransform(context, session, new SAXSource(myReader, new InputSource(inputStream)),
-        transformer, xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl);
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    // The reader is only leased for the duration of the transform, as the result is fully
+    // produced before returning.
+    EntityResolver entityResolver = getEntityResolver(context);
+    XMLReader reader = xmlReaderPool.lease(entityResolver);
+    try {
+      InputStream result = iTransform(context, session,
+          new SAXSource(TransformMetrics.meter(metrics, reader, entityResolver),
+              new InputSource(TransformMetrics.meter(metrics, inputStream))),
+          transformer, xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl);
+      completed = true;
+      return result;
+    } finally {
+      xmlReaderPool.release(reader);
+      TransformMetrics.end(metrics, completed);
+    }
 
   }
 
@@ -308,7 +491,7 @@ public class TransformUtils {
       boolean includeStandardRSuiteXslParams, String baseRSuiteUrl)
       throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
 
-    return iTransform(context, session, new DOMSource(inputDoc), transformer, xslParams,
+    return iTransform(context, session, iGetSource(inputDoc), transformer, xslParams,
         includeStandardRSuiteXslParams, baseRSuiteUrl);
 
   }
@@ -375,29 +558,915 @@ public class TransformUtils {
       boolean includeStandardRSuiteXslParams, String baseRSuiteUrl)
       throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
 
-    ByteArrayOutputStream outputStream = null;
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    SpillableOutputStream outputStream = new SpillableOutputStream(spillThreshold);
+
+    try {
+      iTransform(context, session, inputSource, transformer, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      long start = System.nanoTime();
+      InputStream result = outputStream.toInputStream();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
+      return result;
+    } finally {
+      outputStream.dispose();
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply the specified XSL to the given source, writing the output directly to the given
+   * result rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param transformer The transformer which has already been given the desired XSL. Parameters to
+   *        the XSL will be cleared then reset by this method.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param result Where to write the output of the transform.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      Transformer transformer, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, Result result)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
 
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
     try {
-      outputStream = new ByteArrayOutputStream();
-      StreamResult streamResult = new StreamResult(outputStream);
       transformer.clearParameters();
 
       // Pass on parameters
-      if (xslParams == null) {
-        xslParams = new HashMap<String, Object>();
-      }
       if (includeStandardRSuiteXslParams) {
         iAddStandardRSuiteTransformParameters(session, baseRSuiteUrl, transformer);
       }
-      for (Map.Entry<String, Object> entry : xslParams.entrySet()) {
-        transformer.setParameter(entry.getKey(), entry.getValue());
+      if (xslParams != null) {
+        for (Map.Entry<String, Object> entry : xslParams.entrySet()) {
+          transformer.setParameter(entry.getKey(), entry.getValue());
+        }
+      }
+
+      long start = System.nanoTime();
+      transformer.transform(inputSource, result);
+      if (metrics != null) {
+        metrics.addTransformCallNanos(System.nanoTime() - start);
       }
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply the specified XSL to the given source, writing the output directly to the given
+   * output stream rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param transformer The transformer which has already been given the desired XSL. Parameters to
+   *        the XSL will be cleared then reset by this method.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed by
+   *        this method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      Transformer transformer, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, OutputStream outputStream)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      iTransform(context, session, inputSource, transformer, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply the specified XSL to the given source, writing the output directly to the given
+   * channel rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param transformer The transformer which has already been given the desired XSL. Parameters to
+   *        the XSL will be cleared then reset by this method.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param channel Where to write the output of the transform. The channel is not closed by this
+   *        method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      Transformer transformer, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl, WritableByteChannel channel)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
 
-      transformer.transform(inputSource, streamResult);
-      return new ByteArrayInputStream(outputStream.toByteArray());
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      // Channels.newOutputStream() writes through on every call; buffer to keep channel writes
+      // large.
+      OutputStream outputStream =
+          new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE);
+      iTransform(context, session, inputSource, transformer, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      long start = System.nanoTime();
+      outputStream.flush();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
     } finally {
-      IOUtils.closeQuietly(outputStream);
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given MO, and return the result's input
+   * stream. The compiled XSL is obtained from this instance's {@link TemplatesCache}.
+   * 
+   * @param context
+   * @param session
+   * @param mo The <code>ManagedObject</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the transform. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransform(ExecutionContext context, Session session, ManagedObject mo,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    return iTransform(context, session, mo.getInputStream(), stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl);
+
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given FileItem, and return the result's input
+   * stream. The compiled XSL is obtained from this instance's {@link TemplatesCache}.
+   * 
+   * @param context
+   * @param session
+   * @param fileItem The <code>FileItem</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the transform. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransform(ExecutionContext context, Session session, FileItem fileItem,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    return iTransform(context, session, fileItem.getInputStream(), stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl);
+
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given input stream, and return the result's
+   * input stream. The compiled XSL is obtained from this instance's {@link TemplatesCache}.
+   * 
+   * @param context
+   * @param session
+   * @param inputStream The <code>InputStream</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the transform. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransform(ExecutionContext context, Session session, InputStream inputStream,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformResultCache cache = resultCache;
+    if (cache != null) {
+      // The key includes the standard parameters, other than those the cache deems volatile.
+      Map<String, Object> keyParams = xslParams;
+      if (includeStandardRSuiteXslParams) {
+        keyParams = iGetStandardRSuiteTransformParameters(session, baseRSuiteUrl);
+        if (xslParams != null) {
+          keyParams.putAll(xslParams);
+        }
+      }
+      if (cache.isCacheable(keyParams)) {
+        return iTransformCached(cache, keyParams, context, session, inputStream, stylesheetUri,
+            xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl);
+      }
     }
+    return iTransformStream(context, session, inputStream, stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl);
+
+  }
+
+  private InputStream iTransformCached(TransformResultCache cache, Map<String, Object> keyParams,
+      ExecutionContext context, Session session, InputStream inputStream, URI stylesheetUri,
+      Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams, String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+    // Buffer the input while digesting it, so it can be transformed upon a miss.
+    MessageDigest digest = TransformResultCache.newDigest();
+    SpillableOutputStream buffer = new SpillableOutputStream(spillThreshold);
+    try {
+      IOUtils.copyLarge(new DigestInputStream(inputStream, digest), buffer);
+      String key = cache.getKey(stylesheetUri, digest.digest(), keyParams);
+      InputStream cached = cache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      InputStream bufferedInput = buffer.toInputStream();
+      try {
+        return cache.put(key, iTransformStream(context, session, bufferedInput, stylesheetUri,
+            xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl));
+      } finally {
+        IOUtils.closeQuietly(bufferedInput);
+      }
+    } finally {
+      buffer.dispose();
+    }
+  }
+
+  private InputStream iTransformStream(ExecutionContext context, Session session,
+      InputStream inputStream, URI stylesheetUri, Map<String, Object> xslParams,
+      boolean includeStandardRSuiteXslParams, String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    // The reader is only leased for the duration of the transform, as the result is fully
+    // produced before returning.
+    EntityResolver entityResolver = getEntityResolver(context);
+    XMLReader reader = xmlReaderPool.lease(entityResolver);
+    try {
+      InputStream result = iTransform(context, session,
+          new SAXSource(TransformMetrics.meter(metrics, reader, entityResolver),
+              new InputSource(TransformMetrics.meter(metrics, inputStream))),
+          stylesheetUri, xslParams, includeStandardRSuiteXslParams, baseRSuiteUrl);
+      completed = true;
+      return result;
+    } finally {
+      xmlReaderPool.release(reader);
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given document, and return the result's input
+   * stream. The compiled XSL is obtained from this instance's {@link TemplatesCache}.
+   * 
+   * @param context
+   * @param session
+   * @param inputDoc The <code>Document</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the transform. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransform(ExecutionContext context, Session session, Document inputDoc,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    return iTransform(context, session, iGetSource(inputDoc), stylesheetUri, xslParams,
+        includeStandardRSuiteXslParams, baseRSuiteUrl);
+
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given source, and return the result's input
+   * stream. The compiled XSL is obtained from this instance's {@link TemplatesCache}.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the transform. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransform(ExecutionContext context, Session session, Source inputSource,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    SpillableOutputStream outputStream = new SpillableOutputStream(spillThreshold);
+
+    try {
+      iTransform(context, session, inputSource, stylesheetUri, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      long start = System.nanoTime();
+      InputStream result = outputStream.toInputStream();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
+      return result;
+    } finally {
+      outputStream.dispose();
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given source, writing the output directly to
+   * the given result rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param result Where to write the output of the transform.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl, Result result)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      long start = System.nanoTime();
+      TransformerLease lease = transformerPool.lease(templatesCache.getTemplates(stylesheetUri));
+      if (metrics != null) {
+        metrics.setStylesheet(stylesheetUri.toString());
+        metrics.addTemplatesNanos(System.nanoTime() - start);
+      }
+
+      boolean transformed = false;
+      try {
+        if (includeStandardRSuiteXslParams) {
+          lease.setParameters(iGetStandardRSuiteTransformParameters(session, baseRSuiteUrl));
+        }
+        lease.setParameters(xslParams);
+
+        start = System.nanoTime();
+        lease.transformer().transform(inputSource, result);
+        if (metrics != null) {
+          metrics.addTransformCallNanos(System.nanoTime() - start);
+        }
+        transformed = true;
+      } finally {
+        // A transformer that failed or was interrupted partway through is not reused.
+        if (transformed) {
+          lease.release();
+        } else {
+          lease.discard();
+        }
+      }
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given source, writing the output directly to
+   * the given output stream rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the transform. The stream is not closed by
+   *        this method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl, OutputStream outputStream)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      iTransform(context, session, inputSource, stylesheetUri, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply the XSL identified by the given URI to the given source, writing the output directly to
+   * the given channel rather than buffering it.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the XSL to. See the iGetSource methods to
+   *        obtain one for other types of input.
+   * @param stylesheetUri Absolute URI of the XSL. A <code>file:</code> URI is recompiled when the
+   *        file changes.
+   * @param xslParams Optional parameters to pass into the XSL. Null may be sent in. Hint: List
+   *        <String> parameters are received as a sequence, at least with Saxon.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are included herein, specifically including the base RSuite URL and a
+   *        session key.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param channel Where to write the output of the transform. The channel is not closed by this
+   *        method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransform(ExecutionContext context, Session session, Source inputSource,
+      URI stylesheetUri, Map<String, Object> xslParams, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl, WritableByteChannel channel)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      // Channels.newOutputStream() writes through on every call; buffer to keep channel writes
+      // large.
+      OutputStream outputStream =
+          new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE);
+      iTransform(context, session, inputSource, stylesheetUri, xslParams,
+          includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      long start = System.nanoTime();
+      outputStream.flush();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply a pipeline of stylesheets to the given source, writing the output of the last to the
+   * given result. The output of each stylesheet is passed to the next as SAX events, rather than
+   * being serialized and parsed again. The first stylesheet runs on a transformer from this
+   * instance's {@link TransformerPool}; the others on <code>TransformerHandler</code>s, which
+   * requires a <code>TransformerFactory</code> that supports SAX, as Saxon and Xalan do.
+   * <p>
+   * As a stage receives events rather than a document, its <code>document-uri()</code> and
+   * <code>base-uri()</code> are those of the pipeline's input, when known, and the output
+   * properties of all but the last stylesheet, such as indentation, have no effect.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the first XSL to. See the iGetSource
+   *        methods to obtain one for other types of input.
+   * @param stages The stylesheets to apply, in order, each with its own parameters. Stages
+   *        constructed with <code>Templates</code> must use stylesheets from this instance's
+   *        {@link TemplatesCache}; an <code>IllegalArgumentException</code> is thrown for a
+   *        stylesheet compiled by another implementation.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are passed into every stage, specifically including the base RSuite
+   *        URL and a session key. A stage's own parameters take precedence.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param result Where to write the output of the last XSL.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransformPipeline(ExecutionContext context, Session session, Source inputSource,
+      List<TransformStage> stages, boolean includeStandardRSuiteXslParams, String baseRSuiteUrl,
+      Result result)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+    if (stages == null || stages.isEmpty()) {
+      throw new IllegalArgumentException("stages may not be null or empty");
+    }
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    TransformerLease lease = null;
+    try {
+      long start = System.nanoTime();
+      // Chain from the last stage back, so that each stage's result is the next stage's handler.
+      Result next = result;
+      for (int i = stages.size() - 1; i > 0; i--) {
+        TransformStage stage = stages.get(i);
+        TransformerHandler handler = templatesCache.newTransformerHandler(getTemplates(stage));
+        Transformer transformer = handler.getTransformer();
+        if (includeStandardRSuiteXslParams) {
+          iAddStandardRSuiteTransformParameters(session, baseRSuiteUrl, transformer);
+        }
+        if (stage.getXslParams() != null) {
+          for (Map.Entry<String, Object> entry : stage.getXslParams().entrySet()) {
+            transformer.setParameter(entry.getKey(), entry.getValue());
+          }
+        }
+        if (inputSource.getSystemId() != null) {
+          handler.setSystemId(inputSource.getSystemId());
+        }
+        handler.setResult(next);
+        SAXResult saxResult = new SAXResult(handler);
+        saxResult.setLexicalHandler(handler);
+        next = saxResult;
+      }
+
+      TransformStage first = stages.get(0);
+      lease = transformerPool.lease(getTemplates(first));
+      if (includeStandardRSuiteXslParams) {
+        lease.setParameters(iGetStandardRSuiteTransformParameters(session, baseRSuiteUrl));
+      }
+      lease.setParameters(first.getXslParams());
+      if (metrics != null) {
+        metrics.setStylesheet(getStylesheetNames(stages));
+        metrics.addTemplatesNanos(System.nanoTime() - start);
+      }
+
+      start = System.nanoTime();
+      lease.transformer().transform(inputSource, next);
+      if (metrics != null) {
+        metrics.addTransformCallNanos(System.nanoTime() - start);
+      }
+      completed = true;
+    } finally {
+      // A transformer that failed, or whose later stages did, is not reused.
+      if (lease != null) {
+        if (completed) {
+          lease.release();
+        } else {
+          lease.discard();
+        }
+      }
+      TransformMetrics.end(metrics, completed);
+    }
+  }
+
+  /**
+   * Apply a pipeline of stylesheets to the given input stream, writing the output of the last
+   * directly to the given stream. See
+   * {@link #iTransformPipeline(ExecutionContext, Session, Source, List, boolean, String, Result)}.
+   * 
+   * @param context
+   * @param session
+   * @param inputStream The <code>InputStream</code> to apply the first XSL to.
+   * @param stages The stylesheets to apply, in order, each with its own parameters.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are passed into every stage.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param outputStream Where to write the output of the last XSL. The stream is not closed by
+   *        this method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransformPipeline(ExecutionContext context, Session session,
+      InputStream inputStream, List<TransformStage> stages, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl, OutputStream outputStream)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    EntityResolver entityResolver = getEntityResolver(context);
+    XMLReader reader = xmlReaderPool.lease(entityResolver);
+    try {
+      iTransformPipeline(context, session,
+          new SAXSource(TransformMetrics.meter(metrics, reader, entityResolver),
+              new InputSource(TransformMetrics.meter(metrics, inputStream))),
+          stages, includeStandardRSuiteXslParams, baseRSuiteUrl,
+          new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      completed = true;
+    } finally {
+      xmlReaderPool.release(reader);
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply a pipeline of stylesheets to the given input stream, and return the output of the last.
+   * See
+   * {@link #iTransformPipeline(ExecutionContext, Session, Source, List, boolean, String, Result)}.
+   * 
+   * @param context
+   * @param session
+   * @param inputStream The <code>InputStream</code> to apply the first XSL to.
+   * @param stages The stylesheets to apply, in order, each with its own parameters.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are passed into every stage.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @return The result <code>InputStream</code> of the last XSL. The caller is responsible for
+   *         closing this stream.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public InputStream iTransformPipeline(ExecutionContext context, Session session,
+      InputStream inputStream, List<TransformStage> stages, boolean includeStandardRSuiteXslParams,
+      String baseRSuiteUrl)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    SpillableOutputStream outputStream = new SpillableOutputStream(spillThreshold);
+
+    try {
+      iTransformPipeline(context, session, inputStream, stages, includeStandardRSuiteXslParams,
+          baseRSuiteUrl, outputStream);
+      long start = System.nanoTime();
+      InputStream result = outputStream.toInputStream();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
+      return result;
+    } finally {
+      outputStream.dispose();
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  /**
+   * Apply a pipeline of stylesheets to the given source, writing the output of the last directly
+   * to the given channel. See
+   * {@link #iTransformPipeline(ExecutionContext, Session, Source, List, boolean, String, Result)}.
+   * 
+   * @param context
+   * @param session
+   * @param inputSource The <code>Source</code> to apply the first XSL to.
+   * @param stages The stylesheets to apply, in order, each with its own parameters.
+   * @param includeStandardRSuiteXslParams Submit true to ensure XSLT parameters that RSuite
+   *        typically provides are passed into every stage.
+   * @param baseRSuiteUrl Only used with includeStandardRSuiteXslParams is true.
+   * @param channel Where to write the output of the last XSL. The channel is not closed by this
+   *        method.
+   * @throws RSuiteException
+   * @throws URISyntaxException
+   * @throws TransformerException
+   * @throws SAXException
+   * @throws IOException
+   */
+  public void iTransformPipeline(ExecutionContext context, Session session, Source inputSource,
+      List<TransformStage> stages, boolean includeStandardRSuiteXslParams, String baseRSuiteUrl,
+      WritableByteChannel channel)
+      throws RSuiteException, URISyntaxException, TransformerException, SAXException, IOException {
+
+    TransformMetrics metrics = TransformMetrics.begin(getMetricsListener());
+    boolean completed = false;
+    try {
+      // Channels.newOutputStream() writes through on every call; buffer to keep channel writes
+      // large.
+      OutputStream outputStream =
+          new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE);
+      iTransformPipeline(context, session, inputSource, stages, includeStandardRSuiteXslParams,
+          baseRSuiteUrl, new StreamResult(TransformMetrics.meter(metrics, outputStream)));
+      long start = System.nanoTime();
+      outputStream.flush();
+      if (metrics != null) {
+        metrics.addOutputBufferNanos(System.nanoTime() - start);
+      }
+      completed = true;
+    } finally {
+      TransformMetrics.end(metrics, completed);
+    }
+
+  }
+
+  private Templates getTemplates(TransformStage stage) throws TransformerConfigurationException {
+    return stage.getTemplates() != null ? stage.getTemplates()
+        : templatesCache.getTemplates(stage.getStylesheetUri());
+  }
+
+  /**
+   * @return The names of the stages' stylesheets, as reported in metrics: the URI, or the system
+   *         ID a stage's compiled stylesheet was compiled with where the cache knows it.
+   */
+  private String getStylesheetNames(List<TransformStage> stages) {
+    StringBuilder sb = new StringBuilder();
+    for (TransformStage stage : stages) {
+      if (sb.length() > 0) {
+        sb.append(" | ");
+      }
+      String systemId =
+          stage.getTemplates() != null ? templatesCache.getSystemId(stage.getTemplates()) : null;
+      sb.append(systemId != null ? systemId : stage.toString());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get a source for the given MO, for use with the iTransform methods that accept a
+   * <code>Source</code>.
+   * 
+   * @param context
+   * @param mo
+   * @return A source for the given MO.
+   * @throws RSuiteException
+   * @throws SAXException
+   */
+  public Source iGetSource(ExecutionContext context, ManagedObject mo)
+      throws RSuiteException, SAXException {
+    return iGetSource(context, mo.getInputStream());
+  }
+
+  /**
+   * Get a source for the given FileItem, for use with the iTransform methods that accept a
+   * <code>Source</code>.
+   * 
+   * @param context
+   * @param fileItem
+   * @return A source for the given FileItem.
+   * @throws SAXException
+   * @throws IOException
+   */
+  public Source iGetSource(ExecutionContext context, FileItem fileItem)
+      throws SAXException, IOException {
+    return iGetSource(context, fileItem.getInputStream());
+  }
+
+  /**
+   * Get a source for the given input stream that resolves entities the way RSuite does, for use
+   * with the iTransform methods that accept a <code>Source</code>.
+   * 
+   * @param context
+   * @param inputStream
+   * @return A source for the given input stream.
+   * @throws SAXException
+   */
+  public Source iGetSource(ExecutionContext context, InputStream inputStream)
+      throws SAXException {
+    // Do not simply use the likes of StreamSource as it won't include an entity resolver.
+    // #thanksLukasz
+    XMLReader myReader = xmlReaderPool.newXMLReader(getEntityResolver(context));
+    return new SAXSource(myReader, new InputSource(inputStream));
+  }
+
+  /**
+   * Get the entity resolver to parse input with: RSuite's, wrapped by this instance's
+   * {@link EntityCache} when one is set.
+   * 
+   * @param context
+   * @return The entity resolver to parse input with.
+   */
+  protected EntityResolver getEntityResolver(ExecutionContext context) {
+    EntityResolver entityResolver = context.getXmlApiManager().getRSuiteAwareEntityResolver();
+    if (entityCache != null) {
+      entityResolver = entityCache.getEntityResolver(entityResolver);
+    }
+    return entityResolver;
+  }
+
+  /**
+   * Get a source for the given document, for use with the iTransform methods that accept a
+   * <code>Source</code>.
+   * 
+   * @param inputDoc
+   * @return A source for the given document.
+   */
+  public Source iGetSource(Document inputDoc) {
+    return new DOMSource(inputDoc);
+  }
+
+  /**
+   * Get a new transformer for the XSL identified by the given URI, using the compiled XSL from
+   * this instance's {@link TemplatesCache}. The transformer is not pooled; the stylesheet URI
+   * variants of iTransform lease theirs from this instance's {@link TransformerPool}.
+   * 
+   * @param stylesheetUri
+   * @return A new transformer.
+   * @throws TransformerException
+   */
+  public Transformer newTransformer(URI stylesheetUri) throws TransformerException {
+    Templates templates = templatesCache.getTemplates(stylesheetUri);
+    return templates.newTransformer();
   }
 
   /**
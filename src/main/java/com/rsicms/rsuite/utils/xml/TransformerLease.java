@@ -0,0 +1,126 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.Map;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+/**
+ * A <code>Transformer</code> leased from a {@link TransformerPool}. A lease may only be used by one
+ * thread at a time, and must be released once the transform completes.
+ * <p>
+ * All parameters, including the standard RSuite ones, are cleared upon release, such that no
+ * lease sees another's session key. Should the caller obtain the transformer via
+ * {@link #getTransformer()}, the transformer is fully reset upon release, as the caller may have
+ * changed any of its state.
+ */
+public class TransformerLease {
+
+  private final TransformerPool pool;
+  private final Templates templates;
+  private final Transformer transformer;
+
+  private boolean leased;
+  private boolean exposed;
+
+  TransformerLease(TransformerPool pool, Templates templates, Transformer transformer) {
+    this.pool = pool;
+    this.templates = templates;
+    this.transformer = transformer;
+  }
+
+  /**
+   * Get the leased transformer, for callers that need to configure it beyond parameters. Doing so
+   * causes the transformer to be fully reset upon release.
+   * 
+   * @return The leased transformer.
+   */
+  public Transformer getTransformer() {
+    checkLeased();
+    exposed = true;
+    return transformer;
+  }
+
+  /**
+   * Set caller-specific parameters. These are cleared upon release.
+   * 
+   * @param xslParams Parameters to pass into the XSL. Null may be sent in.
+   */
+  public void setParameters(Map<String, Object> xslParams) {
+    checkLeased();
+    if (xslParams == null) {
+      return;
+    }
+    for (Map.Entry<String, Object> entry : xslParams.entrySet()) {
+      transformer.setParameter(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Return the transformer to the pool it was leased from. The lease may not be used thereafter.
+   * Releasing a lease more than once has no effect.
+   */
+  public void release() {
+    if (leased) {
+      pool.release(this);
+    }
+  }
+
+  /**
+   * End the lease without returning the transformer to the pool, such as after a transform failed
+   * in it and its state can no longer be trusted. The lease may not be used thereafter. Has no
+   * effect once the lease has been released or discarded.
+   */
+  public void discard() {
+    if (leased) {
+      pool.discard(this);
+    }
+  }
+
+  /**
+   * @return The compiled stylesheet the transformer was created from.
+   */
+  public Templates getTemplates() {
+    return templates;
+  }
+
+  /**
+   * Get the transformer without marking it as exposed. For use by this library when it only
+   * configures the transformer through this lease.
+   */
+  Transformer transformer() {
+    checkLeased();
+    return transformer;
+  }
+
+  void setLeased(boolean leased) {
+    this.leased = leased;
+  }
+
+  /**
+   * Restore the transformer to a reusable state.
+   * 
+   * @return False if the transformer could not be reset and should be discarded.
+   */
+  boolean reset() {
+    try {
+      if (exposed) {
+        transformer.reset();
+      } else {
+        transformer.clearParameters();
+      }
+      exposed = false;
+      return true;
+    } catch (UnsupportedOperationException e) {
+      // Transformer#reset() is optional for implementations that predate JAXP 1.3.
+      return false;
+    }
+  }
+
+  private void checkLeased() {
+    if (!leased) {
+      throw new IllegalStateException("This transformer lease has been released.");
+    }
+  }
+
+}
@@ -0,0 +1,299 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+/**
+ * A pool of <code>Transformer</code>s, per compiled stylesheet. A <code>Transformer</code> may not
+ * be used by more than one thread at a time, yet creating one for every transform is costly. Lease
+ * one with {@link #lease(Templates)} and always {@link TransformerLease#release()} it in a finally
+ * block.
+ * <p>
+ * A transformer references the <code>Templates</code> it was created from, so idle transformers
+ * would keep an otherwise unused stylesheet alive. They are therefore dropped explicitly: a
+ * {@link TemplatesCache} used by a {@link TransformUtils} along with this pool calls
+ * {@link #evict(Templates)} for each stylesheet it evicts, invalidates or recompiles. Idle
+ * transformers are kept for at most a fixed number of stylesheets, least recently used first out,
+ * which bounds those of stylesheets not obtained from such a cache. When no idle transformer is
+ * available, a new one is created rather than waiting; the counters exposed herein indicate how
+ * often that happens, and may be used to size the pool.
+ */
+public class TransformerPool {
+
+  /**
+   * The default maximum number of idle transformers retained per compiled stylesheet.
+   */
+  public static final int DEFAULT_MAX_IDLE_PER_TEMPLATES = 8;
+
+  /**
+   * The default maximum number of compiled stylesheets idle transformers are retained for.
+   */
+  public static final int DEFAULT_MAX_TEMPLATES = TemplatesCache.DEFAULT_MAX_ENTRIES;
+
+  private static final TransformerPool DEFAULT_INSTANCE =
+      new TransformerPool(DEFAULT_MAX_IDLE_PER_TEMPLATES);
+
+  private final int maxIdlePerTemplates;
+  private final int maxTemplates;
+  private final Map<Templates, Deque<TransformerLease>> idle;
+
+  private final AtomicLong leaseCount = new AtomicLong();
+  private final AtomicLong reuseCount = new AtomicLong();
+  private final AtomicLong createCount = new AtomicLong();
+  private final AtomicLong discardCount = new AtomicLong();
+  private final AtomicInteger activeCount = new AtomicInteger();
+  private final AtomicInteger peakActiveCount = new AtomicInteger();
+
+  /**
+   * Get the pool shared by instances of {@link TransformUtils} that were not given their own.
+   * 
+   * @return The default pool.
+   */
+  public static TransformerPool getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a pool that retains idle transformers for up to {@link #DEFAULT_MAX_TEMPLATES}
+   * compiled stylesheets.
+   * 
+   * @param maxIdlePerTemplates The maximum number of idle transformers to retain per compiled
+   *        stylesheet. Transformers released when this many are already idle are discarded.
+   */
+  public TransformerPool(int maxIdlePerTemplates) {
+    this(maxIdlePerTemplates, DEFAULT_MAX_TEMPLATES);
+  }
+
+  /**
+   * Construct a pool.
+   * 
+   * @param maxIdlePerTemplates The maximum number of idle transformers to retain per compiled
+   *        stylesheet. Transformers released when this many are already idle are discarded.
+   * @param maxTemplates The maximum number of compiled stylesheets to retain idle transformers
+   *        for. Those of the least recently used stylesheet are discarded beyond that.
+   */
+  public TransformerPool(int maxIdlePerTemplates, final int maxTemplates) {
+    if (maxIdlePerTemplates < 0) {
+      throw new IllegalArgumentException("maxIdlePerTemplates may not be negative");
+    }
+    if (maxTemplates < 1) {
+      throw new IllegalArgumentException("maxTemplates must be at least 1");
+    }
+    this.maxIdlePerTemplates = maxIdlePerTemplates;
+    this.maxTemplates = maxTemplates;
+    this.idle = new LinkedHashMap<Templates, Deque<TransformerLease>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Templates, Deque<TransformerLease>> eldest) {
+        if (size() > TransformerPool.this.maxTemplates) {
+          discardCount.addAndGet(eldest.getValue().size());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Lease a transformer for the given compiled stylesheet. An idle one is reused when available;
+   * otherwise, a new one is created.
+   * 
+   * @param templates
+   * @return A lease the caller must release.
+   * @throws TransformerConfigurationException Thrown if a new transformer cannot be created.
+   */
+  public TransformerLease lease(Templates templates) throws TransformerConfigurationException {
+    if (templates == null) {
+      throw new IllegalArgumentException("templates may not be null");
+    }
+    leaseCount.incrementAndGet();
+
+    TransformerLease lease = null;
+    synchronized (idle) {
+      Deque<TransformerLease> queue = idle.get(templates);
+      if (queue != null) {
+        lease = queue.pollFirst();
+      }
+    }
+
+    if (lease != null) {
+      reuseCount.incrementAndGet();
+    } else {
+      createCount.incrementAndGet();
+      lease = new TransformerLease(this, templates, templates.newTransformer());
+    }
+    lease.setLeased(true);
+
+    int active = activeCount.incrementAndGet();
+    int peak = peakActiveCount.get();
+    while (active > peak && !peakActiveCount.compareAndSet(peak, active)) {
+      peak = peakActiveCount.get();
+    }
+
+    return lease;
+  }
+
+  /**
+   * Return a leased transformer to the pool. Most callers should use
+   * {@link TransformerLease#release()} instead.
+   * 
+   * @param lease
+   */
+  void release(TransformerLease lease) {
+    activeCount.decrementAndGet();
+    lease.setLeased(false);
+
+    boolean retained = false;
+    if (lease.reset()) {
+      synchronized (idle) {
+        Deque<TransformerLease> queue = idle.get(lease.getTemplates());
+        if (queue == null) {
+          queue = new ArrayDeque<TransformerLease>(maxIdlePerTemplates);
+          idle.put(lease.getTemplates(), queue);
+        }
+        if (queue.size() < maxIdlePerTemplates) {
+          // Most recently used first: it is the most likely to still be in cache.
+          queue.offerFirst(lease);
+          retained = true;
+        }
+      }
+    }
+    if (!retained) {
+      discardCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * End a lease without returning its transformer to the pool. Most callers should use
+   * {@link TransformerLease#discard()} instead.
+   * 
+   * @param lease
+   */
+  void discard(TransformerLease lease) {
+    activeCount.decrementAndGet();
+    lease.setLeased(false);
+    discardCount.incrementAndGet();
+  }
+
+  /**
+   * Discard the idle transformers of the given compiled stylesheet, such as once it is no longer
+   * cached. Transformers leased at the time are pooled again upon release, subject to the limit on
+   * the number of stylesheets.
+   * 
+   * @param templates
+   * @return The number of idle transformers discarded.
+   */
+  public int evict(Templates templates) {
+    Deque<TransformerLease> queue;
+    synchronized (idle) {
+      queue = idle.remove(templates);
+    }
+    int count = queue != null ? queue.size() : 0;
+    discardCount.addAndGet(count);
+    return count;
+  }
+
+  /**
+   * Discard all idle transformers.
+   */
+  public void clear() {
+    synchronized (idle) {
+      idle.clear();
+    }
+  }
+
+  /**
+   * @return The maximum number of idle transformers retained per compiled stylesheet.
+   */
+  public int getMaxIdlePerTemplates() {
+    return maxIdlePerTemplates;
+  }
+
+  /**
+   * @return The maximum number of compiled stylesheets idle transformers are retained for.
+   */
+  public int getMaxTemplates() {
+    return maxTemplates;
+  }
+
+  /**
+   * @return The number of leases granted.
+   */
+  public long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /**
+   * @return The number of leases satisfied by an idle transformer.
+   */
+  public long getReuseCount() {
+    return reuseCount.get();
+  }
+
+  /**
+   * @return The number of leases that required creating a new transformer, either because the
+   *         stylesheet had not been seen or because all of its transformers were leased.
+   */
+  public long getCreateCount() {
+    return createCount.get();
+  }
+
+  /**
+   * @return The number of transformers that were discarded, either because the maximum number of
+   *         idle transformers was reached, because they could not be reset or a transform failed
+   *         in them, or because their compiled stylesheet was evicted.
+   */
+  public long getDiscardCount() {
+    return discardCount.get();
+  }
+
+  /**
+   * @return The number of transformers currently leased.
+   */
+  public int getActiveCount() {
+    return activeCount.get();
+  }
+
+  /**
+   * @return The highest number of transformers leased at the same time.
+   */
+  public int getPeakActiveCount() {
+    return peakActiveCount.get();
+  }
+
+  /**
+   * @return The number of idle transformers, across all compiled stylesheets.
+   */
+  public int getIdleCount() {
+    int count = 0;
+    synchronized (idle) {
+      for (Deque<TransformerLease> queue : idle.values()) {
+        count += queue.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get a one-line summary of this pool's counters, suitable for logging.
+   * 
+   * @return Summary of this pool's counters.
+   */
+  @Override
+  public String toString() {
+    return "TransformerPool[leases=" + getLeaseCount() + ", reused=" + getReuseCount()
+        + ", created=" + getCreateCount() + ", discarded=" + getDiscardCount() + ", active="
+        + getActiveCount() + ", peakActive=" + getPeakActiveCount() + ", idle=" + getIdleCount()
+        + "]";
+  }
+
+}
@@ -0,0 +1,199 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * A pool of namespace-aware, non-validating <code>XMLReader</code>s. The parser factory is looked
+ * up once per pool, rather than once per parse as <code>XMLReaderFactory.createXMLReader()</code>
+ * does.
+ * <p>
+ * A reader may not be used by more than one thread at a time. Lease one with
+ * {@link #lease(EntityResolver)} and {@link #release(XMLReader)} it in a finally block once the
+ * parse (or the transform consuming it) completes. Released readers are restored to their initial
+ * features and handlers, but keep their entity resolver, so that it need not be set again when
+ * the next lease uses the same one.
+ */
+public class XMLReaderPool {
+
+  private static Log log = LogFactory.getLog(XMLReaderPool.class);
+
+  /**
+   * The default maximum number of idle readers retained.
+   */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+  static final String FEATURE_NAMESPACE_PREFIXES =
+      "http://xml.org/sax/features/namespace-prefixes";
+  static final String PROPERTY_LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+  private static final XMLReaderPool DEFAULT_INSTANCE = new XMLReaderPool(DEFAULT_MAX_IDLE);
+
+  private final SAXParserFactory parserFactory;
+  private final int maxIdle;
+  private final Queue<XMLReader> idle = new ConcurrentLinkedQueue<XMLReader>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  private final AtomicLong leaseCount = new AtomicLong();
+  private final AtomicLong createCount = new AtomicLong();
+  private final AtomicLong discardCount = new AtomicLong();
+
+  /**
+   * Get the pool shared by instances of {@link TransformUtils} that were not given their own.
+   * 
+   * @return The default pool.
+   */
+  public static XMLReaderPool getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a pool of readers created by the JAXP default <code>SAXParserFactory</code>.
+   * 
+   * @param maxIdle The maximum number of idle readers to retain.
+   */
+  public XMLReaderPool(int maxIdle) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle may not be negative");
+    }
+    this.maxIdle = maxIdle;
+    this.parserFactory = SAXParserFactory.newInstance();
+    this.parserFactory.setNamespaceAware(true);
+    this.parserFactory.setValidating(false);
+  }
+
+  /**
+   * Lease a reader, and bind the given entity resolver to it.
+   * 
+   * @param entityResolver The entity resolver to bind. Null may be sent in.
+   * @return A reader the caller must release.
+   * @throws SAXException Thrown if a new reader cannot be created.
+   */
+  public XMLReader lease(EntityResolver entityResolver) throws SAXException {
+    leaseCount.incrementAndGet();
+    XMLReader reader = idle.poll();
+    if (reader != null) {
+      idleCount.decrementAndGet();
+      if (reader.getEntityResolver() != entityResolver) {
+        reader.setEntityResolver(entityResolver);
+      }
+      return reader;
+    }
+    return newXMLReader(entityResolver);
+  }
+
+  /**
+   * Return a reader to the pool. Readers that cannot be restored to their initial state, or that
+   * exceed the maximum number of idle readers, are discarded.
+   * 
+   * @param reader Null may be sent in.
+   */
+  public void release(XMLReader reader) {
+    if (reader == null) {
+      return;
+    }
+    if (!reset(reader)) {
+      discardCount.incrementAndGet();
+      return;
+    }
+    if (idleCount.incrementAndGet() > maxIdle) {
+      idleCount.decrementAndGet();
+      discardCount.incrementAndGet();
+      return;
+    }
+    idle.offer(reader);
+  }
+
+  /**
+   * Create a reader that is not associated with the pool. Use this when the reader's lifetime is
+   * not known, such as when it is handed to a caller within a <code>SAXSource</code>.
+   * 
+   * @param entityResolver The entity resolver to bind. Null may be sent in.
+   * @return A new reader.
+   * @throws SAXException
+   */
+  public XMLReader newXMLReader(EntityResolver entityResolver) throws SAXException {
+    createCount.incrementAndGet();
+    XMLReader reader;
+    try {
+      // SAXParserFactory is not guaranteed to be thread-safe.
+      synchronized (parserFactory) {
+        reader = parserFactory.newSAXParser().getXMLReader();
+      }
+    } catch (ParserConfigurationException e) {
+      throw new SAXException("Unable to create an XMLReader", e);
+    }
+    reader.setEntityResolver(entityResolver);
+    return reader;
+  }
+
+  /**
+   * @return The number of leases granted.
+   */
+  public long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /**
+   * @return The number of readers created, whether leased or not.
+   */
+  public long getCreateCount() {
+    return createCount.get();
+  }
+
+  /**
+   * @return The number of released readers that were discarded.
+   */
+  public long getDiscardCount() {
+    return discardCount.get();
+  }
+
+  /**
+   * @return The number of idle readers.
+   */
+  public int getIdleCount() {
+    return idleCount.get();
+  }
+
+  /**
+   * Restore the features and handlers a consumer of the reader may have changed. Transformers
+   * commonly set the namespace features and a lexical handler on the reader they are given.
+   * 
+   * @return False if the reader could not be restored, and should be discarded.
+   */
+  private boolean reset(XMLReader reader) {
+    try {
+      reader.setFeature(FEATURE_NAMESPACES, true);
+      reader.setFeature(FEATURE_NAMESPACE_PREFIXES, false);
+      reader.setContentHandler(null);
+      reader.setDTDHandler(null);
+      reader.setErrorHandler(null);
+      try {
+        reader.setProperty(PROPERTY_LEXICAL_HANDLER, null);
+      } catch (SAXException e) {
+        // Not supported; nothing to restore.
+      }
+      return true;
+    } catch (SAXException e) {
+      log.debug("Discarding XMLReader that could not be reset", e);
+      return false;
+    } catch (RuntimeException e) {
+      // Some implementations reject null handlers.
+      log.debug("Discarding XMLReader that could not be reset", e);
+      return false;
+    }
+  }
+
+}
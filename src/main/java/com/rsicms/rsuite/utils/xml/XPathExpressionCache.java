@@ -0,0 +1,298 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * A bounded cache of compiled XPath expressions, keyed by expression string and namespace context,
+ * so that frequently evaluated expressions are not recompiled on every evaluation.
+ * <p>
+ * Compiled expressions are not thread-safe. Each cached expression therefore keeps a small pool
+ * of compiled instances, and an evaluation borrows one for its duration; concurrent evaluations
+ * of the same expression compile additional instances as needed. The least recently used
+ * expression is evicted once the configured number of expressions is exceeded.
+ * <p>
+ * Namespace contexts are compared with <code>equals()</code>. Use {@link NamespaceBindings} so
+ * that contexts with the same bindings share cache entries.
+ */
+public class XPathExpressionCache {
+
+  /**
+   * The default maximum number of expressions retained by a cache.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 256;
+
+  /**
+   * The default maximum number of idle compiled instances retained per expression.
+   */
+  public static final int DEFAULT_MAX_IDLE_PER_EXPRESSION = 8;
+
+  private static final XPathExpressionCache DEFAULT_INSTANCE =
+      new XPathExpressionCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_IDLE_PER_EXPRESSION);
+
+  private final XPathFactory xpathFactory;
+  private final int maxEntries;
+  private final int maxIdlePerExpression;
+  private final Map<Key, CachedExpression> entries;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong compileCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Get a cache that may be shared across the library, by callers that do not need their own.
+   * 
+   * @return The default cache.
+   */
+  public static XPathExpressionCache getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  /**
+   * Construct a cache that compiles expressions with the JAXP default <code>XPathFactory</code>.
+   * 
+   * @param maxEntries The maximum number of expressions to retain.
+   * @param maxIdlePerExpression The maximum number of idle compiled instances to retain per
+   *        expression.
+   */
+  public XPathExpressionCache(int maxEntries, int maxIdlePerExpression) {
+    this(XPathFactory.newInstance(), maxEntries, maxIdlePerExpression);
+  }
+
+  /**
+   * Construct a cache that compiles expressions with the given factory.
+   * 
+   * @param xpathFactory The factory to compile expressions with. Access to it is synchronized by
+   *        this cache.
+   * @param maxEntries The maximum number of expressions to retain.
+   * @param maxIdlePerExpression The maximum number of idle compiled instances to retain per
+   *        expression.
+   */
+  public XPathExpressionCache(XPathFactory xpathFactory, final int maxEntries,
+      int maxIdlePerExpression) {
+    if (xpathFactory == null) {
+      throw new IllegalArgumentException("xpathFactory may not be null");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    if (maxIdlePerExpression < 0) {
+      throw new IllegalArgumentException("maxIdlePerExpression may not be negative");
+    }
+    this.xpathFactory = xpathFactory;
+    this.maxEntries = maxEntries;
+    this.maxIdlePerExpression = maxIdlePerExpression;
+    this.entries = new LinkedHashMap<Key, CachedExpression>(64, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedExpression> eldest) {
+        if (size() > XPathExpressionCache.this.maxEntries) {
+          evictionCount.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Evaluate the given expression against the given item.
+   * 
+   * @param expression
+   * @param namespaceContext Namespace context to compile the expression with. Null may be sent in
+   *        when the expression does not use prefixes.
+   * @param item The node or document to evaluate the expression against.
+   * @param returnType One of the <code>XPathConstants</code>.
+   * @return The result, of the type indicated by <code>returnType</code>.
+   * @throws XPathExpressionException
+   */
+  public Object evaluate(String expression, NamespaceContext namespaceContext, Object item,
+      QName returnType) throws XPathExpressionException {
+    CachedExpression cached = getCachedExpression(expression, namespaceContext);
+    XPathExpression compiled = cached.idle.poll();
+    if (compiled == null) {
+      compiled = compile(expression, namespaceContext);
+    } else {
+      cached.idleCount.decrementAndGet();
+    }
+    try {
+      return compiled.evaluate(item, returnType);
+    } finally {
+      if (cached.idleCount.incrementAndGet() <= maxIdlePerExpression) {
+        cached.idle.offer(compiled);
+      } else {
+        cached.idleCount.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Evaluate the given expression against the given item, as a string.
+   * 
+   * @param expression
+   * @param namespaceContext Namespace context to compile the expression with. Null may be sent in
+   *        when the expression does not use prefixes.
+   * @param item The node or document to evaluate the expression against.
+   * @return The string value of the result.
+   * @throws XPathExpressionException
+   */
+  public String evaluateString(String expression, NamespaceContext namespaceContext, Object item)
+      throws XPathExpressionException {
+    return (String) evaluate(expression, namespaceContext, item, XPathConstants.STRING);
+  }
+
+  /**
+   * Compile the given expression, without caching it. The result may not be used by more than one
+   * thread at a time.
+   * 
+   * @param expression
+   * @param namespaceContext Null may be sent in.
+   * @return The compiled expression.
+   * @throws XPathExpressionException
+   */
+  public XPathExpression compile(String expression, NamespaceContext namespaceContext)
+      throws XPathExpressionException {
+    compileCount.incrementAndGet();
+    XPath xpath;
+    // XPathFactory is not guaranteed to be thread-safe.
+    synchronized (xpathFactory) {
+      xpath = xpathFactory.newXPath();
+    }
+    if (namespaceContext != null) {
+      xpath.setNamespaceContext(namespaceContext);
+    }
+    return xpath.compile(expression);
+  }
+
+  /**
+   * Remove all expressions from the cache.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return The number of expressions cached.
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return The maximum number of expressions retained.
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return The number of evaluations of an expression that was already cached.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of evaluations of an expression that was not yet cached.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of times an expression was compiled.
+   */
+  public long getCompileCount() {
+    return compileCount.get();
+  }
+
+  /**
+   * @return The number of expressions evicted to stay within the maximum number of entries.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  private CachedExpression getCachedExpression(String expression,
+      NamespaceContext namespaceContext) throws XPathExpressionException {
+    Key key = new Key(expression, namespaceContext);
+    CachedExpression cached;
+    synchronized (entries) {
+      cached = entries.get(key);
+    }
+    if (cached != null) {
+      hitCount.incrementAndGet();
+      return cached;
+    }
+    missCount.incrementAndGet();
+
+    // Compile outside the lock, which also validates the expression before it is cached.
+    CachedExpression created = new CachedExpression();
+    created.idle.offer(compile(expression, namespaceContext));
+    created.idleCount.incrementAndGet();
+    synchronized (entries) {
+      cached = entries.get(key);
+      if (cached == null) {
+        entries.put(key, created);
+        cached = created;
+      }
+    }
+    return cached;
+  }
+
+  private static class CachedExpression {
+    private final Queue<XPathExpression> idle = new ConcurrentLinkedQueue<XPathExpression>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+  }
+
+  private static class Key {
+    private final String expression;
+    private final NamespaceContext namespaceContext;
+    private final int hashCode;
+
+    private Key(String expression, NamespaceContext namespaceContext) {
+      if (expression == null) {
+        throw new IllegalArgumentException("expression may not be null");
+      }
+      this.expression = expression;
+      this.namespaceContext = namespaceContext;
+      this.hashCode = 31 * expression.hashCode()
+          + (namespaceContext == null ? 0 : namespaceContext.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hashCode == other.hashCode && expression.equals(other.expression)
+          && (namespaceContext == null ? other.namespaceContext == null
+              : namespaceContext.equals(other.namespaceContext));
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+}
@@ -0,0 +1,351 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * A set of named XPath expressions that are evaluated together against a node, returning the
+ * string value of each. Expressions within the subset supported by {@link StreamingXPath} are
+ * evaluated in one shared walk of the tree, which ends once each of them has its first match and
+ * skips subtrees none of them can match within. Any other expression is evaluated on its own,
+ * using an {@link XPathExpressionCache}.
+ * <p>
+ * Add all of the expressions before sharing an instance; evaluation is then thread-safe.
+ */
+public class XPathQuerySet {
+
+  private final NamespaceContext namespaceContext;
+  private final XPathExpressionCache xpathExpressionCache;
+
+  // In the order they were added.
+  private final Map<String, String> expressions = new LinkedHashMap<String, String>();
+  private final List<String> sharedNames = new ArrayList<String>();
+  private final List<StreamingXPath> shared = new ArrayList<StreamingXPath>();
+  private final List<String> fallbackNames = new ArrayList<String>();
+
+  /**
+   * Construct a set whose expressions may use the given namespaces, falling back to
+   * {@link XPathExpressionCache#getDefault()}.
+   * 
+   * @param namespaceContext Null may be sent in when the expressions do not use prefixes.
+   */
+  public XPathQuerySet(NamespaceContext namespaceContext) {
+    this(namespaceContext, XPathExpressionCache.getDefault());
+  }
+
+  /**
+   * Construct a set whose expressions may use the given namespaces.
+   * 
+   * @param namespaceContext Null may be sent in when the expressions do not use prefixes. Use
+   *        {@link NamespaceBindings} so that fallback evaluations share cached expressions.
+   * @param xpathExpressionCache Evaluates the expressions that cannot be shared.
+   */
+  public XPathQuerySet(NamespaceContext namespaceContext,
+      XPathExpressionCache xpathExpressionCache) {
+    if (xpathExpressionCache == null) {
+      throw new IllegalArgumentException("xpathExpressionCache may not be null");
+    }
+    this.namespaceContext = namespaceContext;
+    this.xpathExpressionCache = xpathExpressionCache;
+  }
+
+  /**
+   * Add a named expression.
+   * 
+   * @param name The key of the expression's result.
+   * @param expression
+   * @return This set.
+   * @throws XPathExpressionException Thrown if the expression is not valid.
+   */
+  public XPathQuerySet add(String name, String expression) throws XPathExpressionException {
+    if (name == null) {
+      throw new IllegalArgumentException("name may not be null");
+    }
+    if (expressions.containsKey(name)) {
+      throw new IllegalArgumentException("An expression named " + name + " was already added");
+    }
+    StreamingXPath compiled;
+    try {
+      compiled = StreamingXPath.compile(expression, namespaceContext);
+    } catch (XPathExpressionException e) {
+      compiled = null;
+    }
+    if (compiled != null) {
+      sharedNames.add(name);
+      shared.add(compiled);
+    } else {
+      // Compile now, to report an invalid expression when it is added.
+      xpathExpressionCache.compile(expression, namespaceContext);
+      fallbackNames.add(name);
+    }
+    expressions.put(name, expression);
+    return this;
+  }
+
+  /**
+   * @return The expressions, by name, in the order they were added.
+   */
+  public Map<String, String> getExpressions() {
+    return new LinkedHashMap<String, String>(expressions);
+  }
+
+  /**
+   * @return The number of expressions that are evaluated in the shared walk.
+   */
+  public int getSharedCount() {
+    return shared.size();
+  }
+
+  /**
+   * Evaluate every expression against the given node.
+   * 
+   * @param node The context node, such as a document or an element.
+   * @return The string value of each expression's result, by name, in the order the expressions
+   *         were added. As with <code>XPathConstants.STRING</code>, an expression that selects
+   *         nodes yields the string value of the first of them, or an empty string.
+   * @throws XPathExpressionException
+   */
+  public Map<String, String> evaluate(Node node) throws XPathExpressionException {
+    if (node == null) {
+      throw new IllegalArgumentException("node may not be null");
+    }
+    String[] sharedResults = new String[shared.size()];
+    Node root = node.getNodeType() == Node.DOCUMENT_NODE ? node : node.getOwnerDocument();
+    if (root == null || root == node) {
+      walk(node, sharedResults, null);
+    } else {
+      // Absolute expressions start from the document; relative ones from the node.
+      walk(root, sharedResults, Boolean.TRUE);
+      walk(node, sharedResults, Boolean.FALSE);
+    }
+
+    Map<String, String> results = new LinkedHashMap<String, String>();
+    for (String name : expressions.keySet()) {
+      results.put(name, "");
+    }
+    for (int i = 0; i < sharedResults.length; i++) {
+      if (sharedResults[i] != null) {
+        results.put(sharedNames.get(i), sharedResults[i]);
+      }
+    }
+    for (String name : fallbackNames) {
+      results.put(name,
+          xpathExpressionCache.evaluateString(expressions.get(name), namespaceContext, node));
+    }
+    return results;
+  }
+
+  /**
+   * Walk the given subtree in document order, recording the first match of each shared expression
+   * in <code>results</code>.
+   * 
+   * @param absolute Which expressions to evaluate: absolute, relative, or null for both.
+   */
+  private void walk(Node start, String[] results, Boolean absolute) {
+    int count = shared.size();
+    // One row of masks per depth, one mask per expression.
+    long[] masks = new long[count * 16];
+    int remaining = 0;
+    for (int q = 0; q < count; q++) {
+      if (results[q] == null
+          && (absolute == null || absolute.booleanValue() == shared.get(q).isAbsolute())) {
+        masks[q] = shared.get(q).initialMask();
+        remaining++;
+      }
+    }
+    if (remaining == 0) {
+      return;
+    }
+    DomAttributes attributes = new DomAttributes();
+    if (start.getNodeType() == Node.ELEMENT_NODE) {
+      // A relative expression may select the context element's own attributes.
+      attributes.reset(start.getAttributes());
+      for (int q = 0; q < count; q++) {
+        StreamingXPath xpath = shared.get(q);
+        if (masks[q] != 0 && xpath.getResultKind() == StreamingXPath.KIND_ATTRIBUTE
+            && xpath.isContext(masks[q])) {
+          for (int i = 0; i < attributes.getCount(); i++) {
+            if (xpath.matchesAttribute(attributes, i)) {
+              results[q] = attributes.getValue(i);
+              masks[q] = 0;
+              if (--remaining == 0) {
+                return;
+              }
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    Node node = start.getFirstChild();
+    int depth = 1;
+    while (node != null) {
+      int row = depth * count;
+      int parentRow = row - count;
+      boolean descend = false;
+      switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE: {
+          if (row + count > masks.length) {
+            long[] grown = new long[masks.length * 2];
+            System.arraycopy(masks, 0, grown, 0, masks.length);
+            masks = grown;
+          }
+          attributes.reset(node.getAttributes());
+          String namespaceUri = node.getNamespaceURI();
+          String localName = node.getLocalName() == null ? node.getNodeName()
+              : node.getLocalName();
+          for (int q = 0; q < count; q++) {
+            long mask = 0;
+            if (results[q] == null && masks[parentRow + q] != 0) {
+              StreamingXPath xpath = shared.get(q);
+              mask = xpath.elementMask(masks[parentRow + q], namespaceUri, localName, attributes);
+              String result = null;
+              if (xpath.getResultKind() == StreamingXPath.KIND_ELEMENT) {
+                if (xpath.isMatch(mask)) {
+                  result = node.getTextContent();
+                }
+              } else if (xpath.getResultKind() == StreamingXPath.KIND_ATTRIBUTE
+                  && xpath.isContext(mask)) {
+                for (int i = 0; i < attributes.getCount(); i++) {
+                  if (xpath.matchesAttribute(attributes, i)) {
+                    result = attributes.getValue(i);
+                    break;
+                  }
+                }
+              }
+              if (result != null) {
+                results[q] = result;
+                mask = 0;
+                if (--remaining == 0) {
+                  return;
+                }
+              }
+            }
+            masks[row + q] = mask;
+            descend |= mask != 0;
+          }
+          break;
+        }
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE: {
+          for (int q = 0; q < count; q++) {
+            StreamingXPath xpath = shared.get(q);
+            if (results[q] == null && xpath.getResultKind() == StreamingXPath.KIND_TEXT
+                && xpath.isContext(masks[parentRow + q])) {
+              results[q] = getTextNodeValue(node);
+              if (--remaining == 0) {
+                return;
+              }
+            }
+          }
+          break;
+        }
+        case Node.ENTITY_REFERENCE_NODE: {
+          // Transparent: its children are evaluated as children of its parent.
+          if (row + count > masks.length) {
+            long[] grown = new long[masks.length * 2];
+            System.arraycopy(masks, 0, grown, 0, masks.length);
+            masks = grown;
+          }
+          for (int q = 0; q < count; q++) {
+            masks[row + q] = results[q] == null ? masks[parentRow + q] : 0;
+            descend |= masks[row + q] != 0;
+          }
+          break;
+        }
+        default:
+          break;
+      }
+
+      if (descend && node.getFirstChild() != null) {
+        node = node.getFirstChild();
+        depth++;
+        continue;
+      }
+      while (node != start && node.getNextSibling() == null) {
+        node = node.getParentNode();
+        depth--;
+      }
+      if (node == start) {
+        break;
+      }
+      node = node.getNextSibling();
+    }
+  }
+
+  /**
+   * @return The value of the XPath text node starting at the given node, which includes any
+   *         adjacent text and CDATA section siblings.
+   */
+  private static String getTextNodeValue(Node node) {
+    Node next = node.getNextSibling();
+    if (next == null || !isText(next)) {
+      return node.getNodeValue();
+    }
+    StringBuilder text = new StringBuilder(node.getNodeValue());
+    for (; next != null && isText(next); next = next.getNextSibling()) {
+      text.append(next.getNodeValue());
+    }
+    return text.toString();
+  }
+
+  private static boolean isText(Node node) {
+    return node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE;
+  }
+
+  /**
+   * The attributes of an element, excluding namespace declarations. Reused from element to
+   * element.
+   */
+  private static class DomAttributes implements StreamingXPath.AttributeAccessor {
+    private Attr[] attrs = new Attr[8];
+    private int count;
+
+    private void reset(NamedNodeMap map) {
+      count = 0;
+      int length = map == null ? 0 : map.getLength();
+      if (length > attrs.length) {
+        attrs = new Attr[length];
+      }
+      for (int i = 0; i < length; i++) {
+        Attr attr = (Attr) map.item(i);
+        if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+          attrs[count++] = attr;
+        }
+      }
+    }
+
+    @Override
+    public int getCount() {
+      return count;
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+      return attrs[index].getNamespaceURI();
+    }
+
+    @Override
+    public String getLocalName(int index) {
+      Attr attr = attrs[index];
+      return attr.getLocalName() == null ? attr.getName() : attr.getLocalName();
+    }
+
+    @Override
+    public String getValue(int index) {
+      return attrs[index].getValue();
+    }
+  }
+
+}
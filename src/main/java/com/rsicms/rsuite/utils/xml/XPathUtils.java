@@ -1,5 +1,12 @@
 package com.rsicms.rsuite.utils.xml;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpressionException;
+
 import com.reallysi.rsuite.api.RSuiteException;
 import com.reallysi.rsuite.api.extensions.ExecutionContext;
 import com.reallysi.rsuite.api.xml.Namespace;
@@ -11,6 +18,25 @@ import com.reallysi.rsuite.service.XmlApiManager;
  */
 public class XPathUtils {
 
+  /**
+   * The maximum number of namespace sets per thread {@link #getCachedXPathEvaluator} retains
+   * evaluators for.
+   */
+  static final int MAX_CACHED_EVALUATORS_PER_THREAD = 32;
+
+  /**
+   * Evaluators are not documented to be thread-safe, so each thread caches its own.
+   */
+  private static final ThreadLocal<CachedEvaluators> cachedEvaluators =
+      new ThreadLocal<CachedEvaluators>() {
+        @Override
+        protected CachedEvaluators initialValue() {
+          return new CachedEvaluators();
+        }
+      };
+
+  private XPathExpressionCache xpathExpressionCache = XPathExpressionCache.getDefault();
+
   /**
    * Get an XPath evaluator, without additional namespaces
    * 
@@ -70,4 +96,124 @@ public class XPathUtils {
     return eval;
   }
 
+  /**
+   * Get an XPath evaluator configured with the specified namespaces, reusing the one this thread
+   * last got for the same set of namespaces. Unlike
+   * {@link #getXPathEvaluator(XmlApiManager, Namespace...)}, no evaluator is constructed or
+   * configured when one is cached.
+   * <p>
+   * The returned evaluator is shared by subsequent calls on this thread: do not add namespace
+   * declarations to it, nor hand it to another thread.
+   * 
+   * @param xmlApiManager
+   * @param namespaces Optional list of namespace to configure evaluator with.
+   * @return XPath evaluator, configured with the specified namespace
+   * @throws RSuiteException
+   */
+  public XPathEvaluator getCachedXPathEvaluator(XmlApiManager xmlApiManager,
+      Namespace... namespaces) throws RSuiteException {
+    CachedEvaluators byManager = cachedEvaluators.get();
+    Map<NamespaceBindings, XPathEvaluator> byNamespaces = byManager.get(xmlApiManager);
+    if (byNamespaces == null) {
+      byNamespaces = new LinkedHashMap<NamespaceBindings, XPathEvaluator>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NamespaceBindings, XPathEvaluator> eldest) {
+          return size() > MAX_CACHED_EVALUATORS_PER_THREAD;
+        }
+      };
+      byManager.put(xmlApiManager, byNamespaces);
+    }
+
+    NamespaceBindings key = new NamespaceBindings(namespaces);
+    XPathEvaluator eval = byNamespaces.get(key);
+    if (eval == null) {
+      eval = getXPathEvaluator(xmlApiManager, namespaces);
+      byNamespaces.put(key, eval);
+    }
+    return eval;
+  }
+
+  /**
+   * Discard the evaluators cached for the current thread by
+   * {@link #getCachedXPathEvaluator(XmlApiManager, Namespace...)}.
+   */
+  public static void clearCachedXPathEvaluators() {
+    cachedEvaluators.remove();
+  }
+
+  /**
+   * Evaluate an XPath expression against the given item, using a compiled expression from this
+   * instance's {@link XPathExpressionCache}.
+   * 
+   * @param item The node or document to evaluate the expression against.
+   * @param expression
+   * @param returnType One of the <code>XPathConstants</code>.
+   * @param namespaces Optional list of namespaces the expression uses.
+   * @return The result, of the type indicated by <code>returnType</code>.
+   * @throws XPathExpressionException
+   */
+  public Object evaluate(Object item, String expression, QName returnType,
+      Namespace... namespaces) throws XPathExpressionException {
+    return xpathExpressionCache.evaluate(expression, new NamespaceBindings(namespaces), item,
+        returnType);
+  }
+
+  /**
+   * Evaluate an XPath expression against the given item as a string, using a compiled expression
+   * from this instance's {@link XPathExpressionCache}.
+   * 
+   * @param item The node or document to evaluate the expression against.
+   * @param expression
+   * @param namespaces Optional list of namespaces the expression uses.
+   * @return The string value of the result.
+   * @throws XPathExpressionException
+   */
+  public String evaluateString(Object item, String expression, Namespace... namespaces)
+      throws XPathExpressionException {
+    return xpathExpressionCache.evaluateString(expression, new NamespaceBindings(namespaces),
+        item);
+  }
+
+  /**
+   * Get a new, empty set of named expressions that are evaluated together, in one walk of the tree
+   * where possible. Expressions that cannot share the walk are evaluated with this instance's
+   * {@link XPathExpressionCache}.
+   *
+   * @param namespaces Optional list of namespaces the expressions use.
+   * @return The empty query set.
+   */
+  public XPathQuerySet newXPathQuerySet(Namespace... namespaces) {
+    return new XPathQuerySet(new NamespaceBindings(namespaces), xpathExpressionCache);
+  }
+
+  /**
+   * @return The cache of compiled expressions the evaluate methods use.
+   */
+  public XPathExpressionCache getXPathExpressionCache() {
+    return xpathExpressionCache;
+  }
+
+  /**
+   * Set the cache of compiled expressions the evaluate methods use. The default is
+   * {@link XPathExpressionCache#getDefault()}.
+   * 
+   * @param xpathExpressionCache
+   */
+  public void setXPathExpressionCache(XPathExpressionCache xpathExpressionCache) {
+    if (xpathExpressionCache == null) {
+      throw new IllegalArgumentException("xpathExpressionCache may not be null");
+    }
+    this.xpathExpressionCache = xpathExpressionCache;
+  }
+
+  /**
+   * A thread's cached evaluators, by <code>XmlApiManager</code> and then namespaces.
+   */
+  private static class CachedEvaluators
+      extends WeakHashMap<XmlApiManager, Map<NamespaceBindings, XPathEvaluator>> {
+    private static final long serialVersionUID = 1L;
+  }
+
 }
@@ -0,0 +1,368 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link XmlMetricsListener} that keeps latency histograms of transforms, per stylesheet and
+ * phase, and of parses and serializations, along with byte counts. It can be registered as a JMX
+ * MBean, for monitoring in production:
+ * 
+ * <pre>
+ * XmlMetrics metrics = new XmlMetrics();
+ * metrics.register(&quot;my-plugin&quot;);
+ * XmlMetricsListener.setDefault(metrics);
+ * </pre>
+ * <p>
+ * At most {@link #MAX_STYLESHEETS} stylesheets are tracked separately; transforms with others are
+ * combined under {@link #OTHER_STYLESHEETS}.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class XmlMetrics extends XmlMetricsListener implements XmlMetricsMBean {
+
+  /**
+   * The JMX domain metrics are registered under.
+   */
+  public static final String JMX_DOMAIN = "com.rsicms.rsuite.utils.xml";
+
+  /**
+   * The maximum number of stylesheets tracked separately.
+   */
+  public static final int MAX_STYLESHEETS = 256;
+
+  /**
+   * The name transforms are combined under once {@link #MAX_STYLESHEETS} are tracked.
+   */
+  public static final String OTHER_STYLESHEETS = "(other stylesheets)";
+
+  private final ConcurrentMap<String, StylesheetMetrics> stylesheets =
+      new ConcurrentHashMap<String, StylesheetMetrics>();
+  private final AtomicLong transformCount = new AtomicLong();
+  private final AtomicLong transformFailureCount = new AtomicLong();
+
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+  private final AtomicLong parseFailureCount = new AtomicLong();
+  private final AtomicLong parseInputBytes = new AtomicLong();
+
+  private final LatencyHistogram serializationLatency = new LatencyHistogram();
+  private final AtomicLong serializationFailureCount = new AtomicLong();
+  private final AtomicLong serializationOutputLength = new AtomicLong();
+
+  private volatile ObjectName objectName;
+  private volatile boolean parseTimed;
+
+  @Override
+  public boolean isParseTimed() {
+    return parseTimed;
+  }
+
+  @Override
+  public void setParseTimed(boolean parseTimed) {
+    this.parseTimed = parseTimed;
+  }
+
+  @Override
+  public void transformed(TransformMetrics metrics) {
+    transformCount.incrementAndGet();
+    if (metrics.isFailed()) {
+      transformFailureCount.incrementAndGet();
+    }
+    getOrAddStylesheetMetrics(metrics.getStylesheet()).record(metrics);
+  }
+
+  @Override
+  public void documentParsed(long elapsedNanos, long inputBytes, boolean failed) {
+    if (failed) {
+      parseFailureCount.incrementAndGet();
+      return;
+    }
+    parseLatency.record(elapsedNanos);
+    if (inputBytes > 0) {
+      parseInputBytes.addAndGet(inputBytes);
+    }
+  }
+
+  @Override
+  public void documentSerialized(long elapsedNanos, long outputLength, boolean failed) {
+    if (failed) {
+      serializationFailureCount.incrementAndGet();
+      return;
+    }
+    serializationLatency.record(elapsedNanos);
+    if (outputLength > 0) {
+      serializationOutputLength.addAndGet(outputLength);
+    }
+  }
+
+  /**
+   * Register this instance with the platform MBean server, as
+   * <code>com.rsicms.rsuite.utils.xml:type=XmlMetrics,name=<i>name</i></code>.
+   * 
+   * @param name Distinguishes this instance from others, such as those of other plugins.
+   * @return The name registered under.
+   * @throws JMException Thrown if the name is in use or invalid.
+   */
+  public synchronized ObjectName register(String name) throws JMException {
+    if (objectName != null) {
+      throw new IllegalStateException("Already registered as " + objectName);
+    }
+    ObjectName newName =
+        new ObjectName(JMX_DOMAIN + ":type=XmlMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+    objectName = newName;
+    return newName;
+  }
+
+  /**
+   * Unregister this instance from the platform MBean server, if registered.
+   * 
+   * @throws JMException
+   */
+  public synchronized void unregister() throws JMException {
+    if (objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * @param stylesheet
+   * @return The measurements of the given stylesheet, or null if it has not been measured.
+   */
+  public StylesheetMetrics getStylesheetMetrics(String stylesheet) {
+    return stylesheets.get(stylesheet);
+  }
+
+  /**
+   * @return The parse latency histogram.
+   */
+  public LatencyHistogram getParseLatency() {
+    return parseLatency;
+  }
+
+  /**
+   * @return The serialization latency histogram.
+   */
+  public LatencyHistogram getSerializationLatency() {
+    return serializationLatency;
+  }
+
+  /**
+   * @return The total length of serialized output whose length was known, in characters or bytes
+   *         per {@link XmlMetricsListener#documentSerialized(long, long, boolean)}.
+   */
+  public long getSerializationOutputLength() {
+    return serializationOutputLength.get();
+  }
+
+  @Override
+  public long getTransformCount() {
+    return transformCount.get();
+  }
+
+  @Override
+  public long getTransformFailureCount() {
+    return transformFailureCount.get();
+  }
+
+  @Override
+  public String[] getStylesheets() {
+    return stylesheets.keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public String describeStylesheet(String stylesheet) {
+    StylesheetMetrics metrics = stylesheets.get(stylesheet);
+    return metrics == null ? null : metrics.toString();
+  }
+
+  @Override
+  public double getPercentileMillis(String stylesheet, String phase, double percentile) {
+    StylesheetMetrics metrics = stylesheets.get(stylesheet);
+    if (metrics == null) {
+      return 0;
+    }
+    LatencyHistogram histogram = "TOTAL".equalsIgnoreCase(phase) ? metrics.getTotalLatency()
+        : metrics.getLatency(TransformPhase.valueOf(phase.toUpperCase()));
+    return LatencyHistogram.toMillis(histogram.getPercentileNanos(percentile));
+  }
+
+  @Override
+  public long getParseCount() {
+    return parseLatency.getCount();
+  }
+
+  @Override
+  public long getParseFailureCount() {
+    return parseFailureCount.get();
+  }
+
+  @Override
+  public double getParseMeanMillis() {
+    return LatencyHistogram.toMillis(parseLatency.getMeanNanos());
+  }
+
+  @Override
+  public double getParse99thPercentileMillis() {
+    return LatencyHistogram.toMillis(parseLatency.getPercentileNanos(99));
+  }
+
+  @Override
+  public long getParseInputBytes() {
+    return parseInputBytes.get();
+  }
+
+  @Override
+  public long getSerializationCount() {
+    return serializationLatency.getCount();
+  }
+
+  @Override
+  public long getSerializationFailureCount() {
+    return serializationFailureCount.get();
+  }
+
+  @Override
+  public double getSerializationMeanMillis() {
+    return LatencyHistogram.toMillis(serializationLatency.getMeanNanos());
+  }
+
+  @Override
+  public double getSerialization99thPercentileMillis() {
+    return LatencyHistogram.toMillis(serializationLatency.getPercentileNanos(99));
+  }
+
+  @Override
+  public void reset() {
+    stylesheets.clear();
+    transformCount.set(0);
+    transformFailureCount.set(0);
+    parseLatency.reset();
+    parseFailureCount.set(0);
+    parseInputBytes.set(0);
+    serializationLatency.reset();
+    serializationFailureCount.set(0);
+    serializationOutputLength.set(0);
+  }
+
+  private StylesheetMetrics getOrAddStylesheetMetrics(String stylesheet) {
+    StylesheetMetrics metrics = stylesheets.get(stylesheet);
+    if (metrics == null) {
+      if (stylesheets.size() >= MAX_STYLESHEETS) {
+        stylesheet = OTHER_STYLESHEETS;
+      }
+      metrics = new StylesheetMetrics(stylesheet);
+      StylesheetMetrics existing = stylesheets.putIfAbsent(stylesheet, metrics);
+      if (existing != null) {
+        metrics = existing;
+      }
+    }
+    return metrics;
+  }
+
+  /**
+   * The measurements of the transforms with one stylesheet.
+   */
+  public static class StylesheetMetrics {
+
+    private final String stylesheet;
+    private final Map<TransformPhase, LatencyHistogram> phaseLatencies =
+        new EnumMap<TransformPhase, LatencyHistogram>(TransformPhase.class);
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    StylesheetMetrics(String stylesheet) {
+      this.stylesheet = stylesheet;
+      for (TransformPhase phase : TransformPhase.values()) {
+        phaseLatencies.put(phase, new LatencyHistogram());
+      }
+    }
+
+    void record(TransformMetrics metrics) {
+      if (metrics.isFailed()) {
+        failureCount.incrementAndGet();
+        return;
+      }
+      for (Map.Entry<TransformPhase, LatencyHistogram> entry : phaseLatencies.entrySet()) {
+        entry.getValue().record(metrics.getNanos(entry.getKey()));
+      }
+      totalLatency.record(metrics.getTotalNanos());
+      if (metrics.getInputBytes() > 0) {
+        inputBytes.addAndGet(metrics.getInputBytes());
+      }
+      if (metrics.getOutputBytes() > 0) {
+        outputBytes.addAndGet(metrics.getOutputBytes());
+      }
+    }
+
+    /**
+     * @return The stylesheet's URI or system ID, {@link TransformMetrics#SUPPLIED_TRANSFORMER}, or
+     *         {@link XmlMetrics#OTHER_STYLESHEETS}.
+     */
+    public String getStylesheet() {
+      return stylesheet;
+    }
+
+    /**
+     * @param phase
+     * @return The latencies of the given phase, of the transforms that completed.
+     */
+    public LatencyHistogram getLatency(TransformPhase phase) {
+      return phaseLatencies.get(phase);
+    }
+
+    /**
+     * @return The total latencies of the transforms that completed.
+     */
+    public LatencyHistogram getTotalLatency() {
+      return totalLatency;
+    }
+
+    /**
+     * @return The number of transforms that failed.
+     */
+    public long getFailureCount() {
+      return failureCount.get();
+    }
+
+    /**
+     * @return The total length of the inputs whose length was known, in bytes.
+     */
+    public long getInputBytes() {
+      return inputBytes.get();
+    }
+
+    /**
+     * @return The total length of the outputs whose length was known, in bytes.
+     */
+    public long getOutputBytes() {
+      return outputBytes.get();
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(stylesheet).append(": total [").append(totalLatency)
+          .append("], failures=").append(getFailureCount()).append(", inputBytes=")
+          .append(getInputBytes()).append(", outputBytes=").append(getOutputBytes());
+      for (Map.Entry<TransformPhase, LatencyHistogram> entry : phaseLatencies.entrySet()) {
+        sb.append("; ").append(entry.getKey()).append(" [").append(entry.getValue()).append(']');
+      }
+      return sb.toString();
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * Receives measurements of the transforms, parses, and serializations the library performs. The
+ * methods do nothing by default; override those of interest. {@link XmlMetrics} is an
+ * implementation that keeps histograms and can be exposed over JMX.
+ * <p>
+ * {@link TransformUtils} and {@link DomUtils} instances report to the listener set on them, or
+ * when none is, to {@link #getDefault()}, as do the static methods of {@link DomUtils}. Until a
+ * default is set, it is {@link #NONE}, with which nothing is measured beyond reading the clock.
+ * <p>
+ * Listeners are called on the thread that did the work, after it completes, and must be
+ * thread-safe and quick.
+ */
+public abstract class XmlMetricsListener {
+
+  /**
+   * A listener that ignores all measurements. The library skips the measuring it would only do
+   * for a listener, such as counting bytes, when given this one.
+   */
+  public static final XmlMetricsListener NONE = new XmlMetricsListener() {};
+
+  private static volatile XmlMetricsListener defaultListener = NONE;
+
+  /**
+   * @return The listener used when none is set on an instance. {@link #NONE} unless set.
+   */
+  public static XmlMetricsListener getDefault() {
+    return defaultListener;
+  }
+
+  /**
+   * Set the listener used when none is set on an instance, such as an {@link XmlMetrics}
+   * registered with JMX.
+   * 
+   * @param listener Null may be sent in to restore {@link #NONE}.
+   */
+  public static void setDefault(XmlMetricsListener listener) {
+    defaultListener = listener == null ? NONE : listener;
+  }
+
+  /**
+   * @return True if transforms should time the parsing of the input the library parses for them,
+   *         and the resolution of its entities, which passes every parse event through a filter.
+   *         False by default, in which case {@link TransformPhase#PARSE} and
+   *         {@link TransformPhase#ENTITY_RESOLUTION} are reported as 0 and counted in
+   *         {@link TransformPhase#TRANSFORM}.
+   */
+  public boolean isParseTimed() {
+    return false;
+  }
+
+  /**
+   * Called after a transform completes or fails.
+   * 
+   * @param metrics The transform's measurements.
+   */
+  public void transformed(TransformMetrics metrics) {}
+
+  /**
+   * Called after a document is parsed, or fails to parse.
+   * 
+   * @param elapsedNanos
+   * @param inputBytes The length of the input, or -1 when not known.
+   * @param failed
+   */
+  public void documentParsed(long elapsedNanos, long inputBytes, boolean failed) {}
+
+  /**
+   * Called after a node is serialized, or fails to serialize.
+   * 
+   * @param elapsedNanos
+   * @param outputLength The length of the output: in characters when serialized to a string, or
+   *        in bytes when serialized to a stream. -1 when not known.
+   * @param failed
+   */
+  public void documentSerialized(long elapsedNanos, long outputLength, boolean failed) {}
+
+}
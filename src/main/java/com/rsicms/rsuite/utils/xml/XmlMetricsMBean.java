@@ -0,0 +1,100 @@
+package com.rsicms.rsuite.utils.xml;
+
+/**
+ * The JMX management interface of {@link XmlMetrics}. Durations are in milliseconds.
+ */
+public interface XmlMetricsMBean {
+
+  /**
+   * @return The number of transforms measured.
+   */
+  long getTransformCount();
+
+  /**
+   * @return The number of transforms that failed.
+   */
+  long getTransformFailureCount();
+
+  /**
+   * @return True if transforms time the parsing of their input separately from the transform.
+   */
+  boolean isParseTimed();
+
+  /**
+   * Set whether transforms time the parsing of their input separately from the transform, which
+   * adds a little to the cost of each parse. Off by default.
+   * 
+   * @param parseTimed
+   */
+  void setParseTimed(boolean parseTimed);
+
+  /**
+   * @return The URIs of the stylesheets measured.
+   */
+  String[] getStylesheets();
+
+  /**
+   * @param stylesheet A name returned by {@link #getStylesheets()}.
+   * @return A summary of the stylesheet's transforms, by phase.
+   */
+  String describeStylesheet(String stylesheet);
+
+  /**
+   * @param stylesheet A name returned by {@link #getStylesheets()}.
+   * @param phase The name of a {@link TransformPhase}, or "TOTAL".
+   * @param percentile From 0 to 100.
+   * @return The duration of the phase at the given percentile, or 0 when not measured.
+   */
+  double getPercentileMillis(String stylesheet, String phase, double percentile);
+
+  /**
+   * @return The number of documents parsed.
+   */
+  long getParseCount();
+
+  /**
+   * @return The number of parses that failed.
+   */
+  long getParseFailureCount();
+
+  /**
+   * @return The mean time to parse a document.
+   */
+  double getParseMeanMillis();
+
+  /**
+   * @return The 99th percentile time to parse a document.
+   */
+  double getParse99thPercentileMillis();
+
+  /**
+   * @return The total length of the parsed documents whose length was known, in bytes.
+   */
+  long getParseInputBytes();
+
+  /**
+   * @return The number of nodes serialized.
+   */
+  long getSerializationCount();
+
+  /**
+   * @return The number of serializations that failed.
+   */
+  long getSerializationFailureCount();
+
+  /**
+   * @return The mean time to serialize a node.
+   */
+  double getSerializationMeanMillis();
+
+  /**
+   * @return The 99th percentile time to serialize a node.
+   */
+  double getSerialization99thPercentileMillis();
+
+  /**
+   * Clear all measurements.
+   */
+  void reset();
+
+}
@@ -0,0 +1,355 @@
+package com.rsicms.rsuite.utils.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.xml.sax.EntityResolver;
+
+/**
+ * Splits a document into records by element name, reading it once with StAX, so that arbitrarily
+ * large inputs are processed without loading them. Each element with one of the record names,
+ * and not within another record, becomes a standalone {@link SplitRecord} whose root declares the
+ * namespaces that were in scope for it. Entity references are expanded, and CDATA sections become
+ * text.
+ * <p>
+ * Records may be handled on the reading thread, or by an <code>Executor</code> with at most a
+ * given number in flight; reading waits while that many are in flight, so memory use is bounded
+ * by the size of the records rather than the input. For example, a handler may transform each
+ * record with {@link TransformUtils}, passing {@link SplitRecord#getSource()}.
+ * <p>
+ * Instances are thread-safe once configured.
+ */
+public class XmlSplitter {
+
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+  private final Set<QName> recordNames;
+  private EntityResolver entityResolver;
+
+  /**
+   * Construct a splitter.
+   * 
+   * @param recordNames The names of the elements to split into records. Names without a namespace
+   *        URI match elements in no namespace.
+   */
+  public XmlSplitter(QName... recordNames) {
+    if (recordNames == null || recordNames.length == 0) {
+      throw new IllegalArgumentException("At least one record name is required");
+    }
+    this.recordNames = new HashSet<QName>(Arrays.asList(recordNames));
+  }
+
+  /**
+   * Set the entity resolver for the input's DTD and other external entities, such as
+   * <code>XmlApiManager#getRSuiteAwareEntityResolver()</code>. By default, they are resolved by
+   * system ID.
+   * 
+   * @param entityResolver Null may be sent in.
+   * @return This splitter.
+   */
+  public XmlSplitter setEntityResolver(EntityResolver entityResolver) {
+    this.entityResolver = entityResolver;
+    return this;
+  }
+
+  /**
+   * Split the input, handling each record on the calling thread before reading the next.
+   * 
+   * @param inputStream The stream is not closed.
+   * @param handler
+   * @return The number of records handled.
+   * @throws XMLStreamException Thrown if the input cannot be read.
+   * @throws ExecutionException Thrown if the handler fails; the split stops at that record.
+   */
+  public int split(InputStream inputStream, final SplitRecordHandler handler)
+      throws XMLStreamException, ExecutionException {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    int count = read(inputStream, new RecordSink() {
+      @Override
+      public boolean accept(SplitRecord record) {
+        try {
+          handler.handleRecord(record);
+          return true;
+        } catch (Exception e) {
+          failure.set(e);
+          return false;
+        }
+      }
+    });
+    if (failure.get() != null) {
+      throw new ExecutionException("Unable to handle a record", failure.get());
+    }
+    return count;
+  }
+
+  /**
+   * Split the input, handling records with the given executor, with at most the given number in
+   * flight. Returns once every record has been handled.
+   * 
+   * @param inputStream The stream is not closed.
+   * @param handler Called from the executor's threads.
+   * @param executor
+   * @param maxInFlight The maximum number of records read but not yet handled.
+   * @return The number of records handled.
+   * @throws XMLStreamException Thrown if the input cannot be read. Records already read are
+   *         handled first.
+   * @throws ExecutionException Thrown if the handler fails for any record; no further records are
+   *         read, and those in flight are allowed to finish.
+   * @throws InterruptedException Thrown if the calling thread is interrupted while waiting for
+   *         records to be handled.
+   */
+  public int split(InputStream inputStream, final SplitRecordHandler handler,
+      final Executor executor, final int maxInFlight)
+      throws XMLStreamException, ExecutionException, InterruptedException {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    final Semaphore permits = new Semaphore(maxInFlight);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicReference<InterruptedException> interrupted =
+        new AtomicReference<InterruptedException>();
+    int count;
+    try {
+      count = read(inputStream, new RecordSink() {
+        @Override
+        public boolean accept(final SplitRecord record) {
+          if (failure.get() != null) {
+            return false;
+          }
+          try {
+            permits.acquire();
+          } catch (InterruptedException e) {
+            interrupted.set(e);
+            return false;
+          }
+          try {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  handler.handleRecord(record);
+                } catch (Throwable t) {
+                  failure.compareAndSet(null, t);
+                } finally {
+                  permits.release();
+                }
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            permits.release();
+            failure.compareAndSet(null, e);
+            return false;
+          }
+          return true;
+        }
+      });
+    } finally {
+      // Wait for the records in flight.
+      permits.acquire(maxInFlight);
+      permits.release(maxInFlight);
+    }
+    if (interrupted.get() != null) {
+      throw interrupted.get();
+    }
+    if (failure.get() != null) {
+      throw new ExecutionException("Unable to handle a record", failure.get());
+    }
+    return count;
+  }
+
+  /**
+   * @return The names of the elements split into records.
+   */
+  public Set<QName> getRecordNames() {
+    return new HashSet<QName>(recordNames);
+  }
+
+  /**
+   * Receives records as they are read.
+   */
+  private interface RecordSink {
+    /**
+     * @return False to stop reading.
+     */
+    boolean accept(SplitRecord record);
+  }
+
+  /**
+   * Read the input, passing each record to the sink.
+   * 
+   * @return The number of records the sink accepted.
+   */
+  private int read(InputStream inputStream, RecordSink sink) throws XMLStreamException {
+    EntityResolver previous = StaxReaders.bindEntityResolver(entityResolver);
+    XMLStreamReader reader = null;
+    try {
+      reader = StaxReaders.createXMLStreamReader(inputStream);
+      // The namespace declarations in scope outside of records, by element depth.
+      List<String> prefixes = new ArrayList<String>();
+      List<String> uris = new ArrayList<String>();
+      int[] scopeStarts = new int[32];
+      int depth = 0;
+      int count = 0;
+
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          QName name = reader.getName();
+          if (recordNames.contains(name)) {
+            SplitRecord record = new SplitRecord(count, name, copyRecord(reader, prefixes, uris));
+            if (!sink.accept(record)) {
+              return count;
+            }
+            count++;
+            continue;
+          }
+          if (++depth == scopeStarts.length) {
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+          }
+          scopeStarts[depth] = prefixes.size();
+          for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            prefixes.add(normalize(reader.getNamespacePrefix(i)));
+            uris.add(normalize(reader.getNamespaceURI(i)));
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          int start = scopeStarts[depth--];
+          while (prefixes.size() > start) {
+            prefixes.remove(prefixes.size() - 1);
+            uris.remove(uris.size() - 1);
+          }
+        }
+      }
+      return count;
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+      StaxReaders.restoreEntityResolver(previous);
+    }
+  }
+
+  /**
+   * Copy the element the reader is positioned on, and its descendants, into a standalone
+   * document. The reader is left on the element's end tag.
+   */
+  private static byte[] copyRecord(XMLStreamReader reader, List<String> prefixes,
+      List<String> uris) throws XMLStreamException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+    XMLStreamWriter writer = outputFactory.createXMLStreamWriter(bytes, "UTF-8");
+    try {
+      writer.writeStartDocument("UTF-8", "1.0");
+      int depth = 0;
+      int event = XMLStreamConstants.START_ELEMENT;
+      while (true) {
+        switch (event) {
+          case XMLStreamConstants.START_ELEMENT:
+            writeStartElement(reader, writer, depth == 0 ? prefixes : null, uris);
+            depth++;
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            writer.writeEndElement();
+            if (--depth == 0) {
+              writer.writeEndDocument();
+              writer.flush();
+              return bytes.toByteArray();
+            }
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+            writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(),
+                reader.getTextLength());
+            break;
+          case XMLStreamConstants.CDATA:
+            writer.writeCData(reader.getText());
+            break;
+          case XMLStreamConstants.COMMENT:
+            writer.writeComment(reader.getText());
+            break;
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+            break;
+          default:
+            break;
+        }
+        event = reader.next();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Write the start tag the reader is positioned on, with its own namespace declarations and
+   * attributes.
+   * 
+   * @param inScopePrefixes For a record's root, the namespace declarations in scope outside of it,
+   *        which are declared on the root unless it redeclares them. Otherwise, null.
+   */
+  private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer,
+      List<String> inScopePrefixes, List<String> inScopeUris) throws XMLStreamException {
+    writer.writeStartElement(normalize(reader.getPrefix()), reader.getLocalName(),
+        normalize(reader.getNamespaceURI()));
+
+    int declared = reader.getNamespaceCount();
+    if (inScopePrefixes != null) {
+      // Later declarations of a prefix override earlier ones.
+      Set<String> written = new HashSet<String>();
+      for (int i = 0; i < declared; i++) {
+        written.add(normalize(reader.getNamespacePrefix(i)));
+      }
+      for (int i = inScopePrefixes.size() - 1; i >= 0; i--) {
+        String prefix = inScopePrefixes.get(i);
+        if (written.add(prefix)) {
+          writeNamespace(writer, prefix, inScopeUris.get(i));
+        }
+      }
+    }
+    for (int i = 0; i < declared; i++) {
+      writeNamespace(writer, normalize(reader.getNamespacePrefix(i)),
+          normalize(reader.getNamespaceURI(i)));
+    }
+
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String prefix = normalize(reader.getAttributePrefix(i));
+      if (prefix.length() == 0) {
+        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      } else {
+        writer.writeAttribute(prefix, reader.getAttributeNamespace(i),
+            reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      }
+    }
+  }
+
+  private static void writeNamespace(XMLStreamWriter writer, String prefix, String uri)
+      throws XMLStreamException {
+    if (prefix.length() == 0) {
+      writer.writeDefaultNamespace(uri);
+    } else if (uri.length() > 0 && !XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+      // Prefixes cannot be undeclared in XML 1.0.
+      writer.writeNamespace(prefix, uri);
+    }
+  }
+
+  private static String normalize(String value) {
+    return value == null ? XMLConstants.DEFAULT_NS_PREFIX : value;
+  }
+
+}